@@ -0,0 +1,109 @@
+package co.nyzo.verifier;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class AccountIndex {
+
+    // This answers whether an account is in the balance list of the highest frozen height registered. A Bloom filter
+    // rejects most accounts that are not in the list without a search, and the balance list itself, which is sorted,
+    // provides the exact answer. When the list of the next height is registered, only the accounts that the block
+    // changed are added to the filter. Accounts that leave the list remain in the filter until it is rebuilt, which
+    // only costs an exact check when they are queried. The filter is rebuilt when it fills or the heights are not
+    // consecutive.
+
+    private static final int bitsPerAccount = 16;
+    private static final int minimumFilterBits = 1 << 16;
+
+    private static volatile State state = null;
+    private static int filterAccountCount = 0;
+
+    public static synchronized void update(BalanceList balanceList) {
+
+        State previousState = state;
+        BalanceListDelta delta = previousState == null ? null :
+                BalanceListDelta.forBalanceLists(previousState.balanceList, balanceList);
+        if (delta != null && filterAccountCount + delta.getChangedItems().size() <= previousState.capacity()) {
+
+            // The new accounts are added to the filter before the new list is used, so the filter never rejects an
+            // account that is in the list.
+            for (BalanceListItem item : delta.getChangedItems()) {
+                previousState.add(item.getIdentifier());
+            }
+            filterAccountCount += delta.getChangedItems().size();
+            state = new State(previousState.filter, balanceList);
+
+        } else {
+            // The filter is sized for twice the current number of accounts, so that it can absorb many blocks of new
+            // accounts before it is rebuilt.
+            int filterBits = minimumFilterBits;
+            while (filterBits < (long) balanceList.getItemCount() * bitsPerAccount * 2L && filterBits < (1 << 30)) {
+                filterBits *= 2;
+            }
+
+            State newState = new State(new AtomicLongArray(filterBits / 64), balanceList);
+            for (BalanceListChunk chunk : balanceList.getChunks()) {
+                for (int i = 0; i < chunk.getItemCount(); i++) {
+                    newState.add(chunk.identifierAt(i));
+                }
+            }
+            filterAccountCount = balanceList.getItemCount();
+            state = newState;
+        }
+    }
+
+    public static boolean contains(byte[] identifier) {
+
+        State state = AccountIndex.state;
+        return state != null && state.mightContain(identifier) && state.balanceList.balanceFor(identifier) > 0L;
+    }
+
+    private static class State {
+
+        // Identifiers are public keys, so their bytes are already uniformly distributed, and the filter positions
+        // are taken directly from them.
+        private static final int hashFunctionCount = 4;
+
+        private final AtomicLongArray filter;
+        private final BalanceList balanceList;
+
+        private State(AtomicLongArray filter, BalanceList balanceList) {
+            this.filter = filter;
+            this.balanceList = balanceList;
+        }
+
+        private int capacity() {
+            return filter.length() * 64 / bitsPerAccount;
+        }
+
+        private void add(byte[] identifier) {
+
+            for (int i = 0; i < hashFunctionCount; i++) {
+                int position = position(identifier, i);
+                long bit = 1L << (position & 63);
+                long word = filter.get(position >>> 6);
+                while ((word & bit) == 0L && !filter.compareAndSet(position >>> 6, word, word | bit)) {
+                    word = filter.get(position >>> 6);
+                }
+            }
+        }
+
+        private boolean mightContain(byte[] identifier) {
+
+            boolean result = true;
+            for (int i = 0; i < hashFunctionCount && result; i++) {
+                int position = position(identifier, i);
+                result = (filter.get(position >>> 6) & (1L << (position & 63))) != 0L;
+            }
+
+            return result;
+        }
+
+        private int position(byte[] identifier, int hashIndex) {
+
+            int offset = hashIndex * 4;
+            int value = ((identifier[offset] & 0xff) << 24) | ((identifier[offset + 1] & 0xff) << 16) |
+                    ((identifier[offset + 2] & 0xff) << 8) | (identifier[offset + 3] & 0xff);
+            return value & (filter.length() * 64 - 1);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package co.nyzo.verifier;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class AccountStateEngine {
+
+    // This produces the balance list of a block from the balance list of the previous block. Rather than placing
+    // every account in a map and sorting the result, only the accounts that the block touches (senders, receivers,
+    // and verifiers receiving fees) are collected, in identifier order, and they are merged with the chunks of the
+    // previous list, which are already in identifier order. Only the chunks that contain touched accounts or accounts
+    // that owe the periodic fee are rewritten; all other chunks are shared with the previous list. The work is
+    // proportional to the number of rewritten chunks, plus a check of each chunk's fee height and balance sum.
+
+    private static final Comparator<byte[]> identifierComparator = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] identifier1, byte[] identifier2) {
+            return BalanceList.compareIdentifiers(identifier1, identifier2);
+        }
+    };
+
+    public static BalanceList nextBalanceList(long blockHeight, BalanceList previousBalanceList,
+                                              long previousRolloverFees, List<byte[]> previousVerifiers,
+                                              List<Transaction> transactions, byte[] verifierIdentifier) {
+
+        // The previous balance list is null for the Genesis block. Counters are read at the height of the previous
+        // list, and chunks can only be shared if that height immediately precedes this one.
+        List<BalanceListChunk> previousChunks = previousBalanceList == null ? new ArrayList<BalanceListChunk>() :
+                previousBalanceList.getChunks();
+        long previousHeight = previousBalanceList == null ? blockHeight - 1L : previousBalanceList.getBlockHeight();
+        boolean canShareChunks = previousHeight == blockHeight - 1L;
+
+        // Collect the transaction amounts for all accounts that the transactions touch. The first element of each
+        // array is the net transaction amount, and the second is the amount of verifier fees.
+        TreeMap<byte[], long[]> changes = new TreeMap<>(identifierComparator);
+        long feesThisBlock = 0L;
+        for (Transaction transaction : transactions) {
+
+            feesThisBlock += transaction.getFee();
+            if (transaction.getType() != Transaction.typeCoinGeneration) {
+                changeFor(transaction.getSenderIdentifier(), changes)[0] -= transaction.getAmount();
+            }
+
+            long amountAfterFee = transaction.getAmount() - transaction.getFee();
+            if (amountAfterFee > 0) {
+                changeFor(transaction.getReceiverIdentifier(), changes)[0] += amountAfterFee;
+            }
+        }
+
+        // Count the periodic fees. Only accounts that were in the previous list can owe fees, as new accounts start
+        // with a full counter, and the fee is only owed if the balance after the transactions is positive. Chunks
+        // with no accounts that owe fees are skipped.
+        long periodicAccountFees = 0L;
+        for (BalanceListChunk chunk : previousChunks) {
+            if (chunk.getFeeDueHeight() <= previousHeight + 1L) {
+                for (int i = 0; i < chunk.getItemCount(); i++) {
+                    if (chunk.blocksUntilFeeAt(i, previousHeight) <= 0 &&
+                            chunk.compareIdentifierAt(i, BalanceListItem.transferIdentifier) != 0) {
+                        long[] amounts = changes.get(chunk.identifierAt(i));
+                        long balance = chunk.balanceAt(i) + (amounts == null ? 0L : amounts[0]);
+                        if (balance > 0L) {
+                            periodicAccountFees++;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Split the transaction fees among the current and previous verifiers.
+        List<byte[]> verifiers = new ArrayList<>(previousVerifiers);
+        verifiers.add(verifierIdentifier);
+        long totalFees = feesThisBlock + previousRolloverFees + periodicAccountFees;
+        long feesPerVerifier = totalFees / verifiers.size();
+        if (feesPerVerifier > 0L) {
+            for (byte[] verifier : verifiers) {
+                changeFor(verifier, changes)[1] += feesPerVerifier;
+            }
+        }
+
+        // Assign each change to a chunk. A chunk receives the changes after the last identifier of the chunk before
+        // it, up to and including its own last identifier. The last chunk also receives all changes after its last
+        // identifier. If there are no chunks, all changes go to a new chunk.
+        long micronyzosInSystem = 0L;
+        List<BalanceListChunk> chunks = new ArrayList<>();
+        Iterator<Map.Entry<byte[], long[]>> changeIterator = changes.entrySet().iterator();
+        Map.Entry<byte[], long[]> change = changeIterator.hasNext() ? changeIterator.next() : null;
+        for (int chunkIndex = 0; chunkIndex < Math.max(previousChunks.size(), 1); chunkIndex++) {
+
+            BalanceListChunk chunk = chunkIndex < previousChunks.size() ? previousChunks.get(chunkIndex) : null;
+            boolean isLastChunk = chunkIndex >= previousChunks.size() - 1;
+            List<Map.Entry<byte[], long[]>> chunkChanges = new ArrayList<>();
+            while (change != null && (isLastChunk ||
+                    chunk.compareIdentifierAt(chunk.getItemCount() - 1, change.getKey()) >= 0)) {
+                chunkChanges.add(change);
+                change = changeIterator.hasNext() ? changeIterator.next() : null;
+            }
+
+            if (chunk != null && chunkChanges.isEmpty() && canShareChunks &&
+                    chunk.getFeeDueHeight() > blockHeight) {
+                chunks.add(chunk);
+                micronyzosInSystem += chunk.getBalanceSum();
+            } else {
+                micronyzosInSystem += rewriteChunk(chunk, previousHeight, chunkChanges, blockHeight, chunks);
+            }
+        }
+
+        // Make the balance list if the coins in the system are all accounted for.
+        BalanceList result = null;
+        byte rolloverFees = (byte) (totalFees % verifiers.size());
+        micronyzosInSystem += rolloverFees;
+        if (micronyzosInSystem == Transaction.micronyzosInSystem) {
+            result = BalanceList.forChunks(blockHeight, rolloverFees, previousVerifiers, chunks);
+        }
+
+        return result;
+    }
+
+    private static long rewriteChunk(BalanceListChunk chunk, long previousHeight,
+                                     List<Map.Entry<byte[], long[]>> chunkChanges, long blockHeight,
+                                     List<BalanceListChunk> chunks) {
+
+        // Merge the items of the chunk with the changes, writing the new items as they are produced. Accounts whose
+        // balances are not positive are left out. The chunk is null if the previous list had no items. This returns
+        // the sum of the balances written.
+        int previousItemCount = chunk == null ? 0 : chunk.getItemCount();
+        long balanceSum = 0L;
+        int itemCount = 0;
+        byte[] itemBytes = new byte[(previousItemCount + chunkChanges.size()) * BalanceList.bytesPerItem];
+        ByteBuffer itemBuffer = ByteBuffer.wrap(itemBytes);
+        int changeIndex = 0;
+        int previousIndex = 0;
+        while (previousIndex < previousItemCount || changeIndex < chunkChanges.size()) {
+            int comparison;
+            if (previousIndex >= previousItemCount) {
+                comparison = 1;
+            } else if (changeIndex >= chunkChanges.size()) {
+                comparison = -1;
+            } else {
+                comparison = chunk.compareIdentifierAt(previousIndex, chunkChanges.get(changeIndex).getKey());
+            }
+
+            // Get the balance after the transactions and the counter. Accounts that were not in the previous list
+            // start with a full counter, except the transfer account, which never pays the periodic fee.
+            int index = comparison <= 0 ? previousIndex : -1;
+            Map.Entry<byte[], long[]> change = comparison >= 0 ? chunkChanges.get(changeIndex) : null;
+            long balance;
+            int blocksUntilFee;
+            boolean isTransferAccount;
+            if (index >= 0) {
+                balance = chunk.balanceAt(index);
+                blocksUntilFee = chunk.blocksUntilFeeAt(index, previousHeight);
+                isTransferAccount = chunk.compareIdentifierAt(index, BalanceListItem.transferIdentifier) == 0;
+                previousIndex++;
+            } else {
+                balance = 0L;
+                isTransferAccount = ByteUtil.arraysAreEqual(change.getKey(), BalanceListItem.transferIdentifier);
+                blocksUntilFee = isTransferAccount ? 0 : BalanceListItem.blocksBetweenFee;
+            }
+
+            long verifierFees = 0L;
+            if (change != null) {
+                balance += change.getValue()[0];
+                verifierFees = change.getValue()[1];
+                changeIndex++;
+            }
+
+            // Subtract the periodic fee if it is owed, and reset the counter.
+            if (blocksUntilFee <= 0 && balance > 0L && !isTransferAccount) {
+                balance -= 1L;
+                blocksUntilFee = BalanceListItem.blocksBetweenFee;
+            }
+            balance += verifierFees;
+
+            if (balance > 0L) {
+                if (index >= 0) {
+                    chunk.putIdentifierAt(index, itemBuffer);
+                } else {
+                    itemBuffer.put(change.getKey());
+                }
+                itemBuffer.putLong(balance);
+                itemBuffer.putShort((short) Math.max(0, blocksUntilFee - 1));
+                itemCount++;
+                balanceSum += balance;
+            }
+        }
+
+        // The new items are divided into chunks if they have grown past the maximum chunk size.
+        chunks.addAll(BalanceListChunk.chunksFor(itemBytes, itemCount, blockHeight));
+
+        return balanceSum;
+    }
+
+    private static long[] changeFor(byte[] identifier, TreeMap<byte[], long[]> changes) {
+
+        long[] amounts = changes.get(identifier);
+        if (amounts == null) {
+            amounts = new long[2];
+            changes.put(identifier, amounts);
+        }
+
+        return amounts;
+    }
+}
@@ -2,7 +2,9 @@ package co.nyzo.verifier;
 
 import co.nyzo.verifier.util.PrintUtil;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -10,18 +12,67 @@ import java.util.List;
 
 public class BalanceList implements MessageObject {
 
+    // The items are in canonical order (ascending unsigned identifier, positive balances, no duplicates), and they
+    // are stored in packed chunks. A list derived from the list of the previous block shares every chunk that the
+    // block did not change, so the lists retained for neighboring heights only cost memory for their differences.
+    // Item objects are only made when they are requested.
+
+    static final int bytesPerItem = FieldByteSize.identifier + FieldByteSize.transactionAmount +
+            FieldByteSize.blocksUntilFee;
+
+    private static final ThreadLocal<ByteBuffer> hashBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(BalanceListChunk.maximumItemCount * bytesPerItem);
+        }
+    };
+
     private long blockHeight;
     private byte rolloverFees;
     private List<byte[]> previousVerifiers;
-    private List<BalanceListItem> items;
+    private List<BalanceListChunk> chunks;
+    private int itemCount;
+    private volatile byte[] hash = null;
 
     public BalanceList(long blockHeight, byte rolloverFees, List<byte[]> previousVerifiers,
                        List<BalanceListItem> items) {
 
+        List<BalanceListItem> normalizedItems = normalize(items);
+        byte[] itemBytes = new byte[normalizedItems.size() * bytesPerItem];
+        ByteBuffer buffer = ByteBuffer.wrap(itemBytes);
+        for (BalanceListItem item : normalizedItems) {
+            buffer.put(item.getIdentifier());
+            buffer.putLong(item.getBalance());
+            buffer.putShort(item.getBlocksUntilFee());
+        }
+
+        this.blockHeight = blockHeight;
+        this.rolloverFees = rolloverFees;
+        this.previousVerifiers = previousVerifiers;
+        this.chunks = BalanceListChunk.chunksFor(itemBytes, normalizedItems.size(), blockHeight);
+        this.itemCount = normalizedItems.size();
+    }
+
+    private BalanceList(long blockHeight, byte rolloverFees, List<byte[]> previousVerifiers,
+                        List<BalanceListChunk> chunks, int itemCount) {
+
         this.blockHeight = blockHeight;
         this.rolloverFees = rolloverFees;
         this.previousVerifiers = previousVerifiers;
-        this.items = normalize(items);
+        this.chunks = chunks;
+        this.itemCount = itemCount;
+    }
+
+    // The items of the chunks must be in canonical order across all chunks.
+    static BalanceList forChunks(long blockHeight, byte rolloverFees, List<byte[]> previousVerifiers,
+                                 List<BalanceListChunk> chunks) {
+
+        int itemCount = 0;
+        for (BalanceListChunk chunk : chunks) {
+            itemCount += chunk.getItemCount();
+        }
+
+        return new BalanceList(blockHeight, rolloverFees, previousVerifiers, chunks, itemCount);
     }
 
     private static List<BalanceListItem> normalize(List<BalanceListItem> balanceItems) {
@@ -31,20 +82,7 @@ public class BalanceList implements MessageObject {
         Collections.sort(sorted, new Comparator<BalanceListItem>() {
             @Override
             public int compare(BalanceListItem pair1, BalanceListItem pair2) {
-                int result = 0;
-                byte[] identifier1 = pair1.getIdentifier();
-                byte[] identifier2 = pair2.getIdentifier();
-                for (int i = 0; i < FieldByteSize.identifier && result == 0; i++) {
-                    int byte1 = identifier1[i] & 0xff;
-                    int byte2 = identifier2[i] & 0xff;
-                    if (byte1 < byte2) {
-                        result = -1;
-                    } else if (byte2 < byte1) {
-                        result = 1;
-                    }
-                }
-
-                return result;
+                return compareIdentifiers(pair1.getIdentifier(), pair2.getIdentifier());
             }
         });
 
@@ -78,10 +116,87 @@ public class BalanceList implements MessageObject {
         return new ArrayList<>(previousVerifiers);
     }
 
-    public List<BalanceListItem> getItems() {
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    public List<BalanceListItem> copyItems() {
+
+        // The list is stored as packed chunks, so this makes a new item for every account on each call. Callers that
+        // only need identifiers or balances should use the chunks or balanceFor() instead.
+        List<BalanceListItem> items = new ArrayList<>(itemCount);
+        for (BalanceListChunk chunk : chunks) {
+            for (int i = 0; i < chunk.getItemCount(); i++) {
+                items.add(chunk.itemAt(i, blockHeight));
+            }
+        }
+
         return items;
     }
 
+    public long balanceFor(byte[] identifier) {
+
+        // Find the first chunk whose last identifier is not less than the identifier, then search within that chunk.
+        // Accounts that are not in the list have a balance of zero.
+        int low = 0;
+        int high = chunks.size() - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            BalanceListChunk chunk = chunks.get(middle);
+            if (chunk.compareIdentifierAt(chunk.getItemCount() - 1, identifier) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        long balance = 0L;
+        if (low < chunks.size()) {
+            BalanceListChunk chunk = chunks.get(low);
+            int itemLow = 0;
+            int itemHigh = chunk.getItemCount() - 1;
+            while (itemLow <= itemHigh) {
+                int middle = (itemLow + itemHigh) >>> 1;
+                int comparison = chunk.compareIdentifierAt(middle, identifier);
+                if (comparison < 0) {
+                    itemLow = middle + 1;
+                } else if (comparison > 0) {
+                    itemHigh = middle - 1;
+                } else {
+                    balance = chunk.balanceAt(middle);
+                    itemLow = itemHigh + 1;
+                }
+            }
+        }
+
+        return balance;
+    }
+
+    List<BalanceListChunk> getChunks() {
+        return chunks;
+    }
+
+    static int compareIdentifiers(byte[] identifier1, byte[] identifier2) {
+        return compareIdentifiers(identifier1, 0, identifier2, 0);
+    }
+
+    static int compareIdentifiers(byte[] array1, int offset1, byte[] array2, int offset2) {
+
+        // This is the same unsigned, byte-by-byte ordering that is used to sort the items.
+        int result = 0;
+        for (int i = 0; i < FieldByteSize.identifier && result == 0; i++) {
+            int byte1 = array1[offset1 + i] & 0xff;
+            int byte2 = array2[offset2 + i] & 0xff;
+            if (byte1 < byte2) {
+                result = -1;
+            } else if (byte2 < byte1) {
+                result = 1;
+            }
+        }
+
+        return result;
+    }
+
     public static BalanceList fromByteBuffer(ByteBuffer buffer) {
 
         long blockHeight = buffer.getLong();
@@ -95,29 +210,44 @@ public class BalanceList implements MessageObject {
             previousVerifiers.add(verifierIdentifier);
         }
 
-        long numberOfPairs = buffer.getInt();
-        List<BalanceListItem> items = new ArrayList<>();
-        for (int i = 0; i < numberOfPairs; i++) {
-            byte[] identifier = new byte[FieldByteSize.identifier];
-            buffer.get(identifier);
-            long balance = buffer.getLong();
-            short blocksUntilFee = buffer.getShort();
-            items.add(new BalanceListItem(identifier, balance, blocksUntilFee));
+        int numberOfPairs = Math.max(buffer.getInt(), 0);
+        if (numberOfPairs > buffer.remaining() / bytesPerItem) {
+            throw new BufferUnderflowException();
+        }
+        byte[] itemBytes = new byte[numberOfPairs * bytesPerItem];
+        buffer.get(itemBytes);
+
+        // Lists that were produced by this class are already in canonical order, so the item bytes can be used
+        // directly. Any other list is normalized.
+        BalanceList balanceList = new BalanceList(blockHeight, rolloverFees, previousVerifiers,
+                BalanceListChunk.chunksFor(itemBytes, numberOfPairs, blockHeight), numberOfPairs);
+        if (!itemsAreCanonical(itemBytes, numberOfPairs)) {
+            balanceList = new BalanceList(blockHeight, rolloverFees, previousVerifiers, balanceList.copyItems());
+        }
+
+        return balanceList;
+    }
+
+    private static boolean itemsAreCanonical(byte[] itemBytes, int itemCount) {
+
+        boolean canonical = true;
+        ByteBuffer buffer = ByteBuffer.wrap(itemBytes);
+        for (int i = 0; i < itemCount && canonical; i++) {
+            canonical = buffer.getLong(i * bytesPerItem + FieldByteSize.identifier) > 0L &&
+                    (i == 0 || compareIdentifiers(itemBytes, (i - 1) * bytesPerItem, itemBytes, i * bytesPerItem) < 0);
         }
 
-        return new BalanceList(blockHeight, rolloverFees, previousVerifiers, items);
+        return canonical;
     }
 
     @Override
     public int getByteSize() {
-        int numberOfPreviousVerifiers = (int) Math.min(blockHeight, 9);
-        int bytesPerItem = FieldByteSize.identifier + FieldByteSize.transactionAmount + FieldByteSize.blocksUntilFee;
 
         return FieldByteSize.blockHeight +
                 FieldByteSize.rolloverTransactionFees +
-                FieldByteSize.identifier * numberOfPreviousVerifiers +
+                FieldByteSize.identifier * previousVerifiers.size() +
                 FieldByteSize.balanceListLength +
-                bytesPerItem * items.size();
+                bytesPerItem * itemCount;
     }
 
     @Override
@@ -125,16 +255,9 @@ public class BalanceList implements MessageObject {
 
         byte[] result = new byte[getByteSize()];
         ByteBuffer buffer = ByteBuffer.wrap(result);
-        buffer.putLong(blockHeight);
-        buffer.put(rolloverFees);
-        for (byte[] previousVerifier : previousVerifiers) {
-            buffer.put(previousVerifier);
-        }
-        buffer.putInt(items.size());
-        for (BalanceListItem item : items) {
-            buffer.put(item.getIdentifier());
-            buffer.putLong(item.getBalance());
-            buffer.putShort(item.getBlocksUntilFee());
+        buffer.put(headerBytes());
+        for (BalanceListChunk chunk : chunks) {
+            chunk.putItems(buffer, blockHeight);
         }
 
         return result;
@@ -142,7 +265,35 @@ public class BalanceList implements MessageObject {
 
     public byte[] getHash() {
 
-        return HashUtil.doubleSHA256(getBytes());
+        // A balance list does not change after it is created, so the hash is only calculated once. The chunks are
+        // passed to the digest one at a time, so the serialized list is never assembled.
+        byte[] hash = this.hash;
+        if (hash == null) {
+            MessageDigest digest = HashUtil.threadDigest();
+            ByteBuffer buffer = hashBuffer.get();
+            digest.update(headerBytes());
+            for (BalanceListChunk chunk : chunks) {
+                digest.update(chunk.itemsForHashing(blockHeight, buffer), 0, chunk.getItemCount() * bytesPerItem);
+            }
+            hash = digest.digest(digest.digest());
+            this.hash = hash;
+        }
+
+        return hash;
+    }
+
+    private byte[] headerBytes() {
+
+        byte[] result = new byte[getByteSize() - bytesPerItem * itemCount];
+        ByteBuffer buffer = ByteBuffer.wrap(result);
+        buffer.putLong(blockHeight);
+        buffer.put(rolloverFees);
+        for (byte[] previousVerifier : previousVerifiers) {
+            buffer.put(previousVerifier);
+        }
+        buffer.putInt(itemCount);
+
+        return result;
     }
 
     @Override
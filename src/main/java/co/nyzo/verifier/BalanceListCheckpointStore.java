@@ -0,0 +1,138 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.FileUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BalanceListCheckpointStore {
+
+    // This store allows the balance list of any frozen height to be reconstructed without replaying blocks. The chain
+    // is divided into segments of a configurable number of heights. Each segment file begins with a full balance list
+    // for the first height of the segment and is followed by one delta for each subsequent height, appended as blocks
+    // are frozen. Reconstruction reads a single segment and applies at most (interval - 1) deltas.
+
+    public static final File checkpointDirectory = new File(new File(Verifier.dataRootDirectory, "blocks"),
+            "balance_lists");
+
+    private static final String checkpointIntervalKey = "balance_list_checkpoint_interval";
+    private static final long checkpointInterval = Math.max(1, PreferencesUtil.getInt(checkpointIntervalKey, 1000));
+
+    // This is the state of the segment currently being appended: the height and balance list of its last entry.
+    private static long lastRecordedHeight = -1L;
+    private static BalanceList lastRecordedBalanceList = null;
+
+    public static long getCheckpointInterval() {
+
+        return checkpointInterval;
+    }
+
+    public static File segmentFileForBlockHeight(long blockHeight) {
+
+        long startHeight = blockHeight / checkpointInterval * checkpointInterval;
+        return new File(checkpointDirectory, String.format("b_%09d.%s", startHeight, "nyzobalance"));
+    }
+
+    public static synchronized void recordBalanceList(BalanceList balanceList) {
+
+        try {
+            long blockHeight = balanceList.getBlockHeight();
+            File segmentFile = segmentFileForBlockHeight(blockHeight);
+            if (blockHeight % checkpointInterval == 0L) {
+
+                // This is the start of a segment. Write the full balance list, replacing any existing file.
+                checkpointDirectory.mkdirs();
+                FileUtil.writeFile(Paths.get(segmentFile.getAbsolutePath()), balanceList.getBytes());
+                lastRecordedHeight = blockHeight;
+                lastRecordedBalanceList = balanceList;
+
+            } else if (blockHeight > lastRecordedHeight || lastRecordedBalanceList == null) {
+
+                // If the segment state is not for the previous height, as after a restart, load it from the file. Any
+                // partial entry at the end of the file is removed so that the next delta is appended cleanly.
+                if (lastRecordedHeight != blockHeight - 1L || lastRecordedBalanceList == null) {
+                    lastRecordedBalanceList = loadSegment(segmentFile, Long.MAX_VALUE, true);
+                    lastRecordedHeight = lastRecordedBalanceList == null ? -1L :
+                            lastRecordedBalanceList.getBlockHeight();
+                }
+
+                // A delta can only be appended when the segment ends at the previous height. Otherwise, the segment
+                // has a gap, and heights after the gap are reconstructed from the block files instead.
+                BalanceListDelta delta = BalanceListDelta.forBalanceLists(lastRecordedBalanceList, balanceList);
+                if (delta != null) {
+                    Files.write(Paths.get(segmentFile.getAbsolutePath()), delta.getBytes(), StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND);
+                    lastRecordedHeight = blockHeight;
+                    lastRecordedBalanceList = balanceList;
+                }
+            }
+        } catch (Exception reportOnly) {
+            System.err.println("unable to record balance list checkpoint: " + PrintUtil.printException(reportOnly));
+            lastRecordedHeight = -1L;
+            lastRecordedBalanceList = null;
+        }
+    }
+
+    public static BalanceList balanceListForHeight(long blockHeight) {
+
+        BalanceList balanceList = loadSegment(segmentFileForBlockHeight(blockHeight), blockHeight, false);
+        if (balanceList != null && balanceList.getBlockHeight() != blockHeight) {
+            balanceList = null;
+        }
+
+        return balanceList;
+    }
+
+    private static BalanceList loadSegment(File segmentFile, long maximumHeight, boolean truncatePartialEntry) {
+
+        // The deltas are applied together, so the balance list is only built and hashed once at the end.
+        BalanceList balanceList = null;
+        if (segmentFile.exists()) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(segmentFile.getAbsolutePath())));
+                BalanceList startBalanceList = BalanceList.fromByteBuffer(buffer);
+                long height = startBalanceList.getBlockHeight();
+                List<BalanceListDelta> deltas = new ArrayList<>();
+                int validLength = buffer.position();
+                while (height < maximumHeight && buffer.hasRemaining()) {
+                    BalanceListDelta delta;
+                    try {
+                        delta = BalanceListDelta.fromByteBuffer(buffer);
+                    } catch (Exception ignored) {
+                        delta = null;
+                    }
+
+                    if (delta == null || delta.getBlockHeight() != height + 1L) {
+                        buffer.position(buffer.limit());
+                    } else {
+                        height = delta.getBlockHeight();
+                        deltas.add(delta);
+                        validLength = buffer.position();
+                    }
+                }
+
+                balanceList = BalanceListDelta.applyAll(startBalanceList, deltas);
+                if (balanceList == null) {
+                    System.err.println("incorrect hash for balance list checkpoint at height " + height);
+                }
+
+                if (truncatePartialEntry && validLength < buffer.limit()) {
+                    try (FileChannel channel = FileChannel.open(Paths.get(segmentFile.getAbsolutePath()),
+                            StandardOpenOption.WRITE)) {
+                        channel.truncate(validLength);
+                    }
+                }
+            } catch (Exception ignored) { }
+        }
+
+        return balanceList;
+    }
+}
@@ -0,0 +1,154 @@
+package co.nyzo.verifier;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+class BalanceListChunk {
+
+    // This is a run of consecutive balance-list items in packed form. Chunks are never modified, so balance lists of
+    // neighboring heights share every chunk that a block did not change.
+    //
+    // Each item's blocks-until-fee counter decreases by one at every block, which would otherwise change every chunk
+    // at every block. Instead, the stored counters are the counters at the base height of the chunk, and the counter
+    // at a later height is the stored counter minus the number of blocks since the base height, with a minimum of
+    // zero. A chunk only needs to be rewritten when one of its accounts changes or owes the periodic fee, and the
+    // lowest height at which any account in the chunk owes the fee is kept so that this can be checked directly.
+
+    static final int targetItemCount = 32;
+    static final int maximumItemCount = targetItemCount * 2;
+
+    private final byte[] items;
+    private final int itemCount;
+    private final long baseHeight;
+    private final long feeDueHeight;
+    private final long balanceSum;
+
+    private BalanceListChunk(byte[] items, int itemCount, long baseHeight) {
+
+        this.items = items;
+        this.itemCount = itemCount;
+        this.baseHeight = baseHeight;
+
+        // An item owes the periodic fee in the first block after its counter reaches zero. The transfer account
+        // never owes the fee.
+        long feeDueHeight = Long.MAX_VALUE;
+        long balanceSum = 0L;
+        for (int i = 0; i < itemCount; i++) {
+            balanceSum += balanceAt(i);
+            if (compareIdentifierAt(i, BalanceListItem.transferIdentifier) != 0) {
+                feeDueHeight = Math.min(feeDueHeight, baseHeight + storedBlocksUntilFeeAt(i) + 1L);
+            }
+        }
+        this.feeDueHeight = feeDueHeight;
+        this.balanceSum = balanceSum;
+    }
+
+    static List<BalanceListChunk> chunksFor(byte[] itemBytes, int itemCount, long baseHeight) {
+
+        // The items are divided evenly into chunks of no more than the maximum size. A run that is already within
+        // the maximum size remains a single chunk.
+        List<BalanceListChunk> chunks = new ArrayList<>();
+        int numberOfChunks = itemCount <= maximumItemCount ? 1 :
+                (itemCount + targetItemCount - 1) / targetItemCount;
+        int startIndex = 0;
+        for (int i = 0; i < numberOfChunks && itemCount > 0; i++) {
+            int endIndex = (int) ((long) itemCount * (i + 1) / numberOfChunks);
+            byte[] items = new byte[(endIndex - startIndex) * BalanceList.bytesPerItem];
+            System.arraycopy(itemBytes, startIndex * BalanceList.bytesPerItem, items, 0, items.length);
+            chunks.add(new BalanceListChunk(items, endIndex - startIndex, baseHeight));
+            startIndex = endIndex;
+        }
+
+        return chunks;
+    }
+
+    int getItemCount() {
+        return itemCount;
+    }
+
+    long getBaseHeight() {
+        return baseHeight;
+    }
+
+    long getFeeDueHeight() {
+        return feeDueHeight;
+    }
+
+    long getBalanceSum() {
+        return balanceSum;
+    }
+
+    byte[] identifierAt(int index) {
+
+        byte[] identifier = new byte[FieldByteSize.identifier];
+        System.arraycopy(items, index * BalanceList.bytesPerItem, identifier, 0, FieldByteSize.identifier);
+        return identifier;
+    }
+
+    long balanceAt(int index) {
+
+        long balance = 0L;
+        int offset = index * BalanceList.bytesPerItem + FieldByteSize.identifier;
+        for (int i = 0; i < FieldByteSize.transactionAmount; i++) {
+            balance = (balance << 8) | (items[offset + i] & 0xffL);
+        }
+
+        return balance;
+    }
+
+    short blocksUntilFeeAt(int index, long blockHeight) {
+        return (short) Math.max(0L, storedBlocksUntilFeeAt(index) - (blockHeight - baseHeight));
+    }
+
+    private short storedBlocksUntilFeeAt(int index) {
+
+        int offset = index * BalanceList.bytesPerItem + FieldByteSize.identifier + FieldByteSize.transactionAmount;
+        return (short) (((items[offset] & 0xff) << 8) | (items[offset + 1] & 0xff));
+    }
+
+    BalanceListItem itemAt(int index, long blockHeight) {
+        return new BalanceListItem(identifierAt(index), balanceAt(index), blocksUntilFeeAt(index, blockHeight));
+    }
+
+    int compareIdentifierAt(int index, byte[] identifier) {
+        return BalanceList.compareIdentifiers(items, index * BalanceList.bytesPerItem, identifier, 0);
+    }
+
+    int compareIdentifierAt(int index, BalanceListChunk otherChunk, int otherIndex) {
+        return BalanceList.compareIdentifiers(items, index * BalanceList.bytesPerItem, otherChunk.items,
+                otherIndex * BalanceList.bytesPerItem);
+    }
+
+    void putIdentifierAt(int index, ByteBuffer buffer) {
+        buffer.put(items, index * BalanceList.bytesPerItem, FieldByteSize.identifier);
+    }
+
+    void putItems(ByteBuffer buffer, long blockHeight) {
+
+        // When the counters are current, the items are copied directly.
+        if (blockHeight == baseHeight) {
+            buffer.put(items, 0, itemCount * BalanceList.bytesPerItem);
+        } else {
+            for (int i = 0; i < itemCount; i++) {
+                buffer.put(items, i * BalanceList.bytesPerItem, FieldByteSize.identifier +
+                        FieldByteSize.transactionAmount);
+                buffer.putShort(blocksUntilFeeAt(i, blockHeight));
+            }
+        }
+    }
+
+    byte[] itemsForHashing(long blockHeight, ByteBuffer scratchBuffer) {
+
+        // This avoids a copy when the counters are current. Otherwise, the items are written to the scratch buffer,
+        // which must have room for the maximum chunk size.
+        byte[] result = items;
+        if (blockHeight != baseHeight) {
+            scratchBuffer.clear();
+            putItems(scratchBuffer, blockHeight);
+            result = scratchBuffer.array();
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,343 @@
+package co.nyzo.verifier;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class BalanceListDelta implements MessageObject {
+
+    // This is the difference between the balance list of one block and the balance list of the block before it. Every
+    // item has its blocks-until-fee counter decremented at every block, so an item that changed only in that way is
+    // implied rather than stored. Items with any other change are stored in full, and items that left the list are
+    // stored as identifiers. The previous-verifier window is advanced by the single verifier that is stored here, and
+    // the hash of the resulting balance list is stored so that every application can be checked.
+
+    // In block files, the balance-list position holds either a full balance list, which begins with a non-negative
+    // block height, or this marker followed by a delta.
+    public static final long blockFileMarker = -1L;
+
+    private long blockHeight;
+    private byte rolloverFees;
+    private byte[] appendedVerifier;
+    private byte[] balanceListHash;
+    private List<BalanceListItem> changedItems;
+    private List<byte[]> removedIdentifiers;
+
+    public BalanceListDelta(long blockHeight, byte rolloverFees, byte[] appendedVerifier, byte[] balanceListHash,
+                            List<BalanceListItem> changedItems, List<byte[]> removedIdentifiers) {
+
+        this.blockHeight = blockHeight;
+        this.rolloverFees = rolloverFees;
+        this.appendedVerifier = appendedVerifier;
+        this.balanceListHash = balanceListHash;
+        this.changedItems = changedItems;
+        this.removedIdentifiers = removedIdentifiers;
+    }
+
+    public long getBlockHeight() {
+        return blockHeight;
+    }
+
+    public byte getRolloverFees() {
+        return rolloverFees;
+    }
+
+    public byte[] getAppendedVerifier() {
+        return appendedVerifier;
+    }
+
+    public byte[] getBalanceListHash() {
+        return balanceListHash;
+    }
+
+    public List<BalanceListItem> getChangedItems() {
+        return changedItems;
+    }
+
+    public List<byte[]> getRemovedIdentifiers() {
+        return removedIdentifiers;
+    }
+
+    public static BalanceListDelta forBalanceLists(BalanceList previousBalanceList, BalanceList balanceList) {
+
+        // A delta can only be made between consecutive heights.
+        BalanceListDelta delta = null;
+        if (previousBalanceList != null && balanceList != null &&
+                previousBalanceList.getBlockHeight() == balanceList.getBlockHeight() - 1) {
+
+            // Both item lists are sorted by identifier, so they are compared in a single merge pass. Item objects are
+            // only made for the items that are stored in the delta. A chunk that both lists share contains only
+            // implied changes, so it is skipped as a whole.
+            long previousHeight = previousBalanceList.getBlockHeight();
+            long height = balanceList.getBlockHeight();
+            List<BalanceListChunk> previousChunks = previousBalanceList.getChunks();
+            List<BalanceListChunk> chunks = balanceList.getChunks();
+            List<BalanceListItem> changedItems = new ArrayList<>();
+            List<byte[]> removedIdentifiers = new ArrayList<>();
+            int previousChunkIndex = 0;
+            int previousIndex = 0;
+            int chunkIndex = 0;
+            int index = 0;
+            while (previousChunkIndex < previousChunks.size() || chunkIndex < chunks.size()) {
+                BalanceListChunk previousChunk = previousChunkIndex < previousChunks.size() ?
+                        previousChunks.get(previousChunkIndex) : null;
+                BalanceListChunk chunk = chunkIndex < chunks.size() ? chunks.get(chunkIndex) : null;
+                if (previousIndex == 0 && index == 0 && previousChunk == chunk) {
+                    previousChunkIndex++;
+                    chunkIndex++;
+                } else {
+                    int comparison;
+                    if (previousChunk == null) {
+                        comparison = 1;
+                    } else if (chunk == null) {
+                        comparison = -1;
+                    } else {
+                        comparison = previousChunk.compareIdentifierAt(previousIndex, chunk, index);
+                    }
+
+                    if (comparison < 0) {
+                        removedIdentifiers.add(previousChunk.identifierAt(previousIndex));
+                    } else if (comparison > 0) {
+                        changedItems.add(chunk.itemAt(index, height));
+                    } else {
+                        int impliedBlocksUntilFee = Math.max(0,
+                                previousChunk.blocksUntilFeeAt(previousIndex, previousHeight) - 1);
+                        if (previousChunk.balanceAt(previousIndex) != chunk.balanceAt(index) ||
+                                impliedBlocksUntilFee != chunk.blocksUntilFeeAt(index, height)) {
+                            changedItems.add(chunk.itemAt(index, height));
+                        }
+                    }
+
+                    if (comparison <= 0) {
+                        previousIndex++;
+                        if (previousIndex >= previousChunk.getItemCount()) {
+                            previousChunkIndex++;
+                            previousIndex = 0;
+                        }
+                    }
+                    if (comparison >= 0) {
+                        index++;
+                        if (index >= chunk.getItemCount()) {
+                            chunkIndex++;
+                            index = 0;
+                        }
+                    }
+                }
+            }
+
+            List<byte[]> previousVerifiers = balanceList.getPreviousVerifiers();
+            byte[] appendedVerifier = previousVerifiers.isEmpty() ? new byte[FieldByteSize.identifier] :
+                    previousVerifiers.get(previousVerifiers.size() - 1);
+
+            delta = new BalanceListDelta(balanceList.getBlockHeight(), balanceList.getRolloverFees(), appendedVerifier,
+                    balanceList.getHash(), changedItems, removedIdentifiers);
+        }
+
+        return delta;
+    }
+
+    private List<BalanceListChunk> applyToChunks(List<BalanceListChunk> previousChunks) {
+
+        // The changed items and removed identifiers are assigned to chunks as in AccountStateEngine: a chunk receives
+        // those after the last identifier of the chunk before it, up to and including its own last identifier, and the
+        // last chunk also receives the rest. A chunk that receives nothing has only implied counter changes, which its
+        // base height already accounts for, so it is shared with the previous list.
+        List<BalanceListChunk> chunks = new ArrayList<>(previousChunks.size() + 1);
+        int changedIndex = 0;
+        int removedIndex = 0;
+        for (int chunkIndex = 0; chunkIndex < Math.max(previousChunks.size(), 1); chunkIndex++) {
+
+            BalanceListChunk chunk = chunkIndex < previousChunks.size() ? previousChunks.get(chunkIndex) : null;
+            boolean isLastChunk = chunkIndex >= previousChunks.size() - 1;
+            int changedEnd = changedIndex;
+            while (changedEnd < changedItems.size() && (isLastChunk || chunk.compareIdentifierAt(
+                    chunk.getItemCount() - 1, changedItems.get(changedEnd).getIdentifier()) >= 0)) {
+                changedEnd++;
+            }
+            int removedEnd = removedIndex;
+            while (removedEnd < removedIdentifiers.size() && (isLastChunk || chunk.compareIdentifierAt(
+                    chunk.getItemCount() - 1, removedIdentifiers.get(removedEnd)) >= 0)) {
+                removedEnd++;
+            }
+
+            if (chunk != null && changedEnd == changedIndex && removedEnd == removedIndex) {
+                chunks.add(chunk);
+            } else {
+                chunks.addAll(rewriteChunk(chunk, changedIndex, changedEnd, removedIndex, removedEnd));
+            }
+            changedIndex = changedEnd;
+            removedIndex = removedEnd;
+        }
+
+        return chunks;
+    }
+
+    private List<BalanceListChunk> rewriteChunk(BalanceListChunk chunk, int changedStart, int changedEnd,
+                                                int removedStart, int removedEnd) {
+
+        // The items of the chunk, the changed items, and the removed identifiers are all sorted by identifier, so the
+        // new items are produced in sorted order with a single merge pass. The chunk is null if the previous list had
+        // no items.
+        int previousItemCount = chunk == null ? 0 : chunk.getItemCount();
+        byte[] itemBytes = new byte[(previousItemCount + changedEnd - changedStart) * BalanceList.bytesPerItem];
+        ByteBuffer itemBuffer = ByteBuffer.wrap(itemBytes);
+        int itemCount = 0;
+        int previousIndex = 0;
+        int changedIndex = changedStart;
+        int removedIndex = removedStart;
+        while (previousIndex < previousItemCount || changedIndex < changedEnd) {
+            int comparison;
+            if (previousIndex >= previousItemCount) {
+                comparison = 1;
+            } else if (changedIndex >= changedEnd) {
+                comparison = -1;
+            } else {
+                comparison = chunk.compareIdentifierAt(previousIndex, changedItems.get(changedIndex).getIdentifier());
+            }
+
+            if (comparison < 0) {
+                while (removedIndex < removedEnd &&
+                        chunk.compareIdentifierAt(previousIndex, removedIdentifiers.get(removedIndex)) > 0) {
+                    removedIndex++;
+                }
+                if (removedIndex >= removedEnd ||
+                        chunk.compareIdentifierAt(previousIndex, removedIdentifiers.get(removedIndex)) != 0) {
+                    chunk.putIdentifierAt(previousIndex, itemBuffer);
+                    itemBuffer.putLong(chunk.balanceAt(previousIndex));
+                    itemBuffer.putShort(chunk.blocksUntilFeeAt(previousIndex, blockHeight));
+                    itemCount++;
+                }
+                previousIndex++;
+            } else {
+                BalanceListItem item = changedItems.get(changedIndex);
+                itemBuffer.put(item.getIdentifier());
+                itemBuffer.putLong(item.getBalance());
+                itemBuffer.putShort(item.getBlocksUntilFee());
+                itemCount++;
+                changedIndex++;
+                if (comparison == 0) {
+                    previousIndex++;
+                }
+            }
+        }
+
+        return BalanceListChunk.chunksFor(itemBytes, itemCount, blockHeight);
+    }
+
+    public List<byte[]> applyToPreviousVerifiers(List<byte[]> previousVerifiers) {
+
+        List<byte[]> verifiers = new ArrayList<>(previousVerifiers);
+        verifiers.add(appendedVerifier);
+        while (verifiers.size() > Math.min(blockHeight, 9)) {
+            verifiers.remove(0);
+        }
+
+        return verifiers;
+    }
+
+    public BalanceList applyTo(BalanceList previousBalanceList) {
+
+        return applyAll(previousBalanceList, Collections.singletonList(this));
+    }
+
+    public static BalanceList applyAll(BalanceList balanceList, List<BalanceListDelta> deltas) {
+
+        // The deltas, which must be for consecutive heights after the height of the list, are applied to the chunks
+        // of the list directly. Each delta only rewrites the chunks that it changes, and the others are shared with
+        // the list it started from. The balance list is built once at the end, and it is hashed once. The hash of the
+        // last delta covers every delta before it.
+        BalanceList result = null;
+        if (balanceList != null) {
+            long height = balanceList.getBlockHeight();
+            List<byte[]> previousVerifiers = balanceList.getPreviousVerifiers();
+            List<BalanceListChunk> chunks = balanceList.getChunks();
+            boolean consecutive = true;
+            for (int i = 0; i < deltas.size() && consecutive; i++) {
+                BalanceListDelta delta = deltas.get(i);
+                consecutive = delta.getBlockHeight() == height + 1L;
+                if (consecutive) {
+                    height = delta.getBlockHeight();
+                    previousVerifiers = delta.applyToPreviousVerifiers(previousVerifiers);
+                    chunks = delta.applyToChunks(chunks);
+                }
+            }
+
+            if (deltas.isEmpty()) {
+                result = balanceList;
+            } else if (consecutive) {
+                BalanceListDelta lastDelta = deltas.get(deltas.size() - 1);
+                result = BalanceList.forChunks(height, lastDelta.getRolloverFees(), previousVerifiers, chunks);
+                if (!ByteUtil.arraysAreEqual(result.getHash(), lastDelta.getBalanceListHash())) {
+                    result = null;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public int getByteSize() {
+
+        int bytesPerItem = FieldByteSize.identifier + FieldByteSize.transactionAmount + FieldByteSize.blocksUntilFee;
+
+        return FieldByteSize.blockHeight +
+                FieldByteSize.rolloverTransactionFees +
+                FieldByteSize.identifier +
+                FieldByteSize.hash +
+                FieldByteSize.balanceListLength +
+                bytesPerItem * changedItems.size() +
+                FieldByteSize.balanceListLength +
+                FieldByteSize.identifier * removedIdentifiers.size();
+    }
+
+    @Override
+    public byte[] getBytes() {
+
+        byte[] result = new byte[getByteSize()];
+        ByteBuffer buffer = ByteBuffer.wrap(result);
+        buffer.putLong(blockHeight);
+        buffer.put(rolloverFees);
+        buffer.put(appendedVerifier);
+        buffer.put(balanceListHash);
+        buffer.putInt(changedItems.size());
+        for (BalanceListItem item : changedItems) {
+            buffer.put(item.getIdentifier());
+            buffer.putLong(item.getBalance());
+            buffer.putShort(item.getBlocksUntilFee());
+        }
+        buffer.putInt(removedIdentifiers.size());
+        for (byte[] identifier : removedIdentifiers) {
+            buffer.put(identifier);
+        }
+
+        return result;
+    }
+
+    public static BalanceListDelta fromByteBuffer(ByteBuffer buffer) {
+
+        long blockHeight = buffer.getLong();
+        byte rolloverFees = buffer.get();
+        byte[] appendedVerifier = Message.getByteArray(buffer, FieldByteSize.identifier);
+        byte[] balanceListHash = Message.getByteArray(buffer, FieldByteSize.hash);
+
+        int numberOfChangedItems = buffer.getInt();
+        List<BalanceListItem> changedItems = new ArrayList<>();
+        for (int i = 0; i < numberOfChangedItems; i++) {
+            byte[] identifier = Message.getByteArray(buffer, FieldByteSize.identifier);
+            long balance = buffer.getLong();
+            short blocksUntilFee = buffer.getShort();
+            changedItems.add(new BalanceListItem(identifier, balance, blocksUntilFee));
+        }
+
+        int numberOfRemovedIdentifiers = buffer.getInt();
+        List<byte[]> removedIdentifiers = new ArrayList<>();
+        for (int i = 0; i < numberOfRemovedIdentifiers; i++) {
+            removedIdentifiers.add(Message.getByteArray(buffer, FieldByteSize.identifier));
+        }
+
+        return new BalanceListDelta(blockHeight, rolloverFees, appendedVerifier, balanceListHash, changedItems,
+                removedIdentifiers);
+    }
+}
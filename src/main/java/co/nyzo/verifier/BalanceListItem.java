@@ -5,7 +5,7 @@ public class BalanceListItem {
     public static final byte[] transferIdentifier = ByteUtil.byteArrayFromHexString("0000000000000000-" +
             "0000000000000000-0000000000000000-0000000000000001", FieldByteSize.identifier);
 
-    private static final short blocksBetweenFee = 500;
+    static final short blocksBetweenFee = 500;
 
     private byte[] identifier;
     private long balance;
@@ -5,13 +5,26 @@ import co.nyzo.verifier.util.PrintUtil;
 
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class BalanceListManager {
 
+    // Balance lists of frozen blocks are kept by height: the Genesis list, the retention-edge list, the frozen-edge
+    // list, and a checkpoint at every checkpoint interval between the retention edge and the frozen edge. Any other
+    // list, including all lists of blocks that are not frozen, is kept by hash in a least-recently-used map. A list
+    // that is not cached is derived from the nearest cached list before it, so the replay for a frozen block is
+    // limited by the checkpoint interval, and the replay for an unfrozen block is limited by its distance from the
+    // frozen edge plus the checkpoint interval. If no checkpoint is cached, such as after startup, the checkpoint
+    // list is read from the block store. Lists are only read from the block store in the retention window, and they
+    // are read outside the lock of this class, so a slow read does not stall other callers.
+
+    private static final long checkpointInterval = 10L;
+    private static final int maximumMapSize = 40;
+
     private static long totalQueries = 0;
+    private static long cacheHits = 0;
     private static long totalWork = 0;
+    private static long maximumWork = 0;
+    private static long storeLoads = 0;
 
     // TODO: remove these; they are for debugging only
     private static BalanceList genesisList = null;
@@ -19,19 +32,41 @@ public class BalanceListManager {
     private static BalanceList frozenEdgeList = null;
 
     private static long accountSetHeight = -1L;
-    private static Set<ByteBuffer> accountsInSystem = ConcurrentHashMap.newKeySet();
 
-    private static final long maximumMapSize = 6;
+    // This is a map from block height to balance list for frozen blocks.
+    private static final TreeMap<Long, BalanceList> frozenBalanceListMap = new TreeMap<>();
 
-    // This is a map from balance list hash to balance list.
-    private static final Map<ByteBuffer, BalanceList> balanceListMap = new HashMap<>();
+    // This is a map from balance list hash to balance list, in order of access.
+    private static final Map<ByteBuffer, BalanceList> balanceListMap = new LinkedHashMap<ByteBuffer, BalanceList>(16,
+            0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, BalanceList> eldest) {
+            return size() > maximumMapSize;
+        }
+    };
 
-    public static synchronized BalanceList balanceListForBlock(Block block, StringBuilder nullReason) {
+    public static BalanceList balanceListForBlock(Block block, StringBuilder nullReason) {
 
         if (nullReason == null) {
             nullReason = new StringBuilder();
         }
 
+        // If the list cannot be derived from the cached lists, the derivation provides the block whose list should be
+        // read from the block store. The list is read without holding the lock, and the derivation is repeated once.
+        // The second derivation does not request another read.
+        Block[] storeBlock = new Block[1];
+        BalanceList balanceList = derivedBalanceList(block, nullReason, storeBlock);
+        if (balanceList == null && storeBlock[0] != null) {
+            storedBalanceList(storeBlock[0]);
+            balanceList = derivedBalanceList(block, nullReason, null);
+        }
+
+        return balanceList;
+    }
+
+    private static synchronized BalanceList derivedBalanceList(Block block, StringBuilder nullReason,
+                                                               Block[] storeBlock) {
+
         // Only proceed if the block is at or past the retention window start height or is the Genesis block.
         BalanceList balanceList = null;
         if (block != null && (block.getBlockHeight() >= BlockManager.getRetentionEdgeHeight() ||
@@ -39,10 +74,13 @@ public class BalanceListManager {
 
             totalQueries++;
 
-            // First, try to get the balance list from the map.
-            balanceList = balanceListMap.get(ByteBuffer.wrap(block.getBalanceListHash()));
+            // First, try to get the balance list from the maps.
+            balanceList = cachedBalanceList(block);
+            if (balanceList != null) {
+                cacheHits++;
+            }
 
-            // If the balance list was not in the map, try to derive it.
+            // If the balance list was not in the maps, try to derive it.
             if (balanceList == null) {
 
                 if (block.getBlockHeight() == 0L) {  // special case for Genesis block
@@ -62,7 +100,8 @@ public class BalanceListManager {
 
                 } else {  // general case
 
-                    // Step back to previous blocks until we are able to find a balance list that we have.
+                    // Step back to previous blocks until we are able to find a balance list that we have. At frozen
+                    // checkpoint heights, the walk stops so that the list can be read from the block store.
                     Block startBlock = block;
                     List<Block> blocks = new ArrayList<>(Arrays.asList(startBlock));
                     BalanceList startBalanceList = null;
@@ -70,26 +109,27 @@ public class BalanceListManager {
                         startBlock = startBlock.getPreviousBlock();
                         if (startBlock != null) {
                             blocks.add(0, startBlock);
-                            startBalanceList = balanceListMap.get(ByteBuffer.wrap(startBlock.getBalanceListHash()));
+                            startBalanceList = cachedBalanceList(startBlock);
+                            if (startBalanceList == null && storeBlock != null &&
+                                    isFrozenCheckpointHeight(startBlock.getBlockHeight()) &&
+                                    isInRetentionWindow(startBlock.getBlockHeight())) {
+                                storeBlock[0] = startBlock;
+                                startBlock = null;
+                            }
                         }
                     }
 
-                    if (startBalanceList != null) {
+                    // If the walk reached a block without an available previous block, such as the retention edge,
+                    // the list of that block is read from the block store.
+                    if (startBalanceList == null && storeBlock != null && storeBlock[0] == null &&
+                            isInRetentionWindow(blocks.get(0).getBlockHeight())) {
+                        storeBlock[0] = blocks.get(0);
+                    }
 
-                        totalWork += blocks.size();
+                    if (startBalanceList != null) {
 
-                        // TODO: remove this notification
-                        StringBuilder availableHeights = new StringBuilder();
-                        String separator = "";
-                        for (BalanceList cachedBalanceList : balanceListMap.values()) {
-                            availableHeights.append(separator).append(cachedBalanceList.getBlockHeight());
-                            separator = ",";
-                        }
-                        if (blocks.size() > 20) {
-                            NotificationUtil.send("built list of size " + blocks.size() + " to derive balance list " +
-                                    "for block " + block.getBlockHeight() + " on " + Verifier.getNickname() +
-                                    " because the only heights available are " + availableHeights);
-                        }
+                        totalWork += blocks.size() - 1;
+                        maximumWork = Math.max(maximumWork, blocks.size() - 1);
 
                         balanceList = startBalanceList;
                         for (int i = 0; i < blocks.size() - 1; i++) {
@@ -106,6 +146,11 @@ public class BalanceListManager {
                                         PrintUtil.compactPrintByteArray(blocks.get(i + 1).getBalanceListHash()) +
                                         " on " + Verifier.getNickname());
                             }
+
+                            // Keep the lists at checkpoint heights so that later queries do not repeat this work.
+                            if (i < blocks.size() - 2 && isFrozenCheckpointHeight(balanceList.getBlockHeight())) {
+                                registerBalanceList(balanceList);
+                            }
                         }
 
                         registerBalanceList(balanceList);
@@ -127,6 +172,49 @@ public class BalanceListManager {
         return balanceList;
     }
 
+    private static BalanceList cachedBalanceList(Block block) {
+
+        BalanceList balanceList = frozenBalanceListMap.get(block.getBlockHeight());
+        if (balanceList == null || !ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+            balanceList = balanceListMap.get(ByteBuffer.wrap(block.getBalanceListHash()));
+        }
+
+        return balanceList;
+    }
+
+    private static void storedBalanceList(Block block) {
+
+        // This is called without the lock of this class. The checkpoint store is tried first, because it never needs
+        // more than one segment file. In the retention window, the block store reads individual files and the freeze
+        // journal, so neither read depends on historical files.
+        long blockHeight = block.getBlockHeight();
+        BalanceList balanceList = BalanceListCheckpointStore.balanceListForHeight(blockHeight);
+        if (balanceList == null || !ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+            balanceList = BlockManager.loadBalanceListFromFileForHeight(blockHeight);
+        }
+
+        if (balanceList != null && ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+            registerStoredBalanceList(balanceList);
+        }
+    }
+
+    private static synchronized void registerStoredBalanceList(BalanceList balanceList) {
+
+        storeLoads++;
+        registerBalanceList(balanceList);
+    }
+
+    private static boolean isFrozenCheckpointHeight(long blockHeight) {
+
+        return blockHeight % checkpointInterval == 0L && blockHeight <= BlockManager.getFrozenEdgeHeight();
+    }
+
+    private static boolean isInRetentionWindow(long blockHeight) {
+
+        return blockHeight >= BlockManager.getRetentionEdgeHeight() &&
+                blockHeight <= BlockManager.getFrozenEdgeHeight();
+    }
+
     public static void printBalanceList(BalanceList balanceList) {
 
         System.out.println();
@@ -141,8 +229,9 @@ public class BalanceListManager {
                         PrintUtil.compactPrintByteArray(balanceList.getPreviousVerifiers().get(i)));
             }
 
-            for (int i = 0; i < balanceList.getItems().size(); i++) {
-                BalanceListItem item = balanceList.getItems().get(i);
+            List<BalanceListItem> items = balanceList.copyItems();
+            for (int i = 0; i < items.size(); i++) {
+                BalanceListItem item = items.get(i);
                 System.out.println("item " + i + ": " + PrintUtil.compactPrintByteArray(item.getIdentifier()) + ", " +
                         item.getBalance());
             }
@@ -153,7 +242,15 @@ public class BalanceListManager {
     public static synchronized void registerBalanceList(BalanceList balanceList) {
 
         if (balanceList != null) {
-            balanceListMap.put(ByteBuffer.wrap(balanceList.getHash()), balanceList);
+
+            // Lists of frozen blocks at the Genesis height, checkpoint heights, and the frozen edge are kept by height.
+            // All others are kept by hash.
+            long height = balanceList.getBlockHeight();
+            if (height == 0L || isFrozenCheckpointHeight(height) || height == BlockManager.getFrozenEdgeHeight()) {
+                frozenBalanceListMap.put(height, balanceList);
+            } else {
+                balanceListMap.put(ByteBuffer.wrap(balanceList.getHash()), balanceList);
+            }
 
             // If this is a higher edge under the frozen edge than we have previously used to generate the account set,
             // update the accounts in the system.
@@ -161,23 +258,19 @@ public class BalanceListManager {
                     BlockManager.getFrozenEdgeHeight()) {
 
                 accountSetHeight = balanceList.getBlockHeight();
-                Set<ByteBuffer> accountsInSystem = ConcurrentHashMap.newKeySet();
-                for (BalanceListItem item : balanceList.getItems()) {
-                    accountsInSystem.add(ByteBuffer.wrap(item.getIdentifier()));
-                }
-
-                BalanceListManager.accountsInSystem = accountsInSystem;
+                AccountIndex.update(balanceList);
             }
         }
     }
 
     public static boolean accountIsInSystem(byte[] identifier) {
 
-        return accountsInSystem.contains(ByteBuffer.wrap(identifier));
+        return AccountIndex.contains(identifier);
     }
 
-    public static synchronized boolean cleanMap(Block retentionEdge, Block frozenEdge) {
+    public static boolean cleanMap(Block retentionEdge, Block frozenEdge) {
 
+        // The lists are obtained before the lock is taken, because they may need to be read from the block store.
         BalanceList retentionEdgeList = balanceListForBlock(retentionEdge, null);
         BalanceList frozenEdgeList = balanceListForBlock(frozenEdge, null);
         boolean successful = false;
@@ -190,20 +283,35 @@ public class BalanceListManager {
                 genesisList = balanceListForBlock(genesisBlock, null);
             }
 
-            BalanceListManager.genesisList = genesisList;
-            BalanceListManager.retentionEdgeList = retentionEdgeList;
-            BalanceListManager.frozenEdgeList = frozenEdgeList;
-
-            // Clear the map and register the balance lists.
-            balanceListMap.clear();
-            registerBalanceList(genesisList);
-            registerBalanceList(retentionEdgeList);
-            registerBalanceList(frozenEdgeList);
+            pruneMap(genesisList, retentionEdgeList, frozenEdgeList);
         }
 
         return successful;
     }
 
+    private static synchronized void pruneMap(BalanceList genesisList, BalanceList retentionEdgeList,
+                                              BalanceList frozenEdgeList) {
+
+        BalanceListManager.genesisList = genesisList;
+        BalanceListManager.retentionEdgeList = retentionEdgeList;
+        BalanceListManager.frozenEdgeList = frozenEdgeList;
+
+        // Remove the frozen lists that are no longer needed. The retention-edge list is kept even if it is not
+        // at a checkpoint height, because it is the lowest list available for derivation.
+        long retentionEdgeHeight = retentionEdgeList.getBlockHeight();
+        long frozenEdgeHeight = frozenEdgeList.getBlockHeight();
+        for (Long height : new ArrayList<>(frozenBalanceListMap.keySet())) {
+            if (height != 0L && height != retentionEdgeHeight && height != frozenEdgeHeight &&
+                    (height < retentionEdgeHeight || height > frozenEdgeHeight ||
+                            height % checkpointInterval != 0L)) {
+                frozenBalanceListMap.remove(height);
+            }
+        }
+        registerBalanceList(genesisList);
+        frozenBalanceListMap.put(retentionEdgeHeight, retentionEdgeList);
+        registerBalanceList(frozenEdgeList);
+    }
+
     // TODO: remove this; it is for debugging only
     public static synchronized String mapInformation() {
 
@@ -211,12 +319,15 @@ public class BalanceListManager {
         String retentionString = "r=" + (retentionEdgeList == null || frozenEdgeList == null ? "-" :
                 "f-" + (frozenEdgeList.getBlockHeight() - retentionEdgeList.getBlockHeight()));
         String frozenString = "f=" + (frozenEdgeList == null ? "-" : frozenEdgeList.getBlockHeight());
-        return balanceListMap.size() + "(" + genesisString + "," + retentionString + "," + frozenString + ")";
+        String hitString = "h=" + (cacheHits * 100L / Math.max(totalQueries, 1L)) + "%";
+        String replayString = "w=" + averageWork() + "/" + maximumWork + "/" + storeLoads;
+        return frozenBalanceListMap.size() + "+" + balanceListMap.size() + "(" + genesisString + "," +
+                retentionString + "," + frozenString + "," + hitString + "," + replayString + ")";
     }
 
     // TODO: remove this; it is for debugging only
-    public static long averageWork() {
+    public static synchronized long averageWork() {
 
-        return totalWork / Math.max(totalQueries, 1L);
+        return totalWork / Math.max(totalQueries - cacheHits, 1L);
     }
 }
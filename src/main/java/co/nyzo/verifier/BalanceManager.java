@@ -68,7 +68,8 @@ public class BalanceManager {
         // Protect the seed-funding account from all transactions other than the transactions published on day 1.
         protectSeedFundingAccount(dedupedTransactions, blockHeight);
 
-        // Remove any transactions with invalid signatures.
+        // Remove any transactions with invalid signatures. The signatures are verified together first.
+        Transaction.verifySignatures(dedupedTransactions);
         for (int i = dedupedTransactions.size() - 1; i >= 0; i--) {
             if (!dedupedTransactions.get(i).signatureIsValid()) {
                 dedupedTransactions.remove(i);
@@ -80,10 +81,10 @@ public class BalanceManager {
         // timestamp, because older transactions take precedence over newer transactions.
         List<Transaction> approvedTransactions = new ArrayList<>();
         BalanceList balanceList = BalanceListManager.balanceListForBlock(previousBlock, null);
-        Map<ByteBuffer, Long> identifierToBalanceMap = makeBalanceMap(balanceList);
+        Map<ByteBuffer, Long> identifierToBalanceMap = new HashMap<>();
         for (Transaction transaction : dedupedTransactions) {
             ByteBuffer senderIdentifier = ByteBuffer.wrap(transaction.getSenderIdentifier());
-            Long senderBalance = identifierToBalanceMap.getOrDefault(senderIdentifier, 0L);
+            long senderBalance = balanceFor(senderIdentifier, identifierToBalanceMap, balanceList);
             if (transaction.getAmount() <= senderBalance || (transaction.getType() == Transaction.typeSeed &&
                     transaction.getFee() <= senderBalance)) {
 
@@ -94,12 +95,8 @@ public class BalanceManager {
                 long amountAfterFee = transaction.getAmount() - transaction.getFee();
                 if (amountAfterFee > 0L) {
                     ByteBuffer receiverIdentifier = ByteBuffer.wrap(transaction.getReceiverIdentifier());
-                    Long receiverBalance = identifierToBalanceMap.get(receiverIdentifier);
-                    if (receiverBalance == null) {
-                        receiverBalance = 0L;
-                    }
-                    receiverBalance += amountAfterFee;
-                    identifierToBalanceMap.put(receiverIdentifier, receiverBalance);
+                    long receiverBalance = balanceFor(receiverIdentifier, identifierToBalanceMap, balanceList);
+                    identifierToBalanceMap.put(receiverIdentifier, receiverBalance + amountAfterFee);
                 }
             } else {
                 System.out.println("removed transaction because amount " + transaction.getAmount() + " was greater " +
@@ -110,16 +107,17 @@ public class BalanceManager {
         return approvedTransactions;
     }
 
-    public static Map<ByteBuffer, Long> makeBalanceMap(BalanceList balanceList) {
+    private static long balanceFor(ByteBuffer identifier, Map<ByteBuffer, Long> identifierToBalanceMap,
+                                   BalanceList balanceList) {
 
-        Map<ByteBuffer, Long> balanceMap = new HashMap<>();
-        if (balanceList != null) {
-            for (BalanceListItem item : balanceList.getItems()) {
-                balanceMap.put(ByteBuffer.wrap(item.getIdentifier()), item.getBalance());
-            }
+        // The map only holds the balances that have been changed by transactions, so all other balances are read
+        // from the balance list.
+        Long balance = identifierToBalanceMap.get(identifier);
+        if (balance == null) {
+            balance = balanceList == null ? 0L : balanceList.balanceFor(identifier.array());
         }
 
-        return balanceMap;
+        return balance;
     }
 
     public static void sortTransactions(List<Transaction> transactions) {
@@ -181,7 +179,7 @@ public class BalanceManager {
         return transactionsWithoutDuplicates;
     }
 
-    public static boolean transactionSpamsBalanceList(Map<ByteBuffer, Long> balanceMap, Transaction transaction,
+    public static boolean transactionSpamsBalanceList(BalanceList balanceList, Transaction transaction,
                                                       List<Transaction> allTransactionsInBlock) {
 
         // To prevent issues related to an exceptionally large balance list, some limitations are needed to avoid the
@@ -203,7 +201,7 @@ public class BalanceManager {
             // for a new account is less confusing than a minimum of ∩10.025063. A transaction of only μ1 will not spam
             // the balance list, as the full transaction amount is consumed by the transaction fee, and a new entry is
             // not created in the balance list.
-            if (!balanceMap.keySet().contains(ByteBuffer.wrap(transaction.getReceiverIdentifier())) &&
+            if (balanceList.balanceFor(transaction.getReceiverIdentifier()) == 0L &&
                     transaction.getAmount() > 1L && transaction.getAmount() < minimumPreferredBalance) {
                 isSpam = true;
             } else {
@@ -211,8 +209,7 @@ public class BalanceManager {
                 // This is the indirect case. The existing account needs to have at least ∩10 in it or be empty after
                 // the block. All transactions must be considered, or multiple transactions could be sent from a single
                 // account to bypass the rule.
-                long senderBalance = balanceMap.getOrDefault(ByteBuffer.wrap(transaction.getSenderIdentifier()),
-                        0L);
+                long senderBalance = balanceList.balanceFor(transaction.getSenderIdentifier());
                 long senderSum = 0L;
                 for (Transaction blockTransaction : allTransactionsInBlock) {
                     if (ByteUtil.arraysAreEqual(transaction.getSenderIdentifier(),
@@ -229,12 +226,12 @@ public class BalanceManager {
         return isSpam;
     }
 
-    public static List<Transaction> transactionsWithoutBalanceListSpam(Map<ByteBuffer, Long> balanceMap,
+    public static List<Transaction> transactionsWithoutBalanceListSpam(BalanceList balanceList,
                                                                        List<Transaction> transactions) {
 
         List<Transaction> transactionsFiltered = new ArrayList<>();
         for (Transaction transaction : transactions) {
-            if (!transactionSpamsBalanceList(balanceMap, transaction, transactions)) {
+            if (!transactionSpamsBalanceList(balanceList, transaction, transactions)) {
                 transactionsFiltered.add(transaction);
             }
         }
@@ -242,12 +239,12 @@ public class BalanceManager {
         return transactionsFiltered;
     }
 
-    public static int numberOfTransactionsSpammingBalanceList(Map<ByteBuffer, Long> balanceMap,
+    public static int numberOfTransactionsSpammingBalanceList(BalanceList balanceList,
                                                               List<Transaction> transactions) {
 
         int numberOfTransactions = 0;
         for (Transaction transaction : transactions) {
-            if (transactionSpamsBalanceList(balanceMap, transaction, transactions)) {
+            if (transactionSpamsBalanceList(balanceList, transaction, transactions)) {
                 numberOfTransactions++;
             }
         }
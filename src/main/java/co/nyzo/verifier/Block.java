@@ -48,6 +48,12 @@ public class Block implements MessageObject {
     private SignatureState signatureState = SignatureState.Undetermined;
     private CycleInformation cycleInformation = null;
 
+    // The serialized form, size, and hash of a block do not change after it is signed, so they are only calculated
+    // once. Signing the block again clears them.
+    private volatile byte[] bytes = null;
+    private volatile byte[] hash = null;
+    private volatile int byteSize = -1;
+
     public Block(long height, byte[] previousBlockHash, long startTimestamp, List<Transaction> transactions,
                  byte[] balanceListHash) {
 
@@ -96,6 +102,8 @@ public class Block implements MessageObject {
 
     private static List<Transaction> validTransactions(List<Transaction> transactions, long startTimestamp) {
 
+        Transaction.verifySignatures(transactions);
+
         List<Transaction> validTransactions = new ArrayList<>();
         Set<ByteBuffer> signatures = new HashSet<>();
         long endTimestamp = startTimestamp + Block.blockDuration;
@@ -136,7 +144,14 @@ public class Block implements MessageObject {
     }
 
     public byte[] getHash() {
-        return HashUtil.doubleSHA256(verifierSignature);
+
+        byte[] hash = this.hash;
+        if (hash == null) {
+            hash = HashUtil.doubleSHA256(verifierSignature);
+            this.hash = hash;
+        }
+
+        return hash;
     }
 
     public byte[] getBalanceListHash() {
@@ -194,17 +209,23 @@ public class Block implements MessageObject {
 
     public int getByteSize(boolean includeSignature) {
 
-        int size = FieldByteSize.blockHeight +           // height
-                FieldByteSize.hash +                     // previous-block hash
-                FieldByteSize.timestamp +                // start timestamp
-                FieldByteSize.timestamp +                // verification timestamp
-                4 +                                      // number of transactions
-                FieldByteSize.hash;                      // balance-list hash
-        for (Transaction transaction : transactions) {
-            size += transaction.getByteSize();
+        int size = byteSize;
+        if (size < 0) {
+            size = FieldByteSize.blockHeight +           // height
+                    FieldByteSize.hash +                 // previous-block hash
+                    FieldByteSize.timestamp +            // start timestamp
+                    FieldByteSize.timestamp +            // verification timestamp
+                    4 +                                  // number of transactions
+                    FieldByteSize.hash +                 // balance-list hash
+                    FieldByteSize.identifier +           // verifier identifier
+                    FieldByteSize.signature;             // verifier signature
+            for (Transaction transaction : transactions) {
+                size += transaction.getByteSize();
+            }
+            byteSize = size;
         }
-        if (includeSignature) {
-            size += FieldByteSize.identifier + FieldByteSize.signature;
+        if (!includeSignature) {
+            size -= FieldByteSize.identifier + FieldByteSize.signature;
         }
 
         return size;
@@ -219,6 +240,13 @@ public class Block implements MessageObject {
         return cycleInformation;
     }
 
+    void setCycleInformation(CycleInformation cycleInformation) {
+
+        // This is only used to restore the frozen edge from a chain-state checkpoint, so the cycle information does
+        // not need to be recalculated from the preceding blocks.
+        this.cycleInformation = cycleInformation;
+    }
+
     private void calculateCycleInformation() {
 
         // This is the new method. It finds the maximum cycle length of any block in the previous three cycles.
@@ -373,7 +401,13 @@ public class Block implements MessageObject {
 
     public byte[] getBytes() {
 
-        return getBytes(true);
+        byte[] bytes = this.bytes;
+        if (bytes == null) {
+            bytes = getBytes(true);
+            this.bytes = bytes;
+        }
+
+        return bytes;
     }
 
     private byte[] getBytes(boolean includeSignature) {
@@ -405,6 +439,10 @@ public class Block implements MessageObject {
         this.verificationTimestamp = verificationTimestamp;
         this.verifierIdentifier = KeyUtil.identifierForSeed(signerSeed);
         this.verifierSignature = SignatureUtil.signBytes(getBytes(false), signerSeed);
+
+        this.bytes = null;
+        this.hash = null;
+        this.signatureState = SignatureState.Undetermined;
     }
 
     public void sign(byte[] signerSeed) {
@@ -480,18 +518,17 @@ public class Block implements MessageObject {
             // For the Genesis block, start with an empty balance list, no rollover fees, and an empty list of previous
             // verifiers. For all others, start with the information from the previous block's balance list.
             long blockHeight;
-            List<BalanceListItem> previousBalanceItems = null;
+            BalanceList previousItems = null;
             long previousRolloverFees = -1;
             List<byte[]> previousVerifiers = null;
             if (previousBlock == null) {
                 blockHeight = 0L;
-                previousBalanceItems = new ArrayList<>();
                 previousRolloverFees = 0L;
                 previousVerifiers = new ArrayList<>();
             } else {
                 blockHeight = previousBlock.getBlockHeight() + 1L;
                 if (previousBalanceList != null) {
-                    previousBalanceItems = previousBalanceList.getItems();
+                    previousItems = previousBalanceList;
                     previousRolloverFees = previousBalanceList.getRolloverFees();
 
                     // Get the previous verifiers from the previous block. Add the newest and remove the oldest.
@@ -504,13 +541,7 @@ public class Block implements MessageObject {
             }
 
             // Only continue if we have the necessary data.
-            if (previousBalanceItems != null && previousRolloverFees >= 0) {
-                // Make a map of the identifiers to balance list items.
-                Map<ByteBuffer, BalanceListItem> identifierToItemMap = new HashMap<>();
-                for (BalanceListItem item : previousBalanceItems) {
-                    identifierToItemMap.put(ByteBuffer.wrap(item.getIdentifier()), item);
-                }
-
+            if (previousVerifiers != null && previousRolloverFees >= 0) {
                 // Remove any invalid transactions. The previous block is only null for the Genesis block. This also
                 // only needs to be performed on blocks past the frozen edge, as blocks that have been frozen are no
                 // longer subject to scrutiny.
@@ -518,79 +549,16 @@ public class Block implements MessageObject {
                     transactions = BalanceManager.approvedTransactionsForBlock(transactions, previousBlock);
                 }
 
-                // Add/subtract all transactions.
-                long feesThisBlock = 0L;
-                for (Transaction transaction : transactions) {
-
-                    feesThisBlock += transaction.getFee();
-                    if (transaction.getType() != Transaction.typeCoinGeneration) {
-                        adjustBalance(transaction.getSenderIdentifier(), -transaction.getAmount(),
-                                identifierToItemMap);
-                    }
-
-                    long amountAfterFee = transaction.getAmount() - transaction.getFee();
-                    if (amountAfterFee > 0) {
-                        adjustBalance(transaction.getReceiverIdentifier(), amountAfterFee, identifierToItemMap);
-                    }
-                }
-
-                // Subtract fees for all balance list items that owe fees and whose values are greater than zero.
-                long periodicAccountFees = 0L;
-                for (ByteBuffer identifier : identifierToItemMap.keySet()) {
-                    BalanceListItem item = identifierToItemMap.get(identifier);
-                    if (item.getBlocksUntilFee() <= 0 && item.getBalance() > 0L &&
-                            !ByteUtil.arraysAreEqual(identifier.array(), BalanceListItem.transferIdentifier)) {
-                        periodicAccountFees++;
-                        identifierToItemMap.put(identifier, item.adjustByAmount(-1L).resetBlocksUntilFee());
-                    }
-                }
-
-                // Split the transaction fees among the current and previous verifiers.
-                List<byte[]> verifiers = new ArrayList<>(previousVerifiers);
-                verifiers.add(verifierIdentifier);
-                long totalFees = feesThisBlock + previousRolloverFees + periodicAccountFees;
-                long feesPerVerifier = totalFees / verifiers.size();
-                if (feesPerVerifier > 0L) {
-                    for (byte[] verifier : verifiers) {
-                        adjustBalance(verifier, feesPerVerifier, identifierToItemMap);
-                    }
-                }
-
-                // Make the new balance items from the balance map, decrementing the blocks-until-fee counter for each.
-                long micronyzosInSystem = 0L;
-                List<BalanceListItem> balanceItems = new ArrayList<>();
-                for (ByteBuffer identifier : identifierToItemMap.keySet()) {
-                    BalanceListItem item = identifierToItemMap.get(identifier);
-                    if (item.getBalance() > 0L) {
-                        balanceItems.add(item.decrementBlocksUntilFee());
-                        micronyzosInSystem += item.getBalance();
-                    }
-                }
-
-                // Make the balance list. The pairs are sorted in the constructor.
-                byte rolloverFees = (byte) (totalFees % verifiers.size());
-                micronyzosInSystem += rolloverFees;
-                if (micronyzosInSystem == Transaction.micronyzosInSystem) {
-                    result = new BalanceList(blockHeight, rolloverFees, previousVerifiers, balanceItems);
-                }
+                // Apply the transactions and fees to the previous items. The result is null if the coins in the
+                // system are not all accounted for.
+                result = AccountStateEngine.nextBalanceList(blockHeight, previousItems, previousRolloverFees,
+                        previousVerifiers, transactions, verifierIdentifier);
             }
         } catch (Exception ignored) { ignored.printStackTrace(); }
 
         return result;
     }
 
-    private static void adjustBalance(byte[] identifier, long amount,
-                                      Map<ByteBuffer, BalanceListItem> identifierToItemMap) {
-
-        ByteBuffer identifierBuffer = ByteBuffer.wrap(identifier);
-        BalanceListItem item = identifierToItemMap.get(identifierBuffer);
-        if (item == null) {
-            item = new BalanceListItem(identifier, 0L);
-        }
-        item = item.adjustByAmount(amount);
-        identifierToItemMap.put(identifierBuffer, item);
-    }
-    
     public long chainScore(long zeroBlockHeight) {
 
         // This score is always relative to a provided block height. The zero block height has a score of zero, and
@@ -685,8 +653,7 @@ public class Block implements MessageObject {
         if (previousBlock != null) {
             BalanceList balanceList = BalanceListManager.balanceListForBlock(previousBlock, null);
             if (balanceList != null) {
-                Map<ByteBuffer, Long> balanceMap = BalanceManager.makeBalanceMap(balanceList);
-                count = BalanceManager.numberOfTransactionsSpammingBalanceList(balanceMap, getTransactions());
+                count = BalanceManager.numberOfTransactionsSpammingBalanceList(balanceList, getTransactions());
             }
         }
 
@@ -1,134 +1,441 @@
 package co.nyzo.verifier;
 
-import co.nyzo.verifier.util.NotificationUtil;
-import co.nyzo.verifier.util.UpdateUtil;
+import co.nyzo.verifier.util.*;
 
 import java.io.File;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 public class BlockFileConsolidator {
 
+    private static final String legacyConversionIndexKey = "legacy_block_file_conversion_index";
+    private static final int legacyFilesConvertedPerPass = 20;
+    private static final int flatFilesMigratedPerPass = 10000;
+
+    // Consolidated files can be written with independently compressed chunks. This trades some CPU on reads for a
+    // much smaller data directory, which is most useful on archive nodes.
+    private static final String compressConsolidatedFilesKey = "compress_consolidated_block_files";
+    private static final boolean compressConsolidatedFiles =
+            PreferencesUtil.getBoolean(compressConsolidatedFilesKey, false);
+
+    // File indices are consolidated in parallel. Each task holds only one block and one balance list at a time, so
+    // the memory cost of a thread is small, but the default is kept low to leave disk bandwidth for the verifier.
+    private static final String threadsKey = "block_file_consolidator_threads";
+    private static final int threads = Math.max(1, PreferencesUtil.getInt(threadsKey,
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2))));
+    private static final ForkJoinPool pool = new ForkJoinPool(threads);
+
+    private static final File progressFile = new File(new File(Verifier.dataRootDirectory, "blocks"),
+            "consolidation_progress");
+    private static final Set<Long> consolidationsInProgress = loadConsolidationsInProgress();
+
+    public static boolean isCompressingConsolidatedFiles() {
+
+        return compressConsolidatedFiles;
+    }
+
     public static void start() {
 
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
+        // Consolidation only applies to the block file layout.
+        if (BlockManager.getBlockStore().usesBlockFileLayout()) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
 
-                while (!UpdateUtil.shouldTerminate()) {
+                    while (!UpdateUtil.shouldTerminate()) {
+
+                        // Sleep for 5 minutes (300 seconds) in 3-second intervals.
+                        for (int i = 0; i < 100 && !UpdateUtil.shouldTerminate(); i++) {
+                            try {
+                                Thread.sleep(3000L);
+                            } catch (Exception ignored) { }
+                        }
 
-                    // Sleep for 5 minutes (300 seconds) in 3-second intervals.
-                    for (int i = 0; i < 100 && !UpdateUtil.shouldTerminate(); i++) {
                         try {
-                            Thread.sleep(3000L);
+                            consolidateFiles();
                         } catch (Exception ignored) { }
-                    }
 
-                    try {
-                        consolidateFiles();
-                    } catch (Exception ignored) { }
+                        try {
+                            convertLegacyFiles();
+                        } catch (Exception ignored) { }
+
+                        try {
+                            migrateFlatIndividualFiles();
+                        } catch (Exception ignored) { }
+                    }
                 }
-            }
-        }, "BlockFileConsolidator").start();
+            }, "BlockFileConsolidator").start();
+        }
     }
 
     private static void consolidateFiles() {
 
-        // Get all files in the individual directory.
-        File[] individualFiles = BlockManager.individualBlockDirectory.listFiles();
+        // Finish the cleanup of any file index that was written before the last shutdown.
+        resumeInterruptedConsolidations();
 
         // Build a map of all files that need to be consolidated. Before, files were consolidated as soon as the frozen
         // edge passed them. Now, files are consolidated when the retention edge passes them.
-        Map<Long, List<File>> fileMap = new HashMap<>();
         long currentFileIndex = BlockManager.getRetentionEdgeHeight() / BlockManager.blocksPerFile;
-        if (individualFiles != null) {
-            for (File file : individualFiles) {
-                long blockHeight = blockHeightForFile(file);
-                if (blockHeight > 0) {
-                    long fileIndex = blockHeight / BlockManager.blocksPerFile;
-                    if (fileIndex < currentFileIndex) {
-                        List<File> filesForIndex = fileMap.get(fileIndex);
-                        if (filesForIndex == null) {
-                            filesForIndex = new ArrayList<>();
-                            fileMap.put(fileIndex, filesForIndex);
-                        }
-                        filesForIndex.add(file);
-                    }
-                }
+        Map<Long, List<File>> fileMap = individualFilesBelowIndex(currentFileIndex);
+
+        // Add the freeze-journal segments that need to be consolidated. A segment may have no individual files.
+        for (Long fileIndex : BlockFreezeJournal.segmentFileIndices()) {
+            if (fileIndex < currentFileIndex && !fileMap.containsKey(fileIndex)) {
+                fileMap.put(fileIndex, new ArrayList<File>());
             }
         }
 
-        // Consolidate the files for each file index.
-        for (Long fileIndex : fileMap.keySet()) {
-            consolidateFiles(fileIndex, fileMap.get(fileIndex));
+        // Consolidate the files for each file index. File indices are independent of one another, so they are
+        // processed in parallel on a bounded pool.
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (final Long fileIndex : fileMap.keySet()) {
+            final List<File> filesForIndex = fileMap.get(fileIndex);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if (!UpdateUtil.shouldTerminate()) {
+                        try {
+                            consolidateFiles(fileIndex, filesForIndex);
+                        } catch (Exception reportOnly) {
+                            System.err.println("unable to consolidate file index " + fileIndex + ": " +
+                                    PrintUtil.printException(reportOnly));
+                        }
+                    }
+                    return null;
+                }
+            });
         }
+        pool.invokeAll(tasks);
     }
 
     private static void consolidateFiles(long fileIndex, List<File> individualFiles) {
 
-        // Get the blocks from the existing consolidated file for this index.
+        // Map each height to the source of its block without loading any blocks. The existing consolidated file takes
+        // precedence over individual files, and individual files take precedence over the freeze journal.
         long startBlockHeight = fileIndex * BlockManager.blocksPerFile;
         File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(startBlockHeight);
-        List<Block> blocks = BlockManager.loadBlocksInFile(consolidatedFile, startBlockHeight, startBlockHeight +
-                BlockManager.blocksPerFile - 1);
+        TreeMap<Long, BlockSource> sources = new TreeMap<>();
+        BlockFileIndex consolidatedIndex = consolidatedFile.exists() ? BlockFileIndex.forFile(consolidatedFile) : null;
+        if (consolidatedIndex != null) {
+            for (int i = 0; i < consolidatedIndex.getNumberOfEntries(); i++) {
+                sources.put(consolidatedIndex.heightAtIndex(i), new BlockSource(consolidatedFile, i));
+            }
+        }
+        for (File file : individualFiles) {
+            long blockHeight = BlockManager.heightForIndividualFile(file);
+            if (!sources.containsKey(blockHeight)) {
+                sources.put(blockHeight, new BlockSource(file, -1));
+            }
+        }
+        for (Long blockHeight : BlockFreezeJournal.heightsForFileIndex(fileIndex)) {
+            if (!sources.containsKey(blockHeight)) {
+                sources.put(blockHeight, new BlockSource(null, -1));
+            }
+        }
+
+        // Stream the blocks into the new file in height order, so only one block and the balance list at the start of
+        // each run are held in memory. The existing consolidated file is replaced only when the new file is complete.
+        // If the existing consolidated file could not be indexed, it is left untouched rather than replaced with a file
+        // that is missing its blocks.
+        int numberOfBlocks = 0;
+        int numberOfBalanceLists = 0;
+        List<Long> writtenHeights = new ArrayList<>();
+        List<byte[]> writtenHashes = new ArrayList<>();
+        boolean successful = !sources.isEmpty() && (consolidatedIndex != null || !consolidatedFile.exists());
+        IndexedBlockFile.Writer writer = null;
+        try {
+            writer = successful ? new IndexedBlockFile.Writer(consolidatedFile, compressConsolidatedFiles) : null;
+            long previousHeight = -1L;
+            Iterator<Long> iterator = sources.keySet().iterator();
+            while (successful && iterator.hasNext()) {
+                long blockHeight = iterator.next();
+                BlockSource source = sources.get(blockHeight);
+                Block block = loadBlock(blockHeight, source, consolidatedIndex);
+                BalanceList balanceList = null;
+                if (block != null && blockHeight != previousHeight + 1) {
+                    balanceList = BlockManager.loadBalanceListFromFileForHeight(blockHeight);
+                    if (balanceList == null) {
+                        NotificationUtil.send("unexpected null balance list at height " + blockHeight +
+                                " in block consolidation process on " + Verifier.getNickname());
+                    } else {
+                        numberOfBalanceLists++;
+                    }
+                }
+
+                // As before, an unreadable individual file is skipped. The consolidated file and the journal are
+                // checked when they are read, so a failure there stops the process and leaves all sources in place.
+                if (block == null) {
+                    successful = source.file != null && source.position < 0;
+                } else {
+                    writer.addBlock(block, balanceList);
+                    writtenHeights.add(blockHeight);
+                    writtenHashes.add(block.getHash());
+                    numberOfBlocks++;
+                    previousHeight = blockHeight;
+                }
+            }
+
+            // Consolidated files are always written in the indexed format, so any legacy file for this index is
+            // converted here. The written file is read back and checked against the heights and hashes of the blocks
+            // that were added before any source is removed.
+            if (successful) {
+                successful = writer.finish() && IndexedBlockFile.fileContainsBlocks(consolidatedFile, writtenHeights,
+                        writtenHashes);
+            } else if (writer != null) {
+                writer.abandon();
+            }
+        } catch (Exception reportOnly) {
+            System.err.println(PrintUtil.printException(reportOnly));
+            successful = false;
+            if (writer != null) {
+                writer.abandon();
+            }
+        }
+
+        // The sources are only removed if the consolidated file was written, because the journal and the individual
+        // files may be the only copies of these blocks. The file index is recorded as written before any source is
+        // removed, so an interrupted cleanup is finished after a restart without writing the file again.
+        if (successful) {
+            setConsolidationInProgress(fileIndex, true);
+            removeSources(fileIndex, individualFiles);
+            setConsolidationInProgress(fileIndex, false);
+
+            NotificationUtil.send("consolidated " + numberOfBlocks + " blocks to a single file for start height " +
+                    startBlockHeight + " on " + Verifier.getNickname() + "; used " + numberOfBalanceLists +
+                    " balance lists");
+        } else {
+            NotificationUtil.send("unable to consolidate blocks for start height " + startBlockHeight + " on " +
+                    Verifier.getNickname());
+        }
+    }
+
+    private static Block loadBlock(long blockHeight, BlockSource source, BlockFileIndex consolidatedIndex) {
+
+        Block block = null;
+        if (source.file == null) {
+            block = BlockFreezeJournal.blockForHeight(blockHeight);
+        } else if (source.position >= 0) {
+            block = consolidatedIndex.readBlock(source.file, source.position);
+        } else {
+            List<Block> blocks = BlockManager.loadBlocksInFile(source.file, blockHeight, blockHeight);
+            if (!blocks.isEmpty()) {
+                block = blocks.get(0);
+            }
+        }
+
+        return block;
+    }
 
-        // Add the blocks from the individual files.
+    private static void removeSources(long fileIndex, List<File> individualFiles) {
+
+        BlockFreezeJournal.removeSegment(fileIndex);
+
+        // Do not delete the Genesis file, because it will continue to be used in regular operation. The shard
+        // directory is removed once it is empty.
         for (File file : individualFiles) {
-            blocks.addAll(BlockManager.loadBlocksInFile(file, 0, Long.MAX_VALUE));
+            if (BlockManager.heightForIndividualFile(file) > 0L) {
+                file.delete();
+            }
+        }
+        BlockManager.individualDirectoryForFileIndex(fileIndex).delete();
+    }
+
+    private static void resumeInterruptedConsolidations() {
+
+        // A file index in the progress file has a complete consolidated file, but some of its individual files or its
+        // journal segment may remain. The remaining sources are removed only if the consolidated file contains all of
+        // their heights. Otherwise, the index is dropped from the progress file and consolidated again normally.
+        Set<Long> fileIndices;
+        synchronized (progressFile) {
+            fileIndices = new HashSet<>(consolidationsInProgress);
         }
 
-        // Sort the blocks on block height ascending.
-        Collections.sort(blocks, new Comparator<Block>() {
-            @Override
-            public int compare(Block block1, Block block2) {
-                return ((Long) block1.getBlockHeight()).compareTo(block2.getBlockHeight());
+        Map<Long, List<File>> fileMap = fileIndices.isEmpty() ? new HashMap<Long, List<File>>() :
+                individualFilesBelowIndex(Collections.max(fileIndices) + 1L);
+        for (Long fileIndex : fileIndices) {
+
+            List<File> filesForIndex = fileMap.containsKey(fileIndex) ? fileMap.get(fileIndex) :
+                    new ArrayList<File>();
+            Set<Long> heights = new HashSet<>(BlockFreezeJournal.heightsForFileIndex(fileIndex));
+            for (File file : filesForIndex) {
+                heights.add(BlockManager.heightForIndividualFile(file));
             }
-        });
 
-        // Dedupe blocks.
-        for (int i = blocks.size() - 1; i > 0; i--) {
-            if (blocks.get(i).getBlockHeight() == blocks.get(i - 1).getBlockHeight()) {
-                blocks.remove(i);
+            File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(fileIndex *
+                    BlockManager.blocksPerFile);
+            BlockFileIndex index = IndexedBlockFile.isIndexedFile(consolidatedFile) ?
+                    BlockFileIndex.forFile(consolidatedFile) : null;
+            boolean complete = index != null;
+            for (Long blockHeight : heights) {
+                if (complete && index.indexForHeight(blockHeight) < 0) {
+                    complete = false;
+                }
+            }
+
+            if (complete) {
+                removeSources(fileIndex, filesForIndex);
             }
+            setConsolidationInProgress(fileIndex, false);
         }
+    }
 
-        // Get the balance lists.
-        List<BalanceList> balanceLists = new ArrayList<>();
-        for (int i = 0; i < blocks.size(); i++) {
-            if (i == 0 || blocks.get(i).getBlockHeight() != (blocks.get(i - 1).getBlockHeight() + 1)) {
-                BalanceList balanceList = BlockManager.loadBalanceListFromFileForHeight(blocks.get(i).getBlockHeight());
-                if (balanceList == null) {
-                    NotificationUtil.send("unexpected null balance list at height " + blocks.get(i).getBlockHeight() +
-                            " in block consolidation process on " + Verifier.getNickname());
-                } else {
-                    balanceLists.add(balanceList);
+    private static void setConsolidationInProgress(long fileIndex, boolean inProgress) {
+
+        synchronized (progressFile) {
+            boolean changed = inProgress ? consolidationsInProgress.add(fileIndex) :
+                    consolidationsInProgress.remove(fileIndex);
+            if (changed) {
+                List<String> lines = new ArrayList<>();
+                for (Long index : consolidationsInProgress) {
+                    lines.add(index + "");
                 }
+                FileUtil.writeFile(Paths.get(progressFile.getAbsolutePath()), lines);
             }
         }
+    }
 
-        // Write the combined file.
-        BlockManager.writeBlocksToFile(blocks, balanceLists, consolidatedFile);
+    private static Set<Long> loadConsolidationsInProgress() {
 
-        // Delete the individual files. Do not delete the Genesis file, because it will continue to be used in regular
-        // operation.
-        individualFiles.remove(BlockManager.individualFileForBlockHeight(0L));
-        for (File file : individualFiles) {
-            file.delete();
+        Set<Long> fileIndices = new TreeSet<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(progressFile.getAbsolutePath()))) {
+                try {
+                    fileIndices.add(Long.parseLong(line.trim()));
+                } catch (Exception ignored) { }
+            }
+        } catch (Exception ignored) { }
+
+        return fileIndices;
+    }
+
+    private static void convertLegacyFiles() {
+
+        // Consolidated files written before the indexed format are converted a few at a time, in ascending order, so
+        // that historical lookups eventually never need to parse a whole file. The position is persisted so that the
+        // process resumes where it left off after a restart. The position only advances past a file that was
+        // converted and verified, so a failed conversion is retried on the next pass.
+        long startFileIndex = PersistentData.getLong(legacyConversionIndexKey, 0L);
+        long fileIndex = startFileIndex;
+        long endFileIndex = BlockManager.getRetentionEdgeHeight() / BlockManager.blocksPerFile;
+        boolean successful = true;
+        for (int i = 0; i < legacyFilesConvertedPerPass && successful && fileIndex < endFileIndex &&
+                !UpdateUtil.shouldTerminate(); i++) {
+
+            File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(fileIndex * BlockManager.blocksPerFile);
+            if (consolidatedFile.exists() && !IndexedBlockFile.isIndexedFile(consolidatedFile)) {
+                successful = IndexedBlockFile.convertLegacyFile(consolidatedFile, compressConsolidatedFiles);
+            }
+
+            if (successful) {
+                fileIndex++;
+            } else {
+                NotificationUtil.send("unable to convert legacy block file for start height " +
+                        fileIndex * BlockManager.blocksPerFile + " on " + Verifier.getNickname());
+            }
         }
 
-        NotificationUtil.send("consolidated " + individualFiles.size() + " files to a single file for start height " +
-                startBlockHeight + " on " + Verifier.getNickname() + "; used " + balanceLists.size() +
-                " balance lists");
+        if (fileIndex != startFileIndex) {
+            PersistentData.put(legacyConversionIndexKey, fileIndex);
+        }
     }
 
-    private static long blockHeightForFile(File file) {
+    private static Map<Long, List<File>> individualFilesBelowIndex(long endFileIndex) {
 
-        long height = -1;
+        // The top level of the individual directory holds one shard directory for each file index and, until they are
+        // migrated, files in the flat layout of older versions. Only the shard directories below the end index are
+        // listed. The Genesis file is never included.
+        Map<Long, List<File>> fileMap = new TreeMap<>();
+        File[] entries = BlockManager.individualBlockDirectory.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                File[] files = null;
+                if (entry.isDirectory()) {
+                    long fileIndex = -1L;
+                    try {
+                        fileIndex = Long.parseLong(entry.getName());
+                    } catch (Exception ignored) { }
+                    if (fileIndex >= 0L && fileIndex < endFileIndex) {
+                        files = entry.listFiles();
+                    }
+                } else {
+                    files = new File[] { entry };
+                }
+
+                if (files != null) {
+                    for (File file : files) {
+                        long blockHeight = BlockManager.heightForIndividualFile(file);
+                        long fileIndex = blockHeight / BlockManager.blocksPerFile;
+                        if (blockHeight > 0 && fileIndex < endFileIndex) {
+                            List<File> filesForIndex = fileMap.get(fileIndex);
+                            if (filesForIndex == null) {
+                                filesForIndex = new ArrayList<>();
+                                fileMap.put(fileIndex, filesForIndex);
+                            }
+                            filesForIndex.add(file);
+                        }
+                    }
+                }
+            }
+        }
+
+        return fileMap;
+    }
+
+    private static void migrateFlatIndividualFiles() {
+
+        // Files in the flat layout of older versions are moved into their shard directories a batch at a time. Each
+        // move is atomic, and readers check both locations, so a block is always readable. The Genesis file stays in
+        // the flat layout, and a Genesis file that a previous version moved into its shard directory is moved back.
+        int numberMoved = 0;
         try {
-            String filename = file.getName().replace("i_", "").replace(".nyzoblock", "");
-            height = Long.parseLong(filename);
+            File shardedGenesisFile = BlockManager.shardedIndividualFileForBlockHeight(0L);
+            File genesisFile = BlockManager.individualFileForBlockHeight(0L);
+            if (shardedGenesisFile.exists()) {
+                if (genesisFile.exists()) {
+                    shardedGenesisFile.delete();
+                } else {
+                    Files.move(shardedGenesisFile.toPath(), genesisFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+        } catch (Exception ignored) { }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(BlockManager.individualBlockDirectory
+                .getAbsolutePath()), "i_*.nyzoblock")) {
+            Iterator<Path> iterator = stream.iterator();
+            while (numberMoved < flatFilesMigratedPerPass && iterator.hasNext() && !UpdateUtil.shouldTerminate()) {
+                File file = iterator.next().toFile();
+                long blockHeight = BlockManager.heightForIndividualFile(file);
+                if (blockHeight > 0L) {
+                    File shardedFile = BlockManager.individualFileForBlockHeight(blockHeight);
+                    shardedFile.getParentFile().mkdirs();
+                    if (shardedFile.exists()) {
+                        file.delete();
+                    } else {
+                        Files.move(file.toPath(), shardedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    numberMoved++;
+                }
+            }
         } catch (Exception ignored) { }
 
-        return height;
+        if (numberMoved > 0) {
+            System.out.println("moved " + numberMoved + " individual block files to the sharded layout");
+        }
+    }
+
+    private static class BlockSource {
+
+        // The file is null for blocks in the freeze journal, and the position is only set for blocks in the existing
+        // consolidated file.
+        private final File file;
+        private final int position;
+
+        private BlockSource(File file, int position) {
+            this.file = file;
+            this.position = position;
+        }
     }
 
 }
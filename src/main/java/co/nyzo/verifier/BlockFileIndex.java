@@ -0,0 +1,320 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.FileUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BlockFileIndex {
+
+    // This is an index of a block file. It records the height, offset, and length of every block in the file, so a
+    // block can be read with a single positional read regardless of whether the block file is in the legacy format or
+    // the indexed format. Files in the indexed format carry their own index, so it is read from the file directly.
+    // Legacy files have no index, so the index is built by walking the file once and stored in a sidecar file, along
+    // with the hash of every block. The length and modification time of the block file are stored so that a stale
+    // index, left behind when the consolidator rewrites a file, is detected and rebuilt.
+    //
+    // header:  magic value (4 bytes), format version (1 byte), block-file length (8 bytes), block-file modification
+    //          time (8 bytes), number of entries (4 bytes)
+    // entries: height (8 bytes), offset (4 bytes, -1 for compressed files), length (4 bytes), block hash (32 bytes)
+
+    private static final int magicValue = 0x4e595a58;  // "NYZX"
+    private static final byte formatVersion = 1;
+    private static final int headerByteSize = 4 + 1 + 8 + 8 + 4;
+    private static final int entryByteSize = FieldByteSize.blockHeight + 4 + 4 + FieldByteSize.hash;
+
+    private final long blockFileLength;
+    private final long blockFileModificationTime;
+    private final long[] heights;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final byte[][] hashes;
+
+    private BlockFileIndex(long blockFileLength, long blockFileModificationTime, long[] heights, int[] offsets,
+                           int[] lengths, byte[][] hashes) {
+
+        this.blockFileLength = blockFileLength;
+        this.blockFileModificationTime = blockFileModificationTime;
+        this.heights = heights;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.hashes = hashes;
+    }
+
+    public int getNumberOfEntries() {
+        return heights.length;
+    }
+
+    public long getMinimumHeight() {
+        return heights.length == 0 ? -1L : heights[0];
+    }
+
+    public long getMaximumHeight() {
+        return heights.length == 0 ? -1L : heights[heights.length - 1];
+    }
+
+    public int getByteSize() {
+        return headerByteSize + entryByteSize * heights.length;
+    }
+
+    public boolean matches(File blockFile) {
+
+        return blockFile.length() == blockFileLength && blockFile.lastModified() == blockFileModificationTime;
+    }
+
+    public int indexForHeight(long blockHeight) {
+
+        int low = 0;
+        int high = heights.length - 1;
+        int result = -1;
+        while (low <= high && result < 0) {
+            int middle = (low + high) >>> 1;
+            if (heights[middle] < blockHeight) {
+                low = middle + 1;
+            } else if (heights[middle] > blockHeight) {
+                high = middle - 1;
+            } else {
+                result = middle;
+            }
+        }
+
+        return result;
+    }
+
+    public long heightAtIndex(int index) {
+        return heights[index];
+    }
+
+    public int lengthAtIndex(int index) {
+        return lengths[index];
+    }
+
+    public byte[] hashAtIndex(int index) {
+        return hashes == null ? null : hashes[index];
+    }
+
+    public Block readBlock(File blockFile, int index) {
+
+        Block block = null;
+        byte[] blockBytes = readBlockBytes(blockFile, index);
+        if (blockBytes != null) {
+            try {
+                block = Block.fromByteBuffer(ByteBuffer.wrap(blockBytes), false);
+            } catch (Exception ignored) { }
+        }
+
+        return block;
+    }
+
+    public byte[] readBlockBytes(File blockFile, int index) {
+
+        // The block is read with a single positional read. For legacy files, the hash, which is the double-SHA-256 of
+        // the signature at the end of the block, is checked against the index, and a mismatch is treated as a failed
+        // read so the caller can rebuild the index. Compressed files have no direct offsets, so their blocks are read
+        // through the indexed file, which inflates only the chunk that contains the block.
+        byte[] blockBytes = null;
+        byte[] candidate = null;
+        if (offsets[index] < 0) {
+            candidate = IndexedBlockFile.loadBlockBytes(blockFile, heights[index]);
+        } else {
+            try (FileChannel channel = FileChannel.open(Paths.get(blockFile.getAbsolutePath()),
+                    StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(lengths[index]);
+                long position = offsets[index];
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) { }
+                if (!buffer.hasRemaining()) {
+                    candidate = buffer.array();
+                }
+            } catch (Exception ignored) { }
+        }
+
+        if (candidate != null && hashes == null) {
+            blockBytes = candidate;
+        } else if (candidate != null && candidate.length >= FieldByteSize.signature) {
+            ByteBuffer signature = ByteBuffer.wrap(candidate, candidate.length - FieldByteSize.signature,
+                    FieldByteSize.signature);
+            if (ByteUtil.arraysAreEqual(HashUtil.doubleSHA256(signature), hashes[index])) {
+                blockBytes = candidate;
+            }
+        }
+
+        return blockBytes;
+    }
+
+    public static File sidecarFileFor(File blockFile) {
+
+        return new File(blockFile.getParentFile(), blockFile.getName().replace(".nyzoblock", ".nyzoindex"));
+    }
+
+    public static BlockFileIndex forFile(File blockFile) {
+
+        // Indexed files are read directly, and a sidecar left from before the file was converted is removed. For legacy
+        // files, use the sidecar if it is present and current. Otherwise, build a new index from the block file and
+        // store it.
+        BlockFileIndex index = null;
+        if (blockFile.exists()) {
+            File sidecarFile = sidecarFileFor(blockFile);
+            if (IndexedBlockFile.isIndexedFile(blockFile)) {
+                index = forIndexedFile(blockFile);
+                if (sidecarFile.exists()) {
+                    sidecarFile.delete();
+                }
+            } else {
+                index = load(sidecarFile);
+                if (index == null || !index.matches(blockFile)) {
+                    index = build(blockFile);
+                    if (index != null) {
+                        index.write(sidecarFile);
+                    }
+                }
+            }
+        }
+
+        return index;
+    }
+
+    public static long buildCost(File blockFile) {
+
+        // This is the number of bytes that must be read to obtain an index for the file.
+        long cost;
+        File sidecarFile = sidecarFileFor(blockFile);
+        if (IndexedBlockFile.isIndexedFile(blockFile)) {
+            cost = IndexedBlockFile.indexByteSize(blockFile);
+        } else {
+            cost = sidecarFile.exists() ? sidecarFile.length() : blockFile.length();
+        }
+
+        return cost;
+    }
+
+    private static BlockFileIndex forIndexedFile(File blockFile) {
+
+        // Only the index at the beginning of the file is read. The file carries no block hashes, so reads from this
+        // index are not checked against hashes. A rewritten file is detected by its length and modification time.
+        BlockFileIndex index = null;
+        long blockFileLength = blockFile.length();
+        long blockFileModificationTime = blockFile.lastModified();
+        List<Long> heights = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        IndexedBlockFile.loadOffsets(blockFile, heights, offsets, lengths);
+        if (!heights.isEmpty()) {
+            int numberOfEntries = heights.size();
+            long[] heightArray = new long[numberOfEntries];
+            int[] offsetArray = new int[numberOfEntries];
+            int[] lengthArray = new int[numberOfEntries];
+            for (int i = 0; i < numberOfEntries; i++) {
+                heightArray[i] = heights.get(i);
+                offsetArray[i] = offsets.get(i);
+                lengthArray[i] = lengths.get(i);
+            }
+
+            index = new BlockFileIndex(blockFileLength, blockFileModificationTime, heightArray, offsetArray,
+                    lengthArray, null);
+        }
+
+        return index;
+    }
+
+    private static BlockFileIndex load(File sidecarFile) {
+
+        BlockFileIndex index = null;
+        if (sidecarFile.exists()) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(sidecarFile.getAbsolutePath())));
+                if (buffer.getInt() == magicValue && buffer.get() == formatVersion) {
+                    long blockFileLength = buffer.getLong();
+                    long blockFileModificationTime = buffer.getLong();
+                    int numberOfEntries = buffer.getInt();
+                    long[] heights = new long[numberOfEntries];
+                    int[] offsets = new int[numberOfEntries];
+                    int[] lengths = new int[numberOfEntries];
+                    byte[][] hashes = new byte[numberOfEntries][];
+                    for (int i = 0; i < numberOfEntries; i++) {
+                        heights[i] = buffer.getLong();
+                        offsets[i] = buffer.getInt();
+                        lengths[i] = buffer.getInt();
+                        hashes[i] = Message.getByteArray(buffer, FieldByteSize.hash);
+                    }
+
+                    index = new BlockFileIndex(blockFileLength, blockFileModificationTime, heights, offsets, lengths,
+                            hashes);
+                }
+            } catch (Exception ignored) { }
+        }
+
+        return index;
+    }
+
+    private static BlockFileIndex build(File blockFile) {
+
+        BlockFileIndex index = null;
+        try {
+            long blockFileLength = blockFile.length();
+            long blockFileModificationTime = blockFile.lastModified();
+            List<Block> blocks = new ArrayList<>();
+            List<Integer> offsets = new ArrayList<>();
+            List<Integer> lengths = new ArrayList<>();
+
+            // The legacy format must be walked from the beginning, skipping over the embedded balance lists.
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(blockFile.getAbsolutePath())));
+            int numberOfBlocks = buffer.getShort();
+            Block previousBlock = null;
+            for (int i = 0; i < numberOfBlocks; i++) {
+                int offset = buffer.position();
+                Block block = Block.fromByteBuffer(buffer, false);
+                offsets.add(offset);
+                lengths.add(buffer.position() - offset);
+                blocks.add(block);
+                if (previousBlock == null || (previousBlock.getBlockHeight() != block.getBlockHeight() - 1)) {
+                    BlockManager.skipBalanceListInFile(buffer);
+                }
+                previousBlock = block;
+            }
+
+            if (blocks.size() == offsets.size()) {
+                int numberOfEntries = blocks.size();
+                long[] heightArray = new long[numberOfEntries];
+                int[] offsetArray = new int[numberOfEntries];
+                int[] lengthArray = new int[numberOfEntries];
+                byte[][] hashArray = new byte[numberOfEntries][];
+                for (int i = 0; i < numberOfEntries; i++) {
+                    heightArray[i] = blocks.get(i).getBlockHeight();
+                    offsetArray[i] = offsets.get(i);
+                    lengthArray[i] = lengths.get(i);
+                    hashArray[i] = blocks.get(i).getHash();
+                }
+
+                index = new BlockFileIndex(blockFileLength, blockFileModificationTime, heightArray, offsetArray,
+                        lengthArray, hashArray);
+            }
+        } catch (Exception ignored) { }
+
+        return index;
+    }
+
+    private void write(File sidecarFile) {
+
+        byte[] bytes = new byte[getByteSize()];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putInt(magicValue);
+        buffer.put(formatVersion);
+        buffer.putLong(blockFileLength);
+        buffer.putLong(blockFileModificationTime);
+        buffer.putInt(heights.length);
+        for (int i = 0; i < heights.length; i++) {
+            buffer.putLong(heights[i]);
+            buffer.putInt(offsets[i]);
+            buffer.putInt(lengths[i]);
+            buffer.put(hashes[i]);
+        }
+
+        FileUtil.writeFile(Paths.get(sidecarFile.getAbsolutePath()), bytes);
+    }
+}
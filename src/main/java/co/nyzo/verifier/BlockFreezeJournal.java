@@ -0,0 +1,577 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.NotificationUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+public class BlockFreezeJournal {
+
+    // This is an append-only journal of frozen blocks. Freezing a block only places a record in memory, where it is
+    // immediately available to readers. A background thread appends the pending records to the journal and forces
+    // them to disk with a single sync for each batch. The journal is divided into one segment for each consolidated
+    // file, so the consolidator can read a whole segment at once and delete it when the consolidated file is written.
+    //
+    // record:  payload length (4 bytes), CRC-32 of the payload (4 bytes), payload
+    // payload: block bytes, followed by a balance list or a balance-list delta in the block-file encoding
+
+    // The directory is built from the data root rather than from the block manager, because the block manager
+    // initializes the journal during its own static initialization.
+    public static final File journalDirectory = new File(new File(Verifier.dataRootDirectory, "blocks"), "journal");
+
+    private static final String commitIntervalKey = "block_freeze_journal_commit_interval_ms";
+    private static final long commitInterval = Math.max(0, PreferencesUtil.getInt(commitIntervalKey, 250));
+
+    private static final int recordHeaderByteSize = 4 + 4;
+
+    private static final LinkedBlockingQueue<JournalRecord> queue = new LinkedBlockingQueue<>();
+    private static final Map<Long, JournalRecord> pendingRecords = new ConcurrentHashMap<>();
+    private static final Map<Long, RecordLocation> recordLocations = new ConcurrentHashMap<>();
+    private static final AtomicBoolean writerStarted = new AtomicBoolean(false);
+    private static volatile boolean initialized = false;
+    private static volatile boolean disabled = false;
+
+    public static synchronized void initialize() {
+
+        // Rebuild the index of record locations from the segments on disk. A record that was only partially written
+        // when the verifier stopped is removed, along with anything after it.
+        if (!initialized) {
+            initialized = true;
+            journalDirectory.mkdirs();
+            File[] files = journalDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    long fileIndex = fileIndexForSegment(file);
+                    if (fileIndex >= 0) {
+                        replaySegment(file, fileIndex);
+                    }
+                }
+            }
+
+            System.out.println("loaded " + recordLocations.size() + " records from block freeze journal");
+        }
+    }
+
+    public static boolean append(Block block, BalanceList balanceList, BalanceList previousBalanceList) {
+
+        // The initialization check is made outside the lock, because the writer holds the lock while it syncs.
+        if (!initialized) {
+            initialize();
+        }
+
+        // After a segment could not be restored following a failed write, the journal accepts no more records, and
+        // the caller stores the block elsewhere.
+        boolean accepted = !disabled;
+        if (accepted) {
+            appendRecord(block, balanceList, previousBalanceList);
+        }
+
+        return accepted;
+    }
+
+    private static void appendRecord(Block block, BalanceList balanceList, BalanceList previousBalanceList) {
+
+        // The record is encoded here, on the freeze path, because the encoding requires the previous balance list,
+        // which the caller already has in memory.
+        // A delta is only written when the record of the previous height is in the same segment, so that every list
+        // can be resolved from its own segment. The first record of each segment is always a full list.
+        long blockHeight = block.getBlockHeight();
+        boolean previousHeightInSegment = blockHeight % BlockManager.blocksPerFile != 0L &&
+                (pendingRecords.containsKey(blockHeight - 1L) || recordLocations.containsKey(blockHeight - 1L));
+        byte[] blockBytes = block.getBytes();
+        byte[] balanceListBytes = BlockManager.balanceListBytesForFile(balanceList, previousHeightInSegment ?
+                previousBalanceList : null);
+        byte[] payload = new byte[blockBytes.length + balanceListBytes.length];
+        System.arraycopy(blockBytes, 0, payload, 0, blockBytes.length);
+        System.arraycopy(balanceListBytes, 0, payload, blockBytes.length, balanceListBytes.length);
+
+        JournalRecord record = new JournalRecord(block, balanceList, payload);
+        pendingRecords.put(blockHeight, record);
+        queue.add(record);
+
+        startWriter();
+    }
+
+    public static Block blockForHeight(long blockHeight) {
+
+        Block block = null;
+        JournalRecord record = pendingRecords.get(blockHeight);
+        if (record != null) {
+            block = record.block;
+        } else {
+            ByteBuffer payload = readPayload(blockHeight);
+            if (payload != null) {
+                try {
+                    block = Block.fromByteBuffer(payload, false);
+                } catch (Exception ignored) { }
+            }
+        }
+
+        return block;
+    }
+
+    public static byte[] blockBytesForHeight(long blockHeight) {
+
+        // The payload of a record begins with the block, so the block bytes are read directly without building the
+        // block.
+        byte[] blockBytes = null;
+        JournalRecord record = pendingRecords.get(blockHeight);
+        if (record != null) {
+            blockBytes = Arrays.copyOf(record.payload, record.block.getByteSize());
+        } else {
+            RecordLocation location = recordLocations.get(blockHeight);
+            ByteBuffer payload = location == null ? null : readPayload(location, location.blockLength);
+            if (payload != null) {
+                blockBytes = payload.array();
+            }
+        }
+
+        return blockBytes;
+    }
+
+    public static BalanceList balanceListForHeight(long blockHeight) {
+
+        // A delta is resolved by stepping back through the segment to the nearest full list, which is an anchor, the
+        // first record of the segment, or a record still in memory, and then applying the deltas forward. Only the
+        // segment of the requested height is read.
+        BalanceList balanceList = null;
+        JournalRecord record = pendingRecords.get(blockHeight);
+        if (record != null) {
+            balanceList = record.balanceList;
+        } else {
+            try {
+                List<BalanceListDelta> deltas = new ArrayList<>();
+                Block block = null;
+                long fileIndex = blockHeight / BlockManager.blocksPerFile;
+                long height = blockHeight;
+                boolean searching = true;
+                while (searching) {
+                    JournalRecord baseRecord = pendingRecords.get(height);
+                    ByteBuffer payload = baseRecord == null ? readPayload(height) : null;
+                    if (baseRecord != null) {
+                        balanceList = baseRecord.balanceList;
+                        searching = false;
+                    } else if (payload == null) {
+                        searching = false;
+                    } else {
+                        Block payloadBlock = Block.fromByteBuffer(payload, false);
+                        if (height == blockHeight) {
+                            block = payloadBlock;
+                        }
+                        if (payload.getLong(payload.position()) == BalanceListDelta.blockFileMarker) {
+                            payload.getLong();
+                            deltas.add(0, BalanceListDelta.fromByteBuffer(payload));
+                            height--;
+                            searching = height / BlockManager.blocksPerFile == fileIndex;
+                        } else {
+                            balanceList = BalanceList.fromByteBuffer(payload);
+                            searching = false;
+                        }
+                    }
+                }
+
+                balanceList = BalanceListDelta.applyAll(balanceList, deltas);
+
+                if (balanceList == null || block == null || balanceList.getBlockHeight() != blockHeight ||
+                        !ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+                    if (balanceList != null) {
+                        System.err.println("incorrect balance list in journal at height " + blockHeight);
+                    }
+                    balanceList = null;
+                }
+            } catch (Exception ignored) {
+                balanceList = null;
+            }
+        }
+
+        return balanceList;
+    }
+
+    public static int recordLengthForHeight(long blockHeight) {
+
+        RecordLocation location = recordLocations.get(blockHeight);
+        return location == null ? 0 : location.length;
+    }
+
+    public static long getHighestHeight() {
+
+        long highestHeight = -1L;
+        for (Long height : recordLocations.keySet()) {
+            highestHeight = Math.max(highestHeight, height);
+        }
+        for (Long height : pendingRecords.keySet()) {
+            highestHeight = Math.max(highestHeight, height);
+        }
+
+        return highestHeight;
+    }
+
+    public static Set<Long> segmentFileIndices() {
+
+        Set<Long> fileIndices = new HashSet<>();
+        for (Long height : recordLocations.keySet()) {
+            fileIndices.add(height / BlockManager.blocksPerFile);
+        }
+
+        return fileIndices;
+    }
+
+    public static List<Long> heightsForFileIndex(long fileIndex) {
+
+        // Only records that have been written are returned. The consolidator works well behind the frozen edge, so
+        // pending records are never relevant to it.
+        List<Long> heights = new ArrayList<>();
+        for (Long height : recordLocations.keySet()) {
+            if (height / BlockManager.blocksPerFile == fileIndex) {
+                heights.add(height);
+            }
+        }
+        Collections.sort(heights);
+
+        return heights;
+    }
+
+    public static synchronized void removeSegment(long fileIndex) {
+
+        // This is synchronized with the writer, so a segment is never deleted during a write.
+        for (Long height : new ArrayList<>(recordLocations.keySet())) {
+            if (height / BlockManager.blocksPerFile == fileIndex) {
+                recordLocations.remove(height);
+            }
+        }
+
+        segmentFileForFileIndex(fileIndex).delete();
+    }
+
+    public static synchronized void flush() {
+
+        // The writer may hold records that it has already taken from the queue, so every pending record is written
+        // here, not only the queued records. Records that the writer submits later are skipped, because they are no
+        // longer pending.
+        queue.clear();
+        List<JournalRecord> records = new ArrayList<>(pendingRecords.values());
+        Collections.sort(records, new Comparator<JournalRecord>() {
+            @Override
+            public int compare(JournalRecord record1, JournalRecord record2) {
+                return ((Long) record1.block.getBlockHeight()).compareTo(record2.block.getBlockHeight());
+            }
+        });
+        writeRecords(records);
+    }
+
+    static synchronized void reset() {
+
+        // This discards everything held in memory, as a restart does, so the tests can replay the segments. Records
+        // that have not been written are lost.
+        queue.clear();
+        pendingRecords.clear();
+        recordLocations.clear();
+        disabled = false;
+        initialized = false;
+    }
+
+    public static File segmentFileForFileIndex(long fileIndex) {
+
+        return new File(journalDirectory, String.format("j_%06d.%s", fileIndex, "nyzojournal"));
+    }
+
+    private static void startWriter() {
+
+        if (!writerStarted.getAndSet(true)) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    while (!UpdateUtil.shouldTerminate()) {
+                        try {
+                            // Wait for a record, then allow a short interval for more records to arrive so that they
+                            // share a single sync.
+                            JournalRecord record = queue.poll(1L, TimeUnit.SECONDS);
+                            if (record != null) {
+                                if (commitInterval > 0) {
+                                    Thread.sleep(commitInterval);
+                                }
+
+                                List<JournalRecord> records = new ArrayList<>();
+                                records.add(record);
+                                queue.drainTo(records);
+                                writeRecords(records);
+                            }
+                        } catch (Exception reportOnly) {
+                            System.err.println("exception in block freeze journal writer: " +
+                                    PrintUtil.printException(reportOnly));
+                        }
+                    }
+
+                    // Write anything that is still pending before exiting.
+                    flush();
+                    writerStarted.set(false);
+                }
+            }, "BlockFreezeJournal-writer").start();
+        }
+    }
+
+    private static synchronized void writeRecords(List<JournalRecord> records) {
+
+        // Group the records by segment, preserving order. Records that are no longer pending have already been
+        // written, by a flush or by an earlier batch, and they are skipped.
+        Map<Long, List<JournalRecord>> segmentMap = new TreeMap<>();
+        Set<Long> heights = new HashSet<>();
+        for (JournalRecord record : records) {
+            long height = record.block.getBlockHeight();
+            if (pendingRecords.get(height) == record && heights.add(height)) {
+                long fileIndex = height / BlockManager.blocksPerFile;
+                List<JournalRecord> segmentRecords = segmentMap.get(fileIndex);
+                if (segmentRecords == null) {
+                    segmentRecords = new ArrayList<>();
+                    segmentMap.put(fileIndex, segmentRecords);
+                }
+                segmentRecords.add(record);
+            }
+        }
+
+        for (Long fileIndex : segmentMap.keySet()) {
+            List<JournalRecord> segmentRecords = segmentMap.get(fileIndex);
+            if (disabled) {
+                writeIndividualFiles(segmentRecords);
+            } else {
+                writeSegmentRecords(fileIndex, segmentRecords);
+            }
+        }
+    }
+
+    private static void writeSegmentRecords(long fileIndex, List<JournalRecord> segmentRecords) {
+
+        File segmentFile = segmentFileForFileIndex(fileIndex);
+        long position = -1L;
+        boolean written = false;
+        try (FileChannel channel = FileChannel.open(Paths.get(segmentFile.getAbsolutePath()),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+
+            int byteSize = 0;
+            for (JournalRecord record : segmentRecords) {
+                byteSize += recordHeaderByteSize + record.payload.length;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(byteSize);
+            position = channel.size();
+            List<RecordLocation> locations = new ArrayList<>();
+            for (JournalRecord record : segmentRecords) {
+                buffer.putInt(record.payload.length);
+                buffer.putInt(checksum(record.payload));
+                locations.add(new RecordLocation(fileIndex, position + buffer.position(),
+                        record.payload.length, record.block.getByteSize()));
+                buffer.put(record.payload);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            written = true;
+
+            // The location is registered before the pending record is removed, so readers always find one or the
+            // other.
+            for (int i = 0; i < segmentRecords.size(); i++) {
+                JournalRecord record = segmentRecords.get(i);
+                long height = record.block.getBlockHeight();
+                recordLocations.put(height, locations.get(i));
+                if (pendingRecords.get(height) == record) {
+                    pendingRecords.remove(height);
+                }
+                BalanceListCheckpointStore.recordBalanceList(record.balanceList);
+            }
+
+        } catch (Exception reportOnly) {
+            System.err.println("unable to write block freeze journal: " + PrintUtil.printException(reportOnly));
+            NotificationUtil.sendOnce("unable to write block freeze journal segment " + segmentFile.getName() +
+                    " on " + Verifier.getNickname());
+
+            // Part of the batch may have reached the segment. The segment is cut back to its length before the
+            // write, so the records can be retried with the next batch. Otherwise, the retried records and everything
+            // after them would follow the partial record and be discarded when the segment is replayed. If the
+            // segment cannot be restored, the journal is disabled, and the records are written to individual files.
+            // Records that were already forced to disk are left in place.
+            if (written) {
+                System.err.println("block freeze journal records were written to " + segmentFile.getName());
+            } else if (position < 0L || truncateSegment(segmentFile, position)) {
+                queue.addAll(segmentRecords);
+            } else {
+                disabled = true;
+                System.err.println("disabling block freeze journal; segment " + segmentFile.getName() +
+                        " could not be restored to " + position + " bytes");
+                NotificationUtil.send("disabling block freeze journal after a failed write to " +
+                        segmentFile.getName() + " on " + Verifier.getNickname());
+                writeIndividualFiles(segmentRecords);
+            }
+        }
+    }
+
+    private static boolean truncateSegment(File segmentFile, long size) {
+
+        boolean successful = false;
+        try (FileChannel channel = FileChannel.open(Paths.get(segmentFile.getAbsolutePath()),
+                StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+            channel.force(false);
+            successful = channel.size() == size;
+        } catch (Exception reportOnly) {
+            System.err.println("unable to truncate block freeze journal segment " + segmentFile.getName() + ": " +
+                    PrintUtil.printException(reportOnly));
+        }
+
+        return successful;
+    }
+
+    private static void writeIndividualFiles(List<JournalRecord> records) {
+
+        // This is used after the journal has been disabled. A record that cannot be written remains pending, so it is
+        // still available in memory, and it is retried with the next batch.
+        for (JournalRecord record : records) {
+            long height = record.block.getBlockHeight();
+            if (BlockManager.writeIndividualFile(record.block, record.balanceList)) {
+                if (pendingRecords.get(height) == record) {
+                    pendingRecords.remove(height);
+                }
+                BalanceListCheckpointStore.recordBalanceList(record.balanceList);
+            } else {
+                queue.add(record);
+            }
+        }
+    }
+
+    private static void replaySegment(File segmentFile, long fileIndex) {
+
+        try (FileChannel channel = FileChannel.open(Paths.get(segmentFile.getAbsolutePath()),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            long size = channel.size();
+            long position = 0L;
+            boolean valid = true;
+            ByteBuffer header = ByteBuffer.allocate(recordHeaderByteSize);
+            while (valid && position + recordHeaderByteSize <= size) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length <= 0 || position + recordHeaderByteSize + length > size) {
+                    valid = false;
+                } else {
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    readFully(channel, payload, position + recordHeaderByteSize);
+                    if (checksum(payload.array()) != checksum) {
+                        valid = false;
+                    } else {
+                        payload.flip();
+                        Block block = Block.fromByteBuffer(payload, false);
+                        recordLocations.put(block.getBlockHeight(), new RecordLocation(fileIndex,
+                                position + recordHeaderByteSize, length, payload.position()));
+                        position += recordHeaderByteSize + length;
+                    }
+                }
+            }
+
+            if (position < size) {
+                System.out.println("truncating block freeze journal segment " + segmentFile.getName() + " from " +
+                        size + " to " + position + " bytes");
+                channel.truncate(position);
+            }
+        } catch (Exception reportOnly) {
+            System.err.println("unable to replay block freeze journal segment " + segmentFile.getName() + ": " +
+                    PrintUtil.printException(reportOnly));
+        }
+    }
+
+    private static ByteBuffer readPayload(long blockHeight) {
+
+        RecordLocation location = recordLocations.get(blockHeight);
+        return location == null ? null : readPayload(location, location.length);
+    }
+
+    private static ByteBuffer readPayload(RecordLocation location, int length) {
+
+        ByteBuffer payload = null;
+        if (location != null) {
+            File segmentFile = segmentFileForFileIndex(location.fileIndex);
+            try (FileChannel channel = FileChannel.open(Paths.get(segmentFile.getAbsolutePath()),
+                    StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                readFully(channel, buffer, location.offset);
+                buffer.flip();
+                payload = buffer;
+            } catch (Exception ignored) { }
+        }
+
+        return payload;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws Exception {
+
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int length = channel.read(buffer, offset);
+            if (length < 0) {
+                throw new RuntimeException("unexpected end of journal segment");
+            }
+            offset += length;
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static long fileIndexForSegment(File file) {
+
+        long fileIndex = -1L;
+        try {
+            fileIndex = Long.parseLong(file.getName().replace("j_", "").replace(".nyzojournal", ""));
+        } catch (Exception ignored) { }
+
+        return fileIndex;
+    }
+
+    private static class JournalRecord {
+
+        private final Block block;
+        private final BalanceList balanceList;
+        private final byte[] payload;
+
+        private JournalRecord(Block block, BalanceList balanceList, byte[] payload) {
+            this.block = block;
+            this.balanceList = balanceList;
+            this.payload = payload;
+        }
+    }
+
+    private static class RecordLocation {
+
+        private final long fileIndex;
+        private final long offset;
+        private final int length;
+        private final int blockLength;
+
+        private RecordLocation(long fileIndex, long offset, int length, int blockLength) {
+            this.fileIndex = fileIndex;
+            this.offset = offset;
+            this.length = length;
+            this.blockLength = blockLength;
+        }
+    }
+}
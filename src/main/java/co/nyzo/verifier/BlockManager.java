@@ -15,6 +15,13 @@ public class BlockManager {
 
     public static final File blockRootDirectory = new File(Verifier.dataRootDirectory, "blocks");
     public static final File individualBlockDirectory = new File(blockRootDirectory, "individual");
+
+    // Individual files are sharded into one directory for each consolidated file index, so no directory holds more
+    // than one consolidated file's worth of blocks. The manifest records the highest height written to an individual
+    // file, so startup does not need to list the directories. Files in the flat layout of older versions are still
+    // read, and the file consolidator moves them into the sharded layout in the background.
+    private static final File individualFileManifest = new File(individualBlockDirectory, "manifest");
+    private static long highestIndividualFileHeight = -2L;
     private static long trailingEdgeHeight = -1L;
     private static long frozenEdgeHeight = -1L;
     public static final long blocksPerFile = 1000L;
@@ -31,6 +38,26 @@ public class BlockManager {
     private static final String lastVerifierRemovalHeightKey = "last_verifier_removal_height";
     private static long lastVerifierRemovalHeight = PersistentData.getLong(lastVerifierRemovalHeightKey, -1L);
 
+    // Freeze-journal records store a full balance list at anchor heights and a delta from the previous height
+    // otherwise. Anchors limit the number of records that must be read to resolve a delta within a journal segment.
+    private static final String balanceListAnchorIntervalKey = "block_file_balance_list_anchor_interval";
+    private static final long balanceListAnchorInterval = Math.max(1,
+            PreferencesUtil.getInt(balanceListAnchorIntervalKey, 100));
+    private static BalanceList lastFrozenBalanceList = null;
+
+    private static final Map<String, Object> extractionLocks = new ConcurrentHashMap<>();
+
+    // A chain-state checkpoint is used at startup if no more than this many blocks were frozen after it was written.
+    // Each of those blocks is applied with a full cycle calculation, so a checkpoint that is far behind is slower than
+    // loading from the block files.
+    private static final String maximumCheckpointLagKey = "chain_state_checkpoint_maximum_lag";
+    private static final long maximumCheckpointLag = Math.max(0, PreferencesUtil.getInt(maximumCheckpointLagKey,
+            100));
+
+    // Frozen blocks are read and written through the block store. This must be created before initialization.
+    private static final String blockStoreKey = "block_store";
+    private static final BlockStore store = createBlockStore();
+
     static {
         initialize();
     }
@@ -41,6 +68,27 @@ public class BlockManager {
         UpdateUtil.terminate();
     }
 
+    public static BlockStore getBlockStore() {
+
+        return store;
+    }
+
+    private static BlockStore createBlockStore() {
+
+        String storeName = PreferencesUtil.get(blockStoreKey).toLowerCase();
+        BlockStore store;
+        if (storeName.equals("memory")) {
+            store = new MemoryBlockStore();
+        } else if (storeName.equals("mapped")) {
+            store = new MappedBlockStore(new File(blockRootDirectory, "mapped"));
+        } else {
+            store = new FileBlockStore();
+        }
+        System.out.println("using block store " + store.getClass().getSimpleName());
+
+        return store;
+    }
+
     public static boolean isInitialized() {
 
         return initialized;
@@ -88,7 +136,7 @@ public class BlockManager {
 
             // If initialization has not completed, load the block into the standard map.
             if (block == null && !initialized) {
-                block = loadBlockFromFile(blockHeight);
+                block = store.loadBlock(blockHeight);
                 if (block != null) {
                     BlockManagerMap.addBlock(block);
                 }
@@ -98,10 +146,12 @@ public class BlockManager {
         return block;
     }
 
-    public static synchronized List<Block> loadBlocksInFile(File file, long minimumHeight, long maximumHeight) {
+    public static List<Block> loadBlocksInFile(File file, long minimumHeight, long maximumHeight) {
 
         List<Block> blocks = new ArrayList<>();
-        if (file.exists()) {
+        if (IndexedBlockFile.isIndexedFile(file)) {
+            blocks = IndexedBlockFile.loadBlocks(file, minimumHeight, maximumHeight);
+        } else if (file.exists()) {
             Path path = Paths.get(file.getAbsolutePath());
             try {
                 byte[] fileBytes = Files.readAllBytes(path);
@@ -113,7 +163,7 @@ public class BlockManager {
                     Block block = Block.fromByteBuffer(buffer, false);
                     if (previousBlock == null || (previousBlock.getBlockHeight() != block.getBlockHeight() - 1)) {
                         // Read and discard the balance list.
-                        BalanceList.fromByteBuffer(buffer);
+                        skipBalanceListInFile(buffer);
                     }
 
                     if (block.getBlockHeight() >= minimumHeight && block.getBlockHeight() <= maximumHeight) {
@@ -145,19 +195,22 @@ public class BlockManager {
             }
         });
 
+        // For the first block and all blocks with gaps, include the balance list. The previous height is never in the
+        // same file at these positions, so the full list is always written, and the file can be read on its own.
+        byte[][] balanceListBytes = new byte[blocks.size()][];
         int byteSize = 2;  // number of blocks is stored as a short
         for (int i = 0; i < blocks.size(); i++) {
             Block block = blocks.get(i);
             byteSize += block.getByteSize();
 
-            // For the first block and all blocks with gaps, include the balance list.
             if (i == 0 || (blocks.get(i - 1).getBlockHeight() != (block.getBlockHeight() - 1))) {
 
                 BalanceList balanceList = balanceListMap.get(block.getBlockHeight());
                 if (balanceList == null) {
                     successful = false;
                 } else {
-                    byteSize += balanceList.getByteSize();
+                    balanceListBytes[i] = balanceList.getBytes();
+                    byteSize += balanceListBytes[i].length;
                 }
             }
         }
@@ -166,26 +219,19 @@ public class BlockManager {
         ByteBuffer buffer = ByteBuffer.wrap(bytes);
         buffer.putShort((short) blocks.size());  // number of blocks
         for (int i = 0; i < blocks.size(); i++) {
-            Block block = blocks.get(i);
-            buffer.put(block.getBytes());
-            if (i == 0 || (blocks.get(i - 1).getBlockHeight() != (block.getBlockHeight() - 1))) {
-
-                BalanceList balanceList = balanceListMap.get(block.getBlockHeight());
-                if (balanceList == null) {
-                    successful = false;
-                } else {
-                    buffer.put(balanceList.getBytes());
-                }
+            buffer.put(blocks.get(i).getBytes());
+            if (balanceListBytes[i] != null) {
+                buffer.put(balanceListBytes[i]);
             }
         }
 
         if (successful) {
             try {
                 file.getParentFile().mkdirs();
-                FileUtil.writeFile(Paths.get(file.getAbsolutePath()), bytes);
-                successful = true;
+                FileUtil.writeFileOrThrow(Paths.get(file.getAbsolutePath()), bytes);
             } catch (Exception reportOnly) {
                 System.err.println(PrintUtil.printException(reportOnly));
+                successful = false;
             }
         }
 
@@ -196,6 +242,55 @@ public class BlockManager {
         return successful;
     }
 
+    public static byte[] balanceListBytesForFile(BalanceList balanceList, BalanceList previousBalanceList) {
+
+        // The delta is used when the previous list is available and the height is not an anchor.
+        BalanceListDelta delta = null;
+        if (balanceList.getBlockHeight() % balanceListAnchorInterval != 0L) {
+            delta = BalanceListDelta.forBalanceLists(previousBalanceList, balanceList);
+        }
+
+        byte[] bytes;
+        if (delta == null) {
+            bytes = balanceList.getBytes();
+        } else {
+            bytes = new byte[FieldByteSize.blockHeight + delta.getByteSize()];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            buffer.putLong(BalanceListDelta.blockFileMarker);
+            buffer.put(delta.getBytes());
+        }
+
+        return bytes;
+    }
+
+    public static void skipBalanceListInFile(ByteBuffer buffer) {
+
+        if (buffer.getLong(buffer.position()) == BalanceListDelta.blockFileMarker) {
+            buffer.getLong();
+            BalanceListDelta.fromByteBuffer(buffer);
+        } else {
+            BalanceList.fromByteBuffer(buffer);
+        }
+    }
+
+    public static BalanceList readBalanceListInFile(ByteBuffer buffer, BalanceList previousBalanceList) {
+
+        // A delta is resolved against the balance list of the previous height, which the caller provides from the same
+        // file or journal segment. The result is null if that list is not provided or if the hash of the result does
+        // not match the hash stored in the delta. No other source is consulted, so reading a list never leads to
+        // reading another file.
+        BalanceList balanceList;
+        if (buffer.getLong(buffer.position()) == BalanceListDelta.blockFileMarker) {
+            buffer.getLong();
+            BalanceListDelta delta = BalanceListDelta.fromByteBuffer(buffer);
+            balanceList = delta.applyTo(previousBalanceList);
+        } else {
+            balanceList = BalanceList.fromByteBuffer(buffer);
+        }
+
+        return balanceList;
+    }
+
     public static void freezeBlock(Block block) {
 
         Block previousBlock = frozenBlockForHeight(block.getBlockHeight() - 1);
@@ -215,8 +310,18 @@ public class BlockManager {
                 setFrozenEdge(block, cycleVerifiers);
                 BalanceListManager.registerBalanceList(balanceList);
 
-                writeBlocksToFile(Arrays.asList(block), Arrays.asList(balanceList),
-                        individualFileForBlockHeight(block.getBlockHeight()));
+                // When the balance list of the previous block is available, it is passed along to the store so that a
+                // delta can be stored instead of the full list.
+                BalanceList previousBalanceList = null;
+                if (lastFrozenBalanceList != null &&
+                        lastFrozenBalanceList.getBlockHeight() == block.getBlockHeight() - 1L) {
+                    previousBalanceList = lastFrozenBalanceList;
+                }
+                if (!store.freezeBlock(block, balanceList, previousBalanceList)) {
+                    System.err.println("unable to store frozen block " + block.getBlockHeight());
+                    NotificationUtil.sendOnce("unable to store frozen blocks on " + Verifier.getNickname());
+                }
+                lastFrozenBalanceList = balanceList;
 
                 if (block.getBlockHeight() == 0L) {
 
@@ -233,9 +338,66 @@ public class BlockManager {
 
     public static File individualFileForBlockHeight(long blockHeight) {
 
+        // The Genesis file stays at its path in the flat layout, because tools and scripts outside the verifier read
+        // it there. All other individual files are in the shard directory of their file index.
+        return blockHeight == 0L ? legacyIndividualFileForBlockHeight(blockHeight) :
+                shardedIndividualFileForBlockHeight(blockHeight);
+    }
+
+    static File shardedIndividualFileForBlockHeight(long blockHeight) {
+
+        return new File(individualDirectoryForFileIndex(blockHeight / blocksPerFile), String.format("i_%09d.%s",
+                blockHeight, "nyzoblock"));
+    }
+
+    public static File individualDirectoryForFileIndex(long fileIndex) {
+
+        return new File(individualBlockDirectory, String.format("%06d", fileIndex));
+    }
+
+    public static File legacyIndividualFileForBlockHeight(long blockHeight) {
+
         return new File(individualBlockDirectory, String.format("i_%09d.%s", blockHeight, "nyzoblock"));
     }
 
+    public static File existingIndividualFileForBlockHeight(long blockHeight) {
+
+        // The other location is the flat layout for most heights. For the Genesis block, which a previous version
+        // moved into its shard directory, it is the shard directory. The current location is checked again after the
+        // other location, because the migration may have moved the file between the first two checks.
+        File file = individualFileForBlockHeight(blockHeight);
+        if (!file.exists()) {
+            File otherFile = blockHeight == 0L ? shardedIndividualFileForBlockHeight(blockHeight) :
+                    legacyIndividualFileForBlockHeight(blockHeight);
+            if (otherFile.exists() || !file.exists()) {
+                file = otherFile;
+            }
+        }
+
+        return file;
+    }
+
+    static boolean writeIndividualFile(Block block, BalanceList balanceList) {
+
+        File file = individualFileForBlockHeight(block.getBlockHeight());
+        boolean successful = writeBlocksToFile(new ArrayList<>(Collections.singletonList(block)),
+                Collections.singletonList(balanceList), file);
+        if (successful) {
+            recordIndividualFileHeight(block.getBlockHeight());
+        }
+
+        return successful;
+    }
+
+    private static synchronized void recordIndividualFileHeight(long blockHeight) {
+
+        if (blockHeight > findHighestIndividualFileHeight()) {
+            highestIndividualFileHeight = blockHeight;
+            FileUtil.writeFile(Paths.get(individualFileManifest.getAbsolutePath()),
+                    Collections.singletonList(blockHeight + ""));
+        }
+    }
+
     public static File consolidatedFileForBlockHeight(long blockHeight) {
 
         // This format provides 158.5 years of blocks with nicely aligned names. After that, it will still work fine,
@@ -246,78 +408,70 @@ public class BlockManager {
         return new File(directory, String.format("%06d.%s", fileIndex, "nyzoblock"));
     }
 
-    private static Block loadBlockFromFile(long blockHeight) {
-
-        // Try to first load the block from the individual file. If the block is not there, extract the consolidated
-        // file and try to load the block from there. In time, no consolidated files should need to be read, but this
-        // provides a smooth transition from the old, more aggressive behavior of the file consolidator.
-        List<Block> blocks = loadBlocksInFile(individualFileForBlockHeight(blockHeight), blockHeight, blockHeight);
-        Block block = null;
-        if (!blocks.isEmpty() && blocks.get(0).getBlockHeight() == blockHeight) {
-            block = blocks.get(0);
-        } else {
-            extractConsolidatedFile(consolidatedFileForBlockHeight(blockHeight));
-
-            blocks = loadBlocksInFile(individualFileForBlockHeight(blockHeight), blockHeight, blockHeight);
-            if (!blocks.isEmpty() && blocks.get(0).getBlockHeight() == blockHeight) {
-                block = blocks.get(0);
-            }
-        }
-        return block;
-    }
-
     private static synchronized void initialize() {
 
         if (!initialized) {
 
             // This method only needs to load the locally stored blocks, and it can do so synchronously.
+            store.initialize();
 
-            // Ensure that both the block directory and the individual block directory exist. The individual block
-            // directory is a subdirectory of the block directory, so a single call can ensure both.
-            individualBlockDirectory.mkdirs();
-
-            // Try to load the Genesis block from file.
-            Block genesisBlock = loadBlockFromFile(0L);
+            // Try to load the Genesis block from the store.
+            Block genesisBlock = store.loadBlock(0L);
             if (genesisBlock != null) {
 
                 // Set the frozen edge height to the Genesis block level.
                 genesisBlockStartTimestamp = genesisBlock.getStartTimestamp();
                 setFrozenEdge(genesisBlock, null);
 
-                // Try to load the highest block that has not yet been consolidated.
-                long highestIndividualFileHeight = findHighestIndividualFileHeight();
-                if (highestIndividualFileHeight > getFrozenEdgeHeight()) {
-
-                    File individualFile = individualFileForBlockHeight(highestIndividualFileHeight);
-                    List<Block> individualBlockList = loadBlocksInFile(individualFile, highestIndividualFileHeight,
-                            highestIndividualFileHeight);
-                    if (individualBlockList.size() > 0) {
-                        Block block = individualBlockList.get(0);
-                        setFrozenEdge(block, null);
-                        System.out.println("set frozen edge to " + block.getBlockHeight() + " in individual loading");
+                // If the chain-state checkpoint matches the stored blocks, it provides the frozen edge, the cycle, and
+                // the edge balance lists directly. Otherwise, they are rebuilt from the block files.
+                ChainStateCheckpoint checkpoint = ChainStateCheckpoint.load();
+                boolean restoredFromCheckpoint = checkpoint != null && restoreChainState(checkpoint);
+                if (!restoredFromCheckpoint) {
+
+                    // Try to load the highest stored block.
+                    long highestStoredHeight = store.getHighestHeight();
+                    if (highestStoredHeight > getFrozenEdgeHeight()) {
+
+                        Block block = store.loadBlock(highestStoredHeight);
+                        if (block != null) {
+                            setFrozenEdge(block, null);
+                            System.out.println("set frozen edge to " + block.getBlockHeight() +
+                                    " in individual loading");
+                        }
                     }
-                }
 
-                // Step back in the chain until the cycle information for the frozen edge can be calculated.
-                long blockHeight = getFrozenEdgeHeight();
-                Block frozenEdge = frozenBlockForHeight(blockHeight);
-                boolean foundBreak = false;
-                while (frozenEdge.getCycleInformation() == null && !foundBreak) {
-                    blockHeight--;
-                    Block block = frozenBlockForHeight(blockHeight);
-                    if (block == null) {
-                        foundBreak = true;
+                    // Step back in the chain until the cycle information for the frozen edge can be calculated.
+                    long blockHeight = getFrozenEdgeHeight();
+                    Block frozenEdge = frozenBlockForHeight(blockHeight);
+                    boolean foundBreak = false;
+                    while (frozenEdge.getCycleInformation() == null && !foundBreak) {
+                        blockHeight--;
+                        Block block = frozenBlockForHeight(blockHeight);
+                        if (block == null) {
+                            foundBreak = true;
+                        }
                     }
                 }
 
-                // Load the balance lists of the trailing and frozen edges into the balance list manager. This gives us the
-                // balance lists necessary to immediately serve bootstrap response requests.
+                // Load the balance lists of the trailing and frozen edges into the balance list manager. This gives us
+                // the balance lists necessary to immediately serve bootstrap response requests. The lists from the
+                // checkpoint are used if the edges have not moved since it was written.
                 BalanceList trailingEdgeBalanceList = null;
+                BalanceList frozenEdgeBalanceList = null;
+                if (restoredFromCheckpoint) {
+                    trailingEdgeBalanceList = checkpointBalanceList(checkpoint.getTrailingEdgeBalanceList(),
+                            getTrailingEdgeHeight());
+                    frozenEdgeBalanceList = checkpointBalanceList(checkpoint.getFrozenEdgeBalanceList(),
+                            getFrozenEdgeHeight());
+                }
                 for (long height = getTrailingEdgeHeight(); height < getFrozenEdgeHeight() &&
                         trailingEdgeBalanceList == null; height++) {
                     trailingEdgeBalanceList = loadBalanceListFromFileForHeight(height);
                 }
-                BalanceList frozenEdgeBalanceList = loadBalanceListFromFileForHeight(getFrozenEdgeHeight());
+                if (frozenEdgeBalanceList == null) {
+                    frozenEdgeBalanceList = loadBalanceListFromFileForHeight(getFrozenEdgeHeight());
+                }
                 BalanceListManager.registerBalanceList(trailingEdgeBalanceList);
                 BalanceListManager.registerBalanceList(frozenEdgeBalanceList);
 
@@ -328,26 +482,105 @@ public class BlockManager {
         }
     }
 
+    private static synchronized boolean restoreChainState(ChainStateCheckpoint checkpoint) {
+
+        // The checkpoint is only used if its frozen edge is the block stored at that height and only a few blocks have
+        // been stored after it.
+        Block checkpointBlock = checkpoint.getFrozenEdge();
+        long checkpointHeight = checkpointBlock.getBlockHeight();
+        long highestHeight = store.getHighestHeight();
+        Block storedBlock = checkpointHeight > getFrozenEdgeHeight() &&
+                highestHeight - checkpointHeight <= maximumCheckpointLag ? store.loadBlock(checkpointHeight) : null;
+        boolean restored = storedBlock != null &&
+                ByteUtil.arraysAreEqual(storedBlock.getHash(), checkpointBlock.getHash());
+
+        if (restored) {
+
+            // Set the state with the same methods that setFrozenEdge() and updateVerifiersInCurrentCycle() use,
+            // without stepping back through the chain.
+            CycleInformation cycleInformation = checkpointBlock.getCycleInformation();
+            setEdgeHeights(checkpointHeight, cycleInformation);
+            lastVerifierRemovalHeight = checkpoint.getLastVerifierRemovalHeight();
+            setCurrentCycle(checkpointHeight, new ArrayList<>(checkpoint.getCycleVerifiers()),
+                    cycleInformation.isInGenesisCycle());
+
+            // The cycle information of each block after the checkpoint is calculated by stepping back through the
+            // previous four cycles. Those blocks are loaded in one pass and added to the map before the checkpoint
+            // block, so that the calculation finds them in the map instead of reading them one at a time.
+            Map<Long, Block> storedBlocks = new HashMap<>();
+            if (highestHeight > checkpointHeight) {
+                for (Block block : store.loadBlocks(cycleInformation.getDeterminationHeight(), highestHeight)) {
+                    storedBlocks.put(block.getBlockHeight(), block);
+                }
+            }
+            for (long height = cycleInformation.getDeterminationHeight(); height < checkpointHeight; height++) {
+                BlockManagerMap.addBlock(storedBlocks.get(height));
+            }
+            BlockManagerMap.addBlock(checkpointBlock);
+
+            // Blocks stored after the checkpoint are applied in order. If one is missing, the frozen edge stays at the
+            // last block that could be applied, and the remainder is fetched from the mesh.
+            Block previousBlock = checkpointBlock;
+            for (long height = checkpointHeight + 1; height <= highestHeight && previousBlock != null; height++) {
+                Block block = storedBlocks.get(height);
+                if (block != null && ByteUtil.arraysAreEqual(block.getPreviousBlockHash(), previousBlock.getHash())) {
+                    setFrozenEdge(block, null);
+                } else {
+                    block = null;
+                }
+                previousBlock = block;
+            }
+
+            System.out.println("restored frozen edge " + checkpointHeight + " from chain-state checkpoint; frozen " +
+                    "edge is now " + getFrozenEdgeHeight());
+        }
+
+        return restored;
+    }
+
+    private static BalanceList checkpointBalanceList(BalanceList balanceList, long blockHeight) {
+
+        // A balance list from the checkpoint is only used if it is the balance list of the stored block at that
+        // height.
+        BalanceList result = null;
+        if (balanceList != null && balanceList.getBlockHeight() == blockHeight) {
+            Block block = frozenBlockForHeight(blockHeight);
+            if (block != null && ByteUtil.arraysAreEqual(block.getBalanceListHash(), balanceList.getHash())) {
+                result = balanceList;
+            }
+        }
+
+        return result;
+    }
+
     public static BalanceList loadBalanceListFromFileForHeight(long blockHeight) {
 
-        BalanceList balanceList = loadBalanceListFromFile(individualFileForBlockHeight(blockHeight), blockHeight);
-        if (balanceList == null) {
-            extractConsolidatedFile(consolidatedFileForBlockHeight(blockHeight));
+        return store.loadBalanceList(blockHeight);
+    }
+
+    static void extractConsolidatedFile(File file) {
 
-            balanceList = loadBalanceListFromFile(individualFileForBlockHeight(blockHeight), blockHeight);
+        // Extractions of the same file are serialized, so two readers that miss the same height do not write the same
+        // individual files at the same time. Extractions of different files proceed independently.
+        Object lock = new Object();
+        Object existingLock = extractionLocks.putIfAbsent(file.getAbsolutePath(), lock);
+        if (existingLock != null) {
+            lock = existingLock;
         }
 
-        return balanceList;
+        synchronized (lock) {
+            extractConsolidatedFileSerialized(file);
+        }
     }
 
-    private static void extractConsolidatedFile(File file) {
+    private static void extractConsolidatedFileSerialized(File file) {
 
         // This method will stay in the code because it doesn't do any harm, but it is a migration method, and it will
         // be used less and less over time. The old behavior of the file consolidator would consolidate files as soon
         // as they fell behind the frozen edge. This slowed down restarts, as consolidated files had to be read
         // directly.
 
-        if (file.exists()) {
+        if (file.exists() && !IndexedBlockFile.isIndexedFile(file)) {
             System.out.println("extracting consolidated file: " + file);
 
             Path path = Paths.get(file.getAbsolutePath());
@@ -372,18 +605,18 @@ public class BlockManager {
                                 block.getTransactions(), block.getVerifierIdentifier());
                     } else {
                         System.out.println("reading balance list for height " + block.getBlockHeight());
-                        balanceList = BalanceList.fromByteBuffer(buffer);
+                        balanceList = readBalanceListInFile(buffer, previousBalanceList);
                     }
 
                     // Confirm that the balance list hash matches.
-                    if (!ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+                    if (balanceList == null || !ByteUtil.arraysAreEqual(balanceList.getHash(),
+                            block.getBalanceListHash())) {
                         throw new RuntimeException("balance list hash does not match for block " +
                                 block.getBlockHeight());
                     }
 
                     // Write the individual file.
-                    writeBlocksToFile(Collections.singletonList(block), Collections.singletonList(balanceList),
-                            individualFileForBlockHeight(block.getBlockHeight()));
+                    writeIndividualFile(block, balanceList);
 
                     // Store the block and balance list for the next iteration.
                     previousBlock = block;
@@ -395,10 +628,12 @@ public class BlockManager {
         }
     }
 
-    private static BalanceList loadBalanceListFromFile(File file, long blockHeight) {
+    static BalanceList loadBalanceListFromFile(File file, long blockHeight) {
 
         BalanceList blockBalanceList = null;
-        if (file.exists()) {
+        if (IndexedBlockFile.isIndexedFile(file)) {
+            blockBalanceList = IndexedBlockFile.loadBalanceList(file, blockHeight);
+        } else if (file.exists()) {
             Path path = Paths.get(file.getAbsolutePath());
             try {
                 byte[] fileBytes = Files.readAllBytes(path);
@@ -409,7 +644,7 @@ public class BlockManager {
                 for (int i = 0; i < numberOfBlocks && blockBalanceList == null; i++) {
                     Block block = Block.fromByteBuffer(buffer, false);
                     if (previousBlock == null || (previousBlock.getBlockHeight() != block.getBlockHeight() - 1)) {
-                        balanceList = BalanceList.fromByteBuffer(buffer);
+                        balanceList = readBalanceListInFile(buffer, balanceList);
                     } else {
                         balanceList = Block.balanceListForNextBlock(previousBlock, balanceList, block.getTransactions(),
                                 block.getVerifierIdentifier());
@@ -418,7 +653,8 @@ public class BlockManager {
                     if (block.getBlockHeight() == blockHeight) {
                         blockBalanceList = balanceList;
 
-                        if (!ByteUtil.arraysAreEqual(blockBalanceList.getHash(), block.getBalanceListHash())) {
+                        if (blockBalanceList != null && !ByteUtil.arraysAreEqual(blockBalanceList.getHash(),
+                                block.getBalanceListHash())) {
                             System.err.println("incorrect hash for balance list");
                             blockBalanceList = null;
                         }
@@ -432,27 +668,60 @@ public class BlockManager {
         return blockBalanceList;
     }
 
-    private static long findHighestIndividualFileHeight() {
+    static synchronized long findHighestIndividualFileHeight() {
 
-        long height = -1L;
+        // The manifest is read once. If it is not present, the height is found from the files in the flat layout and
+        // the highest shard directory, and the manifest is written.
+        if (highestIndividualFileHeight < -1L) {
 
-        try {
-            List<File> files = Arrays.asList(individualBlockDirectory.listFiles());
+            long height = -1L;
+            try {
+                List<String> lines = Files.readAllLines(Paths.get(individualFileManifest.getAbsolutePath()));
+                height = Long.parseLong(lines.get(0).trim());
+            } catch (Exception ignored) {
+
+                File[] files = individualBlockDirectory.listFiles();
+                File highestDirectory = null;
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.isDirectory()) {
+                            if (highestDirectory == null || file.getName().compareTo(highestDirectory.getName()) > 0) {
+                                highestDirectory = file;
+                            }
+                        } else {
+                            height = Math.max(height, heightForIndividualFile(file));
+                        }
+                    }
+                }
 
-            Collections.sort(files, new Comparator<File>() {
-                @Override
-                public int compare(File file1, File file2) {
-                    return file2.getName().compareTo(file1.getName());
+                File[] directoryFiles = highestDirectory == null ? null : highestDirectory.listFiles();
+                if (directoryFiles != null) {
+                    for (File file : directoryFiles) {
+                        height = Math.max(height, heightForIndividualFile(file));
+                    }
                 }
-            });
 
-            for (int i = 0; i < files.size() && height < 0; i++) {
-                try {
-                    height = Long.parseLong(files.get(i).getName().replace("i_", "").replace(".nyzoblock", ""));
-                } catch (Exception ignored) {
+                if (height >= 0L) {
+                    FileUtil.writeFile(Paths.get(individualFileManifest.getAbsolutePath()),
+                            Collections.singletonList(height + ""));
                 }
             }
-        } catch (Exception ignored) { }
+
+            highestIndividualFileHeight = height;
+        }
+
+        return highestIndividualFileHeight;
+    }
+
+    public static long heightForIndividualFile(File file) {
+
+        long height = -1L;
+        String name = file.getName();
+        if (name.startsWith("i_") && name.endsWith(".nyzoblock")) {
+            try {
+                height = Long.parseLong(name.replace("i_", "").replace(".nyzoblock", ""));
+            } catch (Exception ignored) { }
+        }
 
         return height;
     }
@@ -463,16 +732,10 @@ public class BlockManager {
         if (block.getBlockHeight() < frozenEdgeHeight) {
             System.err.println("Attempting to set highest block frozen to a lesser value than is currently set.");
         } else {
-            // Set the frozen and trailing edge heights. If the cycle information is null, set the trailing edge to
-            // invalid.
-            frozenEdgeHeight = block.getBlockHeight();
-            boolean isNewVerifier = false;
-            if (block.getCycleInformation() == null) {
-                trailingEdgeHeight = -1L;
-            } else {
-                trailingEdgeHeight = Math.max(block.getCycleInformation().getDeterminationHeight(), 0);
-                isNewVerifier = block.getCycleInformation().isNewVerifier();
-            }
+            // Set the frozen and trailing edge heights.
+            setEdgeHeights(block.getBlockHeight(), block.getCycleInformation());
+            boolean isNewVerifier = block.getCycleInformation() != null &&
+                    block.getCycleInformation().isNewVerifier();
 
             updateVerifiersInCurrentCycle(block, cycleVerifiers, isNewVerifier);
         }
@@ -482,6 +745,17 @@ public class BlockManager {
         BlockManagerMap.addBlock(block);
     }
 
+    private static synchronized void setEdgeHeights(long frozenEdgeHeight, CycleInformation cycleInformation) {
+
+        // If the cycle information is null, set the trailing edge to invalid.
+        BlockManager.frozenEdgeHeight = frozenEdgeHeight;
+        if (cycleInformation == null) {
+            trailingEdgeHeight = -1L;
+        } else {
+            trailingEdgeHeight = Math.max(cycleInformation.getDeterminationHeight(), 0);
+        }
+    }
+
     public static long getGenesisBlockStartTimestamp() {
 
         return genesisBlockStartTimestamp;
@@ -628,17 +902,26 @@ public class BlockManager {
                 PersistentData.put(lastVerifierRemovalHeightKey, lastVerifierRemovalHeight);
             }
 
-            BlockManager.currentCycleEndHeight = edgeHeight;
-            BlockManager.currentCycleList = currentCycleList;
-            BlockManager.currentCycleSet = new HashSet<>(currentCycleList);
-            BlockManager.inGenesisCycle = inGenesisCycle;
-
-            Set<ByteBuffer> currentAndNearCycleSet = new HashSet<>(currentCycleList);
-            currentAndNearCycleSet.addAll(NewVerifierVoteManager.topVerifiers());
-            BlockManager.currentAndNearCycleSet = currentAndNearCycleSet;
+            setCurrentCycle(edgeHeight, currentCycleList, inGenesisCycle);
         }
     }
 
+    private static synchronized void setCurrentCycle(long edgeHeight, List<ByteBuffer> currentCycleList,
+                                                     boolean inGenesisCycle) {
+
+        // This is the state of a complete cycle. It is set both when the cycle is calculated from the chain and when
+        // it is restored from a chain-state checkpoint.
+        BlockManager.currentCycleEndHeight = edgeHeight;
+        BlockManager.currentCycleList = currentCycleList;
+        BlockManager.currentCycleSet = new HashSet<>(currentCycleList);
+        BlockManager.inGenesisCycle = inGenesisCycle;
+        BlockManager.cycleComplete = true;
+
+        Set<ByteBuffer> currentAndNearCycleSet = new HashSet<>(currentCycleList);
+        currentAndNearCycleSet.addAll(NewVerifierVoteManager.topVerifiers());
+        BlockManager.currentAndNearCycleSet = currentAndNearCycleSet;
+    }
+
     public static boolean isCycleComplete() {
 
         return cycleComplete;
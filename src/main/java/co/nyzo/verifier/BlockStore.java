@@ -0,0 +1,40 @@
+package co.nyzo.verifier;
+
+import java.util.List;
+
+public interface BlockStore {
+
+    // This is the storage of frozen blocks and their balance lists. BlockManager uses one store, selected with the
+    // block_store preference: "file" (the default) is the individual, journal, and consolidated files under the data
+    // directory, "mapped" is an append-only memory-mapped log, and "memory" keeps everything on the heap, which is
+    // useful for benchmarks and simulations that should not touch the data directory.
+
+    // This is called once, during the initialization of BlockManager, before anything is read.
+    void initialize();
+
+    Block loadBlock(long blockHeight);
+
+    List<Block> loadBlocks(long minimumHeight, long maximumHeight);
+
+    BalanceList loadBalanceList(long blockHeight);
+
+    // This is the highest height stored, or -1 if no blocks are stored.
+    long getHighestHeight();
+
+    // The balance list of the previous height is provided when available, so that a store can keep a delta instead
+    // of the full list. It may be null. The result is false if the block could not be stored. For a store that writes
+    // in the background, true means that the block was accepted for writing.
+    boolean freezeBlock(Block block, BalanceList balanceList, BalanceList previousBalanceList);
+
+    // This stores blocks that were not frozen by this verifier, such as a newly created Genesis block. The balance
+    // list must be provided for the first block and for every block that follows a gap.
+    boolean writeBlocks(List<Block> blocks, List<BalanceList> balanceLists);
+
+    // This blocks until all frozen blocks are durable.
+    void flush();
+
+    boolean isPersistent();
+
+    // The file consolidator and the block store scrubber only apply to the block file layout.
+    boolean usesBlockFileLayout();
+}
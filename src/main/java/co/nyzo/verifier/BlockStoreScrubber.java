@@ -0,0 +1,339 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BlockStoreScrubber {
+
+    // This walks the stored blockchain in the background, so that damaged or missing block files are found while the
+    // verifier is running, not when a restart or a historical request needs them. Every stored block is read and its
+    // signature is checked, because the block hash only covers the signature. The previous-block hash of each block is
+    // checked against the block before it, and the stored balance list at the start of each file index and after each
+    // gap is checked against its block. Reads are limited to a fixed number of bytes per second, and the thread runs
+    // at minimum priority.
+
+    private static final String bytesPerSecondKey = "block_store_scrubber_bytes_per_second";
+    private static final long bytesPerSecond = PreferencesUtil.getInt(bytesPerSecondKey, 2_000_000);
+
+    private static final long passInterval = 1000L * 60L * 60L * 6L;  // six hours
+    private static final int maximumRecordedProblems = 100;
+
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+
+    private static int passesCompleted = 0;
+    private static long lastPassDuration = -1L;
+    private static long currentHeight = -1L;
+    private static List<String> problems = new ArrayList<>();
+    private static List<String> lastPassProblems = new ArrayList<>();
+
+    // Problems at consecutive heights with the same description are recorded as a single range.
+    private static String openProblemDescription = null;
+    private static long openProblemStartHeight = -1L;
+    private static long openProblemEndHeight = -1L;
+
+    private static boolean foundStoredBlock = false;
+
+    private static long readBudgetBytes = 0L;
+    private static long readBudgetTimestamp = System.currentTimeMillis();
+
+    public static void start() {
+
+        if (bytesPerSecond > 0 && BlockManager.getBlockStore().usesBlockFileLayout() && !started.getAndSet(true)) {
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    while (!UpdateUtil.shouldTerminate()) {
+
+                        // The first pass starts 10 minutes after startup, when initialization has finished and the
+                        // disk is less busy. Later passes start six hours after the previous pass finished.
+                        long sleepTime = passesCompleted == 0 ? 1000L * 60L * 10L : passInterval;
+                        for (long slept = 0L; slept < sleepTime && !UpdateUtil.shouldTerminate(); slept += 3000L) {
+                            try {
+                                Thread.sleep(3000L);
+                            } catch (Exception ignored) { }
+                        }
+
+                        try {
+                            scrub();
+                        } catch (Exception reportOnly) {
+                            System.err.println("exception in block store scrubber: " +
+                                    PrintUtil.printException(reportOnly));
+                        }
+                    }
+                }
+            }, "BlockStoreScrubber");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    private static void scrub() {
+
+        long startTimestamp = System.currentTimeMillis();
+        synchronized (BlockStoreScrubber.class) {
+            problems = new ArrayList<>();
+        }
+        foundStoredBlock = false;
+
+        // Most verifiers do not store the chain from Genesis, so the pass starts at the lowest stored file index, and
+        // heights below the first stored block of that index are not reported as missing.
+        long frozenEdgeHeight = BlockManager.getFrozenEdgeHeight();
+        long endFileIndex = frozenEdgeHeight / BlockManager.blocksPerFile;
+        Block previousBlock = null;
+        for (long fileIndex = lowestStoredFileIndex(); fileIndex <= endFileIndex && !UpdateUtil.shouldTerminate();
+             fileIndex++) {
+            previousBlock = scrubFileIndex(fileIndex, frozenEdgeHeight, previousBlock);
+        }
+
+        if (!UpdateUtil.shouldTerminate()) {
+            List<String> newProblems;
+            synchronized (BlockStoreScrubber.class) {
+                closeProblemRange();
+                lastPassProblems = problems;
+                lastPassDuration = System.currentTimeMillis() - startTimestamp;
+                passesCompleted++;
+                currentHeight = -1L;
+                newProblems = lastPassProblems;
+            }
+
+            if (!newProblems.isEmpty()) {
+                NotificationUtil.send("block store scrubber found " + newProblems.size() + " problem ranges on " +
+                        Verifier.getNickname() + "; first: " + newProblems.get(0));
+            }
+        }
+    }
+
+    private static Block scrubFileIndex(long fileIndex, long frozenEdgeHeight, Block previousBlock) {
+
+        // Consolidated files are read through their block-file indices. Heights that have not been consolidated are
+        // read from individual files or the freeze journal. If the consolidator replaces the files of this index
+        // while it is being read, the index is read again once from the new consolidated file.
+        long startHeight = fileIndex * BlockManager.blocksPerFile;
+        long endHeight = Math.min(frozenEdgeHeight, startHeight + BlockManager.blocksPerFile - 1L);
+        File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(startHeight);
+
+        List<Block> blocks = new ArrayList<>();
+        List<String> descriptions = new ArrayList<>();
+        boolean consolidated = consolidatedFile.exists();
+        BlockFileIndex index = readFileIndex(consolidatedFile, consolidated, startHeight, endHeight, blocks,
+                descriptions);
+        if (!consolidated && consolidatedFile.exists() && descriptions.contains("missing")) {
+            blocks.clear();
+            descriptions.clear();
+            index = readFileIndex(consolidatedFile, true, startHeight, endHeight, blocks, descriptions);
+        }
+
+        for (int i = 0; i < blocks.size(); i++) {
+
+            long height = startHeight + i;
+            Block block = blocks.get(i);
+            if (block == null) {
+                if (foundStoredBlock) {
+                    recordProblem(height, descriptions.get(i));
+                }
+            } else if (previousBlock != null && previousBlock.getBlockHeight() == height - 1L &&
+                    !ByteUtil.arraysAreEqual(previousBlock.getHash(), block.getPreviousBlockHash())) {
+                recordProblem(height, "previous-block hash mismatch");
+            }
+
+            // The stored balance list is checked for the first block of each file index and after each gap. A
+            // damaged block is not a gap, so the block after it has no stored balance list to check.
+            if (block != null && (i == 0 || "missing".equals(descriptions.get(i - 1)))) {
+                BalanceList balanceList = index != null && index.indexForHeight(height) >= 0 ?
+                        IndexedBlockFile.loadBalanceList(consolidatedFile, height) :
+                        BlockManager.loadBalanceListFromFileForHeight(height);
+                if (balanceList == null || !ByteUtil.arraysAreEqual(balanceList.getHash(),
+                        block.getBalanceListHash())) {
+                    recordProblem(height, "balance list missing or incorrect");
+                }
+            }
+
+            if (block != null) {
+                foundStoredBlock = true;
+            }
+            previousBlock = block;
+        }
+
+        return previousBlock;
+    }
+
+    private static long lowestStoredFileIndex() {
+
+        // Consolidated files are stored in numbered directories. If there are none, the lowest stored block is an
+        // individual file at or above the trailing edge.
+        long lowestFileIndex = BlockManager.getTrailingEdgeHeight() / BlockManager.blocksPerFile;
+        File[] directories = BlockManager.blockRootDirectory.listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                File[] files = directory.isDirectory() && directory.getName().matches("\\d{3}") ?
+                        directory.listFiles() : null;
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.getName().matches("\\d{6}\\.nyzoblock")) {
+                            long fileIndex = Long.parseLong(file.getName().substring(0, 6));
+                            lowestFileIndex = Math.min(lowestFileIndex, fileIndex);
+                        }
+                    }
+                }
+            }
+        }
+
+        return Math.max(0L, lowestFileIndex);
+    }
+
+    private static BlockFileIndex readFileIndex(File consolidatedFile, boolean consolidated, long startHeight,
+                                                long endHeight, List<Block> blocks, List<String> descriptions) {
+
+        // Heights that are not in the consolidated file are read from individual files or the freeze journal.
+        BlockFileIndex index = null;
+        if (consolidated) {
+            waitForReadBudget(BlockFileIndex.buildCost(consolidatedFile));
+            index = BlockFileIndex.forFile(consolidatedFile);
+        }
+
+        for (long height = startHeight; height <= endHeight && !UpdateUtil.shouldTerminate(); height++) {
+
+            synchronized (BlockStoreScrubber.class) {
+                currentHeight = height;
+            }
+
+            byte[] blockBytes = null;
+            String description = "missing";
+            int position = index == null ? -1 : index.indexForHeight(height);
+            if (consolidated && index == null) {
+                description = "consolidated file unreadable";
+            } else if (position >= 0) {
+                waitForReadBudget(index.lengthAtIndex(position));
+                blockBytes = index.readBlockBytes(consolidatedFile, position);
+                description = "block corrupt in consolidated file";
+            } else {
+                File individualFile = BlockManager.existingIndividualFileForBlockHeight(height);
+                if (individualFile.exists()) {
+                    waitForReadBudget(individualFile.length());
+                    List<Block> fileBlocks = BlockManager.loadBlocksInFile(individualFile, height, height);
+                    if (!fileBlocks.isEmpty()) {
+                        blockBytes = fileBlocks.get(0).getBytes();
+                    }
+                    description = "individual file corrupt";
+                } else {
+                    waitForReadBudget(BlockFreezeJournal.recordLengthForHeight(height));
+                    blockBytes = BlockFreezeJournal.blockBytesForHeight(height);
+                }
+            }
+
+            Block block = null;
+            if (blockBytes != null) {
+                try {
+                    block = Block.fromByteBuffer(ByteBuffer.wrap(blockBytes), false);
+                    if (block.getBlockHeight() != height) {
+                        block = null;
+                        description = "block stored at wrong height";
+                    } else if (!block.signatureIsValid()) {
+                        block = null;
+                        description = "block signature invalid";
+                    }
+                } catch (Exception ignored) {
+                    description = "block cannot be decoded";
+                }
+            }
+
+            blocks.add(block);
+            descriptions.add(block == null ? description : null);
+        }
+
+        return index;
+    }
+
+    private static void waitForReadBudget(long bytes) {
+
+        // The budget refills continuously, up to one second of reading. A read larger than the full budget waits
+        // until the budget is full and then proceeds.
+        bytes = Math.max(0L, bytes);
+        while (!UpdateUtil.shouldTerminate()) {
+            long currentTimestamp = System.currentTimeMillis();
+            long elapsedMilliseconds = Math.max(0L, currentTimestamp - readBudgetTimestamp);
+            readBudgetBytes = Math.min(bytesPerSecond, readBudgetBytes + elapsedMilliseconds * bytesPerSecond /
+                    1000L);
+            readBudgetTimestamp = currentTimestamp;
+
+            if (readBudgetBytes >= Math.min(bytes, bytesPerSecond)) {
+                readBudgetBytes -= bytes;
+                return;
+            }
+
+            long waitMilliseconds = (Math.min(bytes, bytesPerSecond) - readBudgetBytes) * 1000L / bytesPerSecond;
+            try {
+                Thread.sleep(Math.max(1L, waitMilliseconds));
+            } catch (Exception ignored) { }
+        }
+    }
+
+    private static synchronized void recordProblem(long height, String description) {
+
+        if (description.equals(openProblemDescription) && height == openProblemEndHeight + 1L) {
+            openProblemEndHeight = height;
+        } else {
+            closeProblemRange();
+            openProblemDescription = description;
+            openProblemStartHeight = height;
+            openProblemEndHeight = height;
+        }
+    }
+
+    private static synchronized void closeProblemRange() {
+
+        if (openProblemDescription != null) {
+            String range = openProblemStartHeight == openProblemEndHeight ? "" + openProblemStartHeight :
+                    openProblemStartHeight + "-" + openProblemEndHeight;
+            if (problems.size() < maximumRecordedProblems) {
+                problems.add(openProblemDescription + ": [" + range + "]");
+                System.err.println("block store scrubber: " + openProblemDescription + ": [" + range + "]");
+            }
+            openProblemDescription = null;
+        }
+    }
+
+    public static synchronized String getStatus() {
+
+        String status;
+        if (bytesPerSecond <= 0) {
+            status = "disabled";
+        } else {
+            status = "passes: " + passesCompleted + ", problems: " + lastPassProblems.size();
+            if (currentHeight >= 0) {
+                status += ", scrubbing " + currentHeight;
+            }
+        }
+
+        return status;
+    }
+
+    public static synchronized List<String> getStatusLines() {
+
+        List<String> lines = new ArrayList<>();
+        lines.add("block store scrubber: " + getStatus());
+        lines.add("read budget: " + bytesPerSecond + " bytes/s");
+        if (lastPassDuration >= 0) {
+            lines.add("last pass duration: " + (lastPassDuration / 1000L) + "s");
+        }
+
+        if (passesCompleted > 0) {
+            lines.add("problems in last pass: " + lastPassProblems.size());
+            lines.addAll(lastPassProblems);
+        }
+
+        if (currentHeight >= 0) {
+            lines.add("problems in current pass: " + problems.size());
+            lines.addAll(problems);
+        }
+
+        return lines;
+    }
+}
@@ -0,0 +1,231 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ChainStateCheckpoint {
+
+    // This is a snapshot of the state that BlockManager otherwise rebuilds at startup by scanning the block files:
+    // the frozen edge block and its cycle information, the current cycle, the last verifier-removal height, and the
+    // balance lists of the trailing and frozen edges. It is written periodically and at shutdown. It is signed by
+    // this verifier, so a damaged file or a file copied from another verifier is never used.
+    //
+    // format version (1 byte), frozen edge block, maximum cycle length (4 bytes), four primary cycle lengths (4 bytes
+    // each), new-verifier flag (1 byte), Genesis-cycle flag (1 byte), last verifier-removal height (8 bytes), number
+    // of cycle verifiers (4 bytes), cycle verifier identifiers, trailing-edge balance list flag (1 byte), trailing-edge
+    // balance list (if flag is 1), frozen-edge balance list, verifier identifier, signature
+
+    // This file is read during the static initialization of BlockManager, so it is located independently of the
+    // BlockManager directory fields.
+    public static final File checkpointFile = new File(new File(Verifier.dataRootDirectory, "blocks"),
+            "chain_state.nyzocheckpoint");
+
+    private static final byte formatVersion = 1;
+
+    private static final String intervalKey = "chain_state_checkpoint_interval_ms";
+    private static final long interval = Math.max(1000L, PreferencesUtil.getInt(intervalKey, 30000));
+
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+    private static long lastWrittenHeight = -1L;
+
+    private Block frozenEdge;
+    private List<ByteBuffer> cycleVerifiers;
+    private long lastVerifierRemovalHeight;
+    private BalanceList trailingEdgeBalanceList;
+    private BalanceList frozenEdgeBalanceList;
+
+    private ChainStateCheckpoint(Block frozenEdge, List<ByteBuffer> cycleVerifiers, long lastVerifierRemovalHeight,
+                                 BalanceList trailingEdgeBalanceList, BalanceList frozenEdgeBalanceList) {
+
+        this.frozenEdge = frozenEdge;
+        this.cycleVerifiers = cycleVerifiers;
+        this.lastVerifierRemovalHeight = lastVerifierRemovalHeight;
+        this.trailingEdgeBalanceList = trailingEdgeBalanceList;
+        this.frozenEdgeBalanceList = frozenEdgeBalanceList;
+    }
+
+    public Block getFrozenEdge() {
+        return frozenEdge;
+    }
+
+    public List<ByteBuffer> getCycleVerifiers() {
+        return cycleVerifiers;
+    }
+
+    public long getLastVerifierRemovalHeight() {
+        return lastVerifierRemovalHeight;
+    }
+
+    public BalanceList getTrailingEdgeBalanceList() {
+        return trailingEdgeBalanceList;
+    }
+
+    public BalanceList getFrozenEdgeBalanceList() {
+        return frozenEdgeBalanceList;
+    }
+
+    public static void start() {
+
+        // A checkpoint is only useful if the blocks it refers to are still stored at the next startup.
+        if (BlockManager.getBlockStore().isPersistent() && !started.getAndSet(true)) {
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    while (!UpdateUtil.shouldTerminate()) {
+                        try {
+                            Thread.sleep(interval);
+                        } catch (Exception ignored) { }
+
+                        try {
+                            write();
+                        } catch (Exception reportOnly) {
+                            System.err.println("unable to write chain-state checkpoint: " +
+                                    PrintUtil.printException(reportOnly));
+                        }
+                    }
+                }
+            }, "ChainStateCheckpoint").start();
+
+            // At shutdown, the block store is flushed first, so the checkpoint never refers to a block that is not on
+            // disk.
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        BlockManager.getBlockStore().flush();
+                        write();
+                    } catch (Exception ignored) { }
+                }
+            }, "ChainStateCheckpoint-shutdown"));
+        }
+    }
+
+    public static synchronized void write() {
+
+        // The frozen edge, the cycle, and the removal height are read together under the BlockManager lock, because
+        // setFrozenEdge() updates them together.
+        Block frozenEdge;
+        List<ByteBuffer> cycleVerifiers;
+        long lastVerifierRemovalHeight;
+        boolean cycleComplete;
+        synchronized (BlockManager.class) {
+            frozenEdge = BlockManager.frozenBlockForHeight(BlockManager.getFrozenEdgeHeight());
+            cycleVerifiers = BlockManager.verifiersInCurrentCycleList();
+            lastVerifierRemovalHeight = BlockManager.getLastVerifierRemovalHeight();
+            cycleComplete = BlockManager.isCycleComplete();
+        }
+
+        if (BlockManager.isInitialized() && cycleComplete && frozenEdge != null &&
+                frozenEdge.getBlockHeight() != lastWrittenHeight && frozenEdge.getCycleInformation() != null) {
+
+            BalanceList frozenEdgeBalanceList = BalanceListManager.balanceListForBlock(frozenEdge, null);
+            BalanceList trailingEdgeBalanceList =
+                    BlockManager.loadBalanceListFromFileForHeight(BlockManager.getTrailingEdgeHeight());
+            if (frozenEdgeBalanceList != null) {
+                write(frozenEdge, cycleVerifiers, lastVerifierRemovalHeight, trailingEdgeBalanceList,
+                        frozenEdgeBalanceList);
+                lastWrittenHeight = frozenEdge.getBlockHeight();
+            }
+        }
+    }
+
+    static void write(Block frozenEdge, List<ByteBuffer> cycleVerifiers, long lastVerifierRemovalHeight,
+                      BalanceList trailingEdgeBalanceList, BalanceList frozenEdgeBalanceList) {
+
+        // The state is passed in, rather than read from BlockManager, so the tests can write a checkpoint without a
+        // running chain.
+        CycleInformation cycleInformation = frozenEdge.getCycleInformation();
+        int byteSize = 1 + frozenEdge.getByteSize() + 4 * 5 + 2 + FieldByteSize.blockHeight + 4 +
+                FieldByteSize.identifier * cycleVerifiers.size() + 1 +
+                (trailingEdgeBalanceList == null ? 0 : trailingEdgeBalanceList.getByteSize()) +
+                frozenEdgeBalanceList.getByteSize();
+        byte[] signedBytes = new byte[byteSize];
+        ByteBuffer buffer = ByteBuffer.wrap(signedBytes);
+        buffer.put(formatVersion);
+        buffer.put(frozenEdge.getBytes());
+        buffer.putInt(cycleInformation.getMaximumCycleLength());
+        for (int i = 0; i < 4; i++) {
+            buffer.putInt(cycleInformation.getCycleLength(i));
+        }
+        buffer.put(cycleInformation.isNewVerifier() ? (byte) 1 : (byte) 0);
+        buffer.put(cycleInformation.isInGenesisCycle() ? (byte) 1 : (byte) 0);
+        buffer.putLong(lastVerifierRemovalHeight);
+        buffer.putInt(cycleVerifiers.size());
+        for (ByteBuffer identifier : cycleVerifiers) {
+            buffer.put(identifier.array());
+        }
+        if (trailingEdgeBalanceList == null) {
+            buffer.put((byte) 0);
+        } else {
+            buffer.put((byte) 1);
+            buffer.put(trailingEdgeBalanceList.getBytes());
+        }
+        buffer.put(frozenEdgeBalanceList.getBytes());
+
+        byte[] fileBytes = new byte[byteSize + FieldByteSize.identifier + FieldByteSize.signature];
+        ByteBuffer fileBuffer = ByteBuffer.wrap(fileBytes);
+        fileBuffer.put(signedBytes);
+        fileBuffer.put(Verifier.getIdentifier());
+        fileBuffer.put(Verifier.sign(signedBytes));
+
+        checkpointFile.getParentFile().mkdirs();
+        FileUtil.writeFile(Paths.get(checkpointFile.getAbsolutePath()), fileBytes);
+    }
+
+    public static ChainStateCheckpoint load() {
+
+        ChainStateCheckpoint checkpoint = null;
+        try {
+            byte[] fileBytes = Files.readAllBytes(Paths.get(checkpointFile.getAbsolutePath()));
+            int signedLength = fileBytes.length - FieldByteSize.identifier - FieldByteSize.signature;
+            ByteBuffer buffer = ByteBuffer.wrap(fileBytes);
+            byte[] signedBytes = Message.getByteArray(buffer, signedLength);
+            byte[] identifier = Message.getByteArray(buffer, FieldByteSize.identifier);
+            byte[] signature = Message.getByteArray(buffer, FieldByteSize.signature);
+
+            if (ByteUtil.arraysAreEqual(identifier, Verifier.getIdentifier()) &&
+                    SignatureUtil.signatureIsValid(signature, signedBytes, identifier)) {
+
+                buffer = ByteBuffer.wrap(signedBytes);
+                if (buffer.get() == formatVersion) {
+                    Block frozenEdge = Block.fromByteBuffer(buffer, false);
+
+                    int maximumCycleLength = buffer.getInt();
+                    int[] cycleLengths = new int[4];
+                    for (int i = 0; i < cycleLengths.length; i++) {
+                        cycleLengths[i] = buffer.getInt();
+                    }
+                    boolean newVerifier = buffer.get() == 1;
+                    boolean inGenesisCycle = buffer.get() == 1;
+                    frozenEdge.setCycleInformation(new CycleInformation(frozenEdge.getBlockHeight(),
+                            maximumCycleLength, cycleLengths, newVerifier, inGenesisCycle));
+
+                    long lastVerifierRemovalHeight = buffer.getLong();
+                    int numberOfCycleVerifiers = buffer.getInt();
+                    List<ByteBuffer> cycleVerifiers = new ArrayList<>();
+                    for (int i = 0; i < numberOfCycleVerifiers; i++) {
+                        cycleVerifiers.add(ByteBuffer.wrap(Message.getByteArray(buffer, FieldByteSize.identifier)));
+                    }
+
+                    BalanceList trailingEdgeBalanceList = buffer.get() == 1 ? BalanceList.fromByteBuffer(buffer) :
+                            null;
+                    BalanceList frozenEdgeBalanceList = BalanceList.fromByteBuffer(buffer);
+
+                    checkpoint = new ChainStateCheckpoint(frozenEdge, cycleVerifiers, lastVerifierRemovalHeight,
+                            trailingEdgeBalanceList, frozenEdgeBalanceList);
+                }
+            }
+        } catch (Exception ignored) { }
+
+        return checkpoint;
+    }
+}
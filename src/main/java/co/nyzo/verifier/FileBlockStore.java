@@ -0,0 +1,182 @@
+package co.nyzo.verifier;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class FileBlockStore implements BlockStore {
+
+    // This is the block file layout under the data directory: the Genesis block and blocks from older versions in
+    // individual files, newly frozen blocks in the freeze journal, and older blocks in consolidated files, which the
+    // file consolidator builds from the other two. The file methods themselves remain in BlockManager, because the
+    // consolidator, the scrubber, and the tools work with the files directly.
+
+    @Override
+    public void initialize() {
+
+        // Ensure that both the block directory and the individual block directory exist. The individual block
+        // directory is a subdirectory of the block directory, so a single call can ensure both.
+        BlockManager.individualBlockDirectory.mkdirs();
+
+        // Load the index of the freeze journal, discarding any record that was not completely written.
+        BlockFreezeJournal.initialize();
+    }
+
+    @Override
+    public Block loadBlock(long blockHeight) {
+
+        // Try to first load the block from the individual file or the freeze journal. If the block is not there,
+        // read it directly from an indexed consolidated file, or extract a legacy consolidated file and try to load
+        // the block from there. Extraction provides a smooth transition from the old, more aggressive behavior of the
+        // file consolidator.
+        List<Block> blocks = BlockManager.loadBlocksInFile(
+                BlockManager.existingIndividualFileForBlockHeight(blockHeight), blockHeight, blockHeight);
+        Block block = null;
+        if (!blocks.isEmpty() && blocks.get(0).getBlockHeight() == blockHeight) {
+            block = blocks.get(0);
+        } else {
+            block = BlockFreezeJournal.blockForHeight(blockHeight);
+        }
+
+        File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(blockHeight);
+        if (block == null && IndexedBlockFile.isIndexedFile(consolidatedFile)) {
+            block = IndexedBlockFile.loadBlock(consolidatedFile, blockHeight);
+        } else if (block == null) {
+            BlockManager.extractConsolidatedFile(consolidatedFile);
+
+            blocks = BlockManager.loadBlocksInFile(BlockManager.existingIndividualFileForBlockHeight(blockHeight),
+                    blockHeight, blockHeight);
+            if (!blocks.isEmpty() && blocks.get(0).getBlockHeight() == blockHeight) {
+                block = blocks.get(0);
+            }
+        }
+        return block;
+    }
+
+    @Override
+    public List<Block> loadBlocks(long minimumHeight, long maximumHeight) {
+
+        List<Block> blocks = new ArrayList<>();
+        for (long height = minimumHeight; height <= maximumHeight; height++) {
+            Block block = loadBlock(height);
+            if (block != null) {
+                blocks.add(block);
+            }
+        }
+
+        return blocks;
+    }
+
+    @Override
+    public BalanceList loadBalanceList(long blockHeight) {
+
+        // The individual file and the freeze journal are checked first, then the checkpoint store, which
+        // reconstructs the list with a bounded number of deltas. The consolidated file is only replayed if all of
+        // these fail.
+        BalanceList balanceList = BlockManager.loadBalanceListFromFile(
+                BlockManager.existingIndividualFileForBlockHeight(blockHeight), blockHeight);
+        if (balanceList == null) {
+            balanceList = BlockFreezeJournal.balanceListForHeight(blockHeight);
+        }
+        if (balanceList == null) {
+            balanceList = BalanceListCheckpointStore.balanceListForHeight(blockHeight);
+        }
+
+        File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(blockHeight);
+        if (balanceList == null && IndexedBlockFile.isIndexedFile(consolidatedFile)) {
+            balanceList = IndexedBlockFile.loadBalanceList(consolidatedFile, blockHeight);
+        } else if (balanceList == null) {
+            BlockManager.extractConsolidatedFile(consolidatedFile);
+
+            balanceList = BlockManager.loadBalanceListFromFile(
+                    BlockManager.existingIndividualFileForBlockHeight(blockHeight), blockHeight);
+        }
+
+        return balanceList;
+    }
+
+    @Override
+    public long getHighestHeight() {
+
+        // The highest block that has not yet been consolidated is in either an individual file or the freeze journal.
+        return Math.max(BlockManager.findHighestIndividualFileHeight(), BlockFreezeJournal.getHighestHeight());
+    }
+
+    @Override
+    public boolean freezeBlock(Block block, BalanceList balanceList, BalanceList previousBalanceList) {
+
+        // The Genesis block is written to its individual file, which is used in regular operation. All other blocks
+        // are placed in the freeze journal, which is written in the background. If the journal has been disabled after
+        // a failed write, blocks are written to individual files, as they were before the journal.
+        boolean successful = true;
+        if (block.getBlockHeight() == 0L || !BlockFreezeJournal.append(block, balanceList, previousBalanceList)) {
+            successful = BlockManager.writeIndividualFile(block, balanceList);
+            BalanceListCheckpointStore.recordBalanceList(balanceList);
+        }
+
+        return successful;
+    }
+
+    @Override
+    public boolean writeBlocks(List<Block> blocks, List<BalanceList> balanceLists) {
+
+        // Each block is written to its individual file, which needs the balance list of the block. Lists that were
+        // not provided are derived from the list of the previous block.
+        List<Block> sortedBlocks = new ArrayList<>(blocks);
+        Collections.sort(sortedBlocks, new Comparator<Block>() {
+            @Override
+            public int compare(Block block1, Block block2) {
+                return ((Long) block1.getBlockHeight()).compareTo(block2.getBlockHeight());
+            }
+        });
+
+        boolean successful = true;
+        Block previousBlock = null;
+        BalanceList previousBalanceList = null;
+        for (Block block : sortedBlocks) {
+
+            BalanceList balanceList = null;
+            for (BalanceList providedBalanceList : balanceLists) {
+                if (providedBalanceList.getBlockHeight() == block.getBlockHeight()) {
+                    balanceList = providedBalanceList;
+                }
+            }
+            if (balanceList == null && previousBlock != null &&
+                    previousBlock.getBlockHeight() == block.getBlockHeight() - 1L) {
+                balanceList = Block.balanceListForNextBlock(previousBlock, previousBalanceList,
+                        block.getTransactions(), block.getVerifierIdentifier());
+            }
+
+            if (balanceList == null) {
+                successful = false;
+            } else {
+                successful &= BlockManager.writeIndividualFile(block, balanceList);
+            }
+
+            previousBlock = block;
+            previousBalanceList = balanceList;
+        }
+
+        return successful;
+    }
+
+    @Override
+    public void flush() {
+
+        BlockFreezeJournal.flush();
+    }
+
+    @Override
+    public boolean isPersistent() {
+
+        return true;
+    }
+
+    @Override
+    public boolean usesBlockFileLayout() {
+
+        return true;
+    }
+}
@@ -22,26 +22,96 @@ public class HashUtil {
                 "5df6e0e2761359d30a8275058e299fcc0381534545f55cf43e41983f5d4c9456)");
     }
 
-    private static MessageDigest messageDigest;
-    static {
-        try {
-            messageDigest = MessageDigest.getInstance("SHA-256");
-        } catch (Exception ignored) {
-            ignored.printStackTrace();
+    // Each thread has its own digest, so hashes are calculated on all threads at once without contention. The
+    // methods that accept buffers or multiple segments pass them to the digest directly, without copying them into a
+    // single array first. Every method resets the digest before using it, so a hash that was abandoned partway
+    // through, such as by an exception, cannot affect the next hash on the same thread.
+    private static final ThreadLocal<MessageDigest> messageDigest = newDigestThreadLocal();
+
+    // Callers that produce their data in pieces get a separate digest, so the methods of this class can be called
+    // while such a hash is in progress.
+    private static final ThreadLocal<MessageDigest> streamingDigest = newDigestThreadLocal();
+
+    private static ThreadLocal<MessageDigest> newDigestThreadLocal() {
+
+        return new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                MessageDigest digest = null;
+                try {
+                    digest = MessageDigest.getInstance("SHA-256");
+                } catch (Exception ignored) {
+                    ignored.printStackTrace();
+                }
+                return digest;
+            }
+        };
+    }
+
+    private static MessageDigest digest() {
+
+        MessageDigest digest = messageDigest.get();
+        digest.reset();
+        return digest;
+    }
+
+    public static byte[] singleSHA256(byte[] data) {
+
+        if (data == null) {
+            data = new byte[0];
+        }
+        return digest().digest(data);
+    }
+
+    public static byte[] singleSHA256(byte[]... segments) {
+
+        // A null segment is hashed as an empty segment, as a null array is by the single-array methods.
+        MessageDigest digest = digest();
+        for (byte[] segment : segments) {
+            if (segment != null) {
+                digest.update(segment);
+            }
         }
+
+        return digest.digest();
     }
 
-    public static synchronized byte[] singleSHA256(byte[] data) {
+    public static byte[] singleSHA256(ByteBuffer buffer) {
+
+        // The remaining bytes of the buffer are hashed, and the position of the buffer is not changed.
+        MessageDigest digest = digest();
+        digest.update(buffer.duplicate());
+        return digest.digest();
+    }
+
+    public static byte[] doubleSHA256(byte[] data) {
 
         if (data == null) {
             data = new byte[0];
         }
-        return messageDigest.digest(data);
+        MessageDigest digest = digest();
+        return digest.digest(digest.digest(data));
     }
 
-    public static synchronized byte[] doubleSHA256(byte[] data) {
+    public static byte[] doubleSHA256(byte[]... segments) {
 
-        return messageDigest.digest(messageDigest.digest(data));
+        byte[] singleHash = singleSHA256(segments);
+        return digest().digest(singleHash);
+    }
+
+    public static byte[] doubleSHA256(ByteBuffer buffer) {
+
+        byte[] singleHash = singleSHA256(buffer);
+        return digest().digest(singleHash);
+    }
+
+    static MessageDigest threadDigest() {
+
+        // This is for callers that produce their data in pieces. The digest is reset here, so a hash that was
+        // abandoned partway through does not affect the next one.
+        MessageDigest digest = streamingDigest.get();
+        digest.reset();
+        return digest;
     }
 
     public static long longSHA256(byte[] data) {
@@ -53,18 +123,9 @@ public class HashUtil {
 
     public static long longSHA256(byte[]... dataArgs) {
 
-        int length = 0;
-        for (byte[] data : dataArgs) {
-            length += data.length;
-        }
-
-        byte[] array = new byte[length];
-        ByteBuffer buffer = ByteBuffer.wrap(array);
-        for (byte[] data : dataArgs) {
-            buffer.put(data);
-        }
-
-        return longSHA256(array);
+        byte[] sha256 = singleSHA256(dataArgs);
+        ByteBuffer buffer = ByteBuffer.wrap(sha256);
+        return buffer.getLong();
     }
 
     public static byte[] bLongSHA256(byte[] data) {
@@ -75,18 +136,8 @@ public class HashUtil {
 
     public static byte[] bLongSHA256(byte[]... dataArgs) {
 
-        int length = 0;
-        for (byte[] data : dataArgs) {
-            length += data.length;
-        }
-
-        byte[] array = new byte[length];
-        ByteBuffer buffer = ByteBuffer.wrap(array);
-        for (byte[] data : dataArgs) {
-            buffer.put(data);
-        }
-
-        return bLongSHA256(array);
+        byte[] sha256 = singleSHA256(dataArgs);
+        return Arrays.copyOf(sha256, 8);
     }
 
     public static byte[] byteArray(int value) {
@@ -1,7 +1,11 @@
 package co.nyzo.verifier;
 
+import co.nyzo.verifier.util.PreferencesUtil;
+
 import java.io.File;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -11,55 +15,261 @@ public class HistoricalBlockManagerMap {
     // who are interested in older blocks than the BlockManagerMap provides, but we do not want to overload the
     // verifier to provide that service.
 
-    private static long lastFileLoadedTimestamp = 0L;
+    // Blocks are read individually using the block-file index of each consolidated file. Recently used blocks and
+    // indices are kept in least-recently-used caches, and disk reads are limited by a byte budget that refills
+    // continuously, so requests are only refused when the verifier is actually reading faster than the budget allows.
+    // Each requester also has a smaller budget of its own, so a single requester cannot use the whole budget. The lock
+    // of this class only protects the caches and the budgets; disk reads are performed without it.
+
+    private static final String cacheBytesKey = "historical_block_cache_bytes";
+    private static final long maximumCacheBytes = PreferencesUtil.getInt(cacheBytesKey, 20_000_000);
+
+    private static final String readBytesPerSecondKey = "historical_block_read_bytes_per_second";
+    private static final long readBytesPerSecond = Math.max(1, PreferencesUtil.getInt(readBytesPerSecondKey,
+            4_000_000));
+
+    private static final String requesterReadBytesPerSecondKey = "historical_block_read_bytes_per_second_per_requester";
+    private static final long requesterReadBytesPerSecond = Math.max(1,
+            PreferencesUtil.getInt(requesterReadBytesPerSecondKey, (int) (readBytesPerSecond / 4L)));
+
+    private static final int maximumCachedIndices = 64;
+    private static final int maximumRequesterBudgets = 1000;
 
-    private static Map<Long, Block> map = new HashMap<>();
+    private static final Map<Long, Block> blockCache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long blockCacheBytes = 0L;
+
+    private static final Map<Long, BlockFileIndex> indexCache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static final ReadBudget readBudget = new ReadBudget(readBytesPerSecond);
+    private static final Map<ByteBuffer, ReadBudget> requesterBudgets = new LinkedHashMap<ByteBuffer,
+            ReadBudget>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ReadBudget> eldest) {
+            return size() > maximumRequesterBudgets;
+        }
+    };
 
     public static Block blockForHeight(long height) {
 
-        Block block = map.get(height);
-        if (block == null && height > 0 && height < BlockManager.getFrozenEdgeHeight() &&
-                lastFileLoadedTimestamp < System.currentTimeMillis() - 10000L) {
+        Block block = cachedBlock(height);
+        if (block == null && height > 0 && height < BlockManager.getFrozenEdgeHeight()) {
+            block = loadBlock(height, null);
+            if (block != null) {
+                cacheBlock(block);
+            }
+        }
+
+        return block;
+    }
+
+    public static byte[] blockBytesForHeight(long height, byte[] requesterIdentifier) {
+
+        // This serves the stored bytes of a block without building the block, so blocks that are only passed along
+        // to other verifiers do not create objects. Blocks that are already cached are serialized from the cache.
+        byte[] blockBytes = null;
+        Block block = cachedBlock(height);
+        if (block != null) {
+            blockBytes = block.getBytes();
+        } else if (height > 0 && height < BlockManager.getFrozenEdgeHeight()) {
+            blockBytes = loadBlockBytes(height, requesterIdentifier);
+        }
+
+        return blockBytes;
+    }
+
+    public static BalanceList balanceListForHeight(long height, byte[] requesterIdentifier) {
+
+        // Historical balance lists are only read from the checkpoint store, which reads a single segment file without
+        // replaying blocks. The size of the segment file is charged to the read budget.
+        BalanceList balanceList = null;
+        File segmentFile = BalanceListCheckpointStore.segmentFileForBlockHeight(height);
+        if (height > 0 && height < BlockManager.getFrozenEdgeHeight() && segmentFile.exists() &&
+                consumeReadBudget(requesterIdentifier, segmentFile.length())) {
+            balanceList = BalanceListCheckpointStore.balanceListForHeight(height);
+        }
+
+        return balanceList;
+    }
 
-            lastFileLoadedTimestamp = System.currentTimeMillis();
-            reloadMapForBlockHeight(height);
-            block = map.get(height);
+    private static Block loadBlock(long height, byte[] requesterIdentifier) {
+
+        Block block = null;
+        byte[] blockBytes = loadBlockBytes(height, requesterIdentifier);
+        if (blockBytes != null) {
+            try {
+                block = Block.fromByteBuffer(ByteBuffer.wrap(blockBytes), false);
+            } catch (Exception ignored) { }
         }
 
         return block;
     }
 
-    private static void reloadMapForBlockHeight(long height) {
+    private static byte[] loadBlockBytes(long height, byte[] requesterIdentifier) {
 
-        // Get the list of blocks from the file.
+        byte[] blockBytes = null;
         long fileIndex = height / BlockManager.blocksPerFile;
-        long startHeight = fileIndex * BlockManager.blocksPerFile;
-        long endHeight = startHeight + BlockManager.blocksPerFile - 1;
-        File file = BlockManager.consolidatedFileForBlockHeight(startHeight);
-        List<Block> blocks = BlockManager.loadBlocksInFile(file, startHeight, endHeight);
-
-        if (blocks.isEmpty()) {
-
-            // If the list is empty, try to load the individual files and build the map.
-            Map<Long, Block> map = new HashMap<>();
-            for (long blockHeight = startHeight; blockHeight <= endHeight; blockHeight++) {
-                File individualFile = BlockManager.individualFileForBlockHeight(blockHeight);
-                List<Block> individualList = BlockManager.loadBlocksInFile(individualFile, blockHeight, blockHeight);
-                if (!individualList.isEmpty()) {
-                    Block block = individualList.get(0);
-                    map.put(block.getBlockHeight(), block);
+        File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(height);
+        BlockStore store = BlockManager.getBlockStore();
+        if (!store.usesBlockFileLayout()) {
+
+            // Other stores provide blocks by height directly.
+            Block block = store.loadBlock(height);
+            if (block != null && consumeReadBudget(requesterIdentifier, block.getByteSize())) {
+                blockBytes = block.getBytes();
+            }
+        } else if (consolidatedFile.exists()) {
+
+            BlockFileIndex index = cachedIndex(fileIndex);
+            if (index == null && consumeReadBudget(requesterIdentifier, BlockFileIndex.buildCost(consolidatedFile))) {
+                index = BlockFileIndex.forFile(consolidatedFile);
+                if (index != null) {
+                    cacheIndex(fileIndex, index);
+                }
+            }
+
+            if (index != null) {
+                int position = index.indexForHeight(height);
+                if (position < 0) {
+
+                    // A consolidated file does not always hold every height in its range. A height that is missing
+                    // from the index may still be in the freeze journal or an individual file.
+                    blockBytes = loadUnconsolidatedBlockBytes(height, requesterIdentifier);
+                } else if (consumeReadBudget(requesterIdentifier, index.lengthAtIndex(position))) {
+                    blockBytes = index.readBlockBytes(consolidatedFile, position);
+
+                    // A failed read means the consolidated file changed after the index was loaded. The index is
+                    // discarded so that it is rebuilt on the next request.
+                    if (blockBytes == null) {
+                        removeIndex(fileIndex);
+                    }
                 }
             }
+        } else {
+            blockBytes = loadUnconsolidatedBlockBytes(height, requesterIdentifier);
+        }
+
+        return blockBytes;
+    }
 
-            HistoricalBlockManagerMap.map = map;
+    private static byte[] loadUnconsolidatedBlockBytes(long height, byte[] requesterIdentifier) {
 
+        // Heights that have not been consolidated are in the freeze journal or, from older versions, in individual
+        // files. Both are read one block at a time.
+        byte[] blockBytes = null;
+        int journalRecordLength = BlockFreezeJournal.recordLengthForHeight(height);
+        File individualFile = BlockManager.existingIndividualFileForBlockHeight(height);
+        if (journalRecordLength > 0) {
+            if (consumeReadBudget(requesterIdentifier, journalRecordLength)) {
+                blockBytes = BlockFreezeJournal.blockBytesForHeight(height);
+            }
+        } else if (individualFile.exists()) {
+            if (consumeReadBudget(requesterIdentifier, individualFile.length())) {
+                List<Block> blocks = BlockManager.loadBlocksInFile(individualFile, height, height);
+                if (!blocks.isEmpty()) {
+                    blockBytes = blocks.get(0).getBytes();
+                }
+            }
         } else {
-            // If the list is non-empty, build the map.
-            Map<Long, Block> map = new HashMap<>();
-            for (Block block : blocks) {
-                map.put(block.getBlockHeight(), block);
+            // A block that has not yet been written to the journal is still in memory.
+            blockBytes = BlockFreezeJournal.blockBytesForHeight(height);
+        }
+
+        return blockBytes;
+    }
+
+    private static synchronized boolean consumeReadBudget(byte[] requesterIdentifier, long bytes) {
+
+        // The read must be allowed by both the budget of the requester and the overall budget. Reads for the verifier
+        // itself, without a requester, are only limited by the overall budget.
+        ReadBudget requesterBudget = null;
+        if (requesterIdentifier != null) {
+            ByteBuffer identifierBuffer = ByteBuffer.wrap(requesterIdentifier);
+            requesterBudget = requesterBudgets.get(identifierBuffer);
+            if (requesterBudget == null) {
+                requesterBudget = new ReadBudget(requesterReadBytesPerSecond);
+                requesterBudgets.put(identifierBuffer, requesterBudget);
+            }
+        }
+
+        boolean allowed = (requesterBudget == null || requesterBudget.allows(bytes)) && readBudget.allows(bytes);
+        if (allowed) {
+            if (requesterBudget != null) {
+                requesterBudget.consume(bytes);
             }
-            HistoricalBlockManagerMap.map = map;
+            readBudget.consume(bytes);
+        }
+
+        return allowed;
+    }
+
+    private static synchronized Block cachedBlock(long height) {
+
+        return blockCache.get(height);
+    }
+
+    private static synchronized BlockFileIndex cachedIndex(long fileIndex) {
+
+        return indexCache.get(fileIndex);
+    }
+
+    private static synchronized void removeIndex(long fileIndex) {
+
+        indexCache.remove(fileIndex);
+    }
+
+    private static synchronized void cacheBlock(Block block) {
+
+        Block previousBlock = blockCache.put(block.getBlockHeight(), block);
+        if (previousBlock != null) {
+            blockCacheBytes -= previousBlock.getByteSize();
+        }
+        blockCacheBytes += block.getByteSize();
+
+        Iterator<Block> iterator = blockCache.values().iterator();
+        while (blockCacheBytes > maximumCacheBytes && iterator.hasNext()) {
+            blockCacheBytes -= iterator.next().getByteSize();
+            iterator.remove();
+        }
+    }
+
+    private static synchronized void cacheIndex(long fileIndex, BlockFileIndex index) {
+
+        indexCache.put(fileIndex, index);
+
+        Iterator<Long> iterator = indexCache.keySet().iterator();
+        while (indexCache.size() > maximumCachedIndices && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static class ReadBudget {
+
+        private final long bytesPerSecond;
+        private long bytes;
+        private long timestamp;
+
+        private ReadBudget(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.bytes = bytesPerSecond;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        private boolean allows(long readBytes) {
+
+            // Refill the budget according to the elapsed time, up to one second of reading. A read larger than one
+            // second of budget is allowed when the budget is full, so large legacy files can still be indexed.
+            long currentTimestamp = System.currentTimeMillis();
+            long elapsedMilliseconds = Math.max(0L, currentTimestamp - timestamp);
+            bytes = Math.min(bytesPerSecond, bytes + elapsedMilliseconds * bytesPerSecond / 1000L);
+            timestamp = currentTimestamp;
+
+            return bytes >= Math.min(readBytes, bytesPerSecond);
+        }
+
+        private void consume(long readBytes) {
+
+            bytes -= readBytes;
         }
     }
 }
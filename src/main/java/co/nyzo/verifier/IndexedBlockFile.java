@@ -0,0 +1,805 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.NotificationUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class IndexedBlockFile {
+
+    // This is the indexed block file format. The legacy format is a block count (2 bytes) followed by blocks, with a
+    // balance list after the first block and after every gap, and no other header, so finding one block means parsing
+    // every block before it. This format places an index of heights and offsets at the beginning of the file, so a
+    // single block can be read from a memory-mapped file with one lookup in the index and one decode.
+    //
+    // header:  magic value (4 bytes), format version (1 byte), number of blocks (4 bytes)
+    // index:   for each block, in ascending height order: height (8 bytes), block offset (4 bytes), block length
+    //          (4 bytes), balance-list offset (4 bytes, -1 if absent), balance-list length (4 bytes)
+    // data:    block bytes and balance-list bytes at the offsets specified in the index
+    //
+    // Version 2 is the compressed variant. The data is split at block boundaries into chunks of roughly equal size,
+    // and each chunk is deflated independently, so reading a single block only requires inflating one chunk. The
+    // offsets in the index are offsets in the uncompressed data, and a chunk table follows the index.
+    //
+    // header:  magic value (4 bytes), format version (1 byte), number of blocks (4 bytes), number of chunks (4 bytes)
+    // index:   as in version 1
+    // chunks:  for each chunk: uncompressed offset (4 bytes), file offset (4 bytes), compressed length (4 bytes),
+    //          uncompressed length (4 bytes)
+    // data:    compressed chunks at the offsets specified in the chunk table
+
+    // The legacy format begins with a big-endian short block count of no more than 1000 (0x03e8), so its first byte
+    // is always between 0x00 and 0x03. This magic value ("NYZI") begins with 0x4e, so it can never be mistaken for the
+    // start of a legacy file.
+    private static final int magicValue = 0x4e595a49;
+    private static final byte formatVersionRaw = 1;
+    private static final byte formatVersionCompressed = 2;
+
+    private static final int headerByteSize = 4 + 1 + 4;
+    private static final int compressedHeaderByteSize = headerByteSize + 4;
+    private static final int indexEntryByteSize = FieldByteSize.blockHeight + 4 * 4;
+    private static final int chunkEntryByteSize = 4 * 4;
+    private static final int offsetAbsent = -1;
+
+    private static final String chunkByteSizeKey = "consolidated_block_file_chunk_bytes";
+    private static final int chunkByteSize = Math.max(1024, PreferencesUtil.getInt(chunkByteSizeKey, 65536));
+
+    // Recently inflated chunks of compressed files are shared between loads, so consecutive single-block reads from the
+    // same chunk, which are common for historical requests, inflate the chunk only once. The key identifies the file
+    // by its path, modification time, and length, and the chunk by its position and compressed length, so a chunk of
+    // a file that has been rewritten is never reused.
+    private static final int maximumCachedChunks = 16;
+    private static final Map<String, ByteBuffer> inflatedChunkCache = new LinkedHashMap<String, ByteBuffer>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ByteBuffer> eldest) {
+            return size() > maximumCachedChunks;
+        }
+    };
+
+    // Mappings of indexed files are also shared between loads, because mapping a file for every lookup costs a system
+    // call and leaves a mapping behind until the buffer is collected. An entry is only used while the modification
+    // time and length of the file match, and it is removed when the file is replaced through this class.
+    private static final int maximumMappedFiles = 32;
+    private static final Map<String, MappedFileEntry> mappedFileCache = new LinkedHashMap<String,
+            MappedFileEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MappedFileEntry> eldest) {
+            return size() > maximumMappedFiles;
+        }
+    };
+
+    public static boolean isIndexedFile(File file) {
+
+        // A file that is already mapped is known to be indexed, so it is not read again.
+        boolean isIndexedFile = cachedMappedFileEntry(file, fileKey(file)) != null;
+        if (!isIndexedFile && file.exists() && file.length() >= headerByteSize) {
+            try (FileChannel channel = FileChannel.open(Paths.get(file.getAbsolutePath()), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(4);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) { }
+                buffer.flip();
+                isIndexedFile = buffer.remaining() == 4 && buffer.getInt() == magicValue;
+            } catch (Exception ignored) { }
+        }
+
+        return isIndexedFile;
+    }
+
+    public static boolean writeBlocksToFile(List<Block> blocks, List<BalanceList> balanceLists, File file) {
+
+        return writeBlocksToFile(blocks, balanceLists, file, false);
+    }
+
+    public static boolean writeBlocksToFile(List<Block> blocks, List<BalanceList> balanceLists, File file,
+                                            boolean compressed) {
+
+        Map<Long, BalanceList> balanceListMap = new HashMap<>();
+        for (BalanceList balanceList : balanceLists) {
+            balanceListMap.put(balanceList.getBlockHeight(), balanceList);
+        }
+
+        // Sort the blocks on block height ascending.
+        List<Block> sortedBlocks = new ArrayList<>(blocks);
+        Collections.sort(sortedBlocks, new Comparator<Block>() {
+            @Override
+            public int compare(Block block1, Block block2) {
+                return ((Long) block1.getBlockHeight()).compareTo(block2.getBlockHeight());
+            }
+        });
+
+        // The balance list is required for the first block and all blocks after gaps. Check for all of them before
+        // anything is written.
+        boolean successful = true;
+        for (int i = 0; i < sortedBlocks.size() && successful; i++) {
+            long height = sortedBlocks.get(i).getBlockHeight();
+            if ((i == 0 || sortedBlocks.get(i - 1).getBlockHeight() != height - 1) &&
+                    !balanceListMap.containsKey(height)) {
+                successful = false;
+            }
+        }
+
+        if (successful) {
+            Writer writer = null;
+            try {
+                writer = new Writer(file, compressed);
+                for (Block block : sortedBlocks) {
+                    writer.addBlock(block, balanceListMap.get(block.getBlockHeight()));
+                }
+                successful = writer.finish();
+            } catch (Exception reportOnly) {
+                System.err.println(PrintUtil.printException(reportOnly));
+                successful = false;
+                if (writer != null) {
+                    writer.abandon();
+                }
+            }
+        }
+
+        if (!successful) {
+            NotificationUtil.send("unable to write indexed block file " + file.getName() + " on " +
+                    Verifier.getNickname());
+        }
+
+        return successful;
+    }
+
+    public static class Writer {
+
+        // This writer produces an indexed file from blocks supplied one at a time in ascending height order. Only the
+        // index and, for compressed files, the current chunk are held in memory. Block data is streamed to a
+        // temporary data file, and the final file is assembled from the header, the index, and the data file, then
+        // moved into place atomically.
+
+        private final File file;
+        private final boolean compressed;
+        private final File dataFile;
+        private final OutputStream dataStream;
+        private final List<IndexEntry> entries = new ArrayList<>();
+        private final List<int[]> chunks = new ArrayList<>();
+        private final ByteArrayOutputStream chunkStream;
+        private final Deflater deflater;
+        private int uncompressedOffset = 0;
+        private int chunkStart = 0;
+        private int dataLength = 0;
+        private long previousHeight = -1L;
+        private boolean successful = true;
+
+        public Writer(File file, boolean compressed) throws IOException {
+
+            this.file = file;
+            this.compressed = compressed;
+            file.getParentFile().mkdirs();
+            this.dataFile = new File(file.getAbsolutePath() + "_data");
+            this.dataStream = new BufferedOutputStream(new FileOutputStream(dataFile), 1 << 16);
+            this.chunkStream = compressed ? new ByteArrayOutputStream(chunkByteSize * 2) : null;
+            this.deflater = compressed ? new Deflater(Deflater.BEST_COMPRESSION) : null;
+        }
+
+        public void addBlock(Block block, BalanceList balanceList) throws IOException {
+
+            long height = block.getBlockHeight();
+            boolean isRunStart = entries.isEmpty() || previousHeight != height - 1L;
+            if (!entries.isEmpty() && height <= previousHeight) {
+                successful = false;
+            } else if (isRunStart && (balanceList == null || balanceList.getBlockHeight() != height)) {
+                successful = false;
+            } else {
+                // A chunk is closed at a block boundary once it reaches the target size, so a block and its balance
+                // list are always in the same chunk.
+                if (compressed && uncompressedOffset - chunkStart >= chunkByteSize) {
+                    writeChunk();
+                }
+
+                IndexEntry entry = new IndexEntry(height);
+                byte[] blockBytes = block.getBytes();
+                entry.blockOffset = uncompressedOffset;
+                entry.blockLength = blockBytes.length;
+                writeData(blockBytes);
+                if (isRunStart) {
+                    byte[] balanceListBytes = balanceList.getBytes();
+                    entry.balanceListOffset = uncompressedOffset;
+                    entry.balanceListLength = balanceListBytes.length;
+                    writeData(balanceListBytes);
+                }
+
+                entries.add(entry);
+                previousHeight = height;
+            }
+        }
+
+        public boolean finish() throws IOException {
+
+            if (compressed && uncompressedOffset > chunkStart) {
+                writeChunk();
+            }
+            dataStream.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+
+            if (successful && !entries.isEmpty()) {
+
+                int numberOfBlocks = entries.size();
+                int numberOfChunks = chunks.size();
+                int dataOffset = compressed ? compressedHeaderByteSize + indexEntryByteSize * numberOfBlocks +
+                        chunkEntryByteSize * numberOfChunks : headerByteSize + indexEntryByteSize * numberOfBlocks;
+
+                ByteBuffer buffer = ByteBuffer.allocate(dataOffset);
+                buffer.putInt(magicValue);
+                buffer.put(compressed ? formatVersionCompressed : formatVersionRaw);
+                buffer.putInt(numberOfBlocks);
+                if (compressed) {
+                    buffer.putInt(numberOfChunks);
+                }
+
+                // In the raw format, offsets are positions in the file. In the compressed format, offsets are
+                // positions in the uncompressed data, and the chunk table provides the positions in the file.
+                int offsetAdjustment = compressed ? 0 : dataOffset;
+                for (IndexEntry entry : entries) {
+                    buffer.putLong(entry.height);
+                    buffer.putInt(entry.blockOffset + offsetAdjustment);
+                    buffer.putInt(entry.blockLength);
+                    buffer.putInt(entry.balanceListOffset == offsetAbsent ? offsetAbsent :
+                            entry.balanceListOffset + offsetAdjustment);
+                    buffer.putInt(entry.balanceListLength);
+                }
+                for (int[] chunk : chunks) {
+                    buffer.putInt(chunk[0]);
+                    buffer.putInt(chunk[1] + dataOffset);
+                    buffer.putInt(chunk[2]);
+                    buffer.putInt(chunk[3]);
+                }
+                buffer.flip();
+
+                // The temporary file and the data file are removed whether or not the file is written, so a failure
+                // does not leave partial files beside the block file.
+                Path temporaryPath = Paths.get(file.getAbsolutePath() + "_temp");
+                try {
+                    Files.deleteIfExists(temporaryPath);
+                    try (FileChannel output = FileChannel.open(temporaryPath, StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.WRITE);
+                         FileChannel input = FileChannel.open(Paths.get(dataFile.getAbsolutePath()),
+                                 StandardOpenOption.READ)) {
+                        while (buffer.hasRemaining()) {
+                            output.write(buffer);
+                        }
+                        long position = 0L;
+                        long size = input.size();
+                        while (position < size) {
+                            position += input.transferTo(position, size - position, output);
+                        }
+                        output.force(false);
+                    }
+                    Files.move(temporaryPath, Paths.get(file.getAbsolutePath()), StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    removeMappedFile(file);
+                } finally {
+                    Files.deleteIfExists(temporaryPath);
+                    dataFile.delete();
+                }
+            } else {
+                successful = false;
+            }
+
+            dataFile.delete();
+
+            return successful;
+        }
+
+        public void abandon() {
+
+            try {
+                dataStream.close();
+            } catch (Exception ignored) { }
+            if (deflater != null) {
+                deflater.end();
+            }
+            dataFile.delete();
+        }
+
+        private void writeData(byte[] bytes) throws IOException {
+
+            if (compressed) {
+                chunkStream.write(bytes);
+            } else {
+                dataStream.write(bytes);
+            }
+            uncompressedOffset += bytes.length;
+        }
+
+        private void writeChunk() throws IOException {
+
+            byte[] uncompressedBytes = chunkStream.toByteArray();
+            chunkStream.reset();
+
+            deflater.reset();
+            deflater.setInput(uncompressedBytes);
+            deflater.finish();
+            byte[] outputBuffer = new byte[chunkByteSize];
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                int length = deflater.deflate(outputBuffer);
+                dataStream.write(outputBuffer, 0, length);
+                compressedLength += length;
+            }
+
+            chunks.add(new int[] { chunkStart, dataLength, compressedLength, uncompressedBytes.length });
+            dataLength += compressedLength;
+            chunkStart = uncompressedOffset;
+        }
+    }
+
+    private static class IndexEntry {
+
+        private final long height;
+        private int blockOffset;
+        private int blockLength;
+        private int balanceListOffset = offsetAbsent;
+        private int balanceListLength;
+
+        private IndexEntry(long height) {
+            this.height = height;
+        }
+    }
+
+    public static List<Block> loadBlocks(File file, long minimumHeight, long maximumHeight) {
+
+        List<Block> blocks = new ArrayList<>();
+        MappedFile mappedFile = mapFile(file);
+        if (mappedFile != null) {
+            try {
+                for (int i = mappedFile.firstIndexAtOrAbove(minimumHeight); i < mappedFile.numberOfBlocks &&
+                        mappedFile.heightAtIndex(i) <= maximumHeight; i++) {
+                    blocks.add(mappedFile.blockAtIndex(i));
+                }
+            } catch (Exception ignored) { }
+        }
+
+        return blocks;
+    }
+
+    public static Block loadBlock(File file, long blockHeight) {
+
+        Block block = null;
+        MappedFile mappedFile = mapFile(file);
+        if (mappedFile != null) {
+            try {
+                int index = mappedFile.firstIndexAtOrAbove(blockHeight);
+                if (index < mappedFile.numberOfBlocks && mappedFile.heightAtIndex(index) == blockHeight) {
+                    block = mappedFile.blockAtIndex(index);
+                }
+            } catch (Exception ignored) { }
+        }
+
+        return block;
+    }
+
+    public static byte[] loadBlockBytes(File file, long blockHeight) {
+
+        byte[] blockBytes = null;
+        MappedFile mappedFile = mapFile(file);
+        if (mappedFile != null) {
+            try {
+                int index = mappedFile.firstIndexAtOrAbove(blockHeight);
+                if (index < mappedFile.numberOfBlocks && mappedFile.heightAtIndex(index) == blockHeight) {
+                    int position = mappedFile.entryPosition(index);
+                    ByteBuffer data = mappedFile.data(mappedFile.buffer.getInt(position + 8),
+                            mappedFile.buffer.getInt(position + 12));
+                    blockBytes = new byte[data.remaining()];
+                    data.get(blockBytes);
+                }
+            } catch (Exception ignored) { }
+        }
+
+        return blockBytes;
+    }
+
+    public static void loadOffsets(File file, List<Long> heights, List<Integer> blockOffsets,
+                                   List<Integer> blockLengths) {
+
+        // Offsets are only meaningful for direct reads from raw files. For compressed files, the offsets are reported
+        // as absent, and blocks must be read through this class.
+        MappedFile mappedFile = mapFile(file);
+        if (mappedFile != null) {
+            try {
+                for (int i = 0; i < mappedFile.numberOfBlocks; i++) {
+                    int position = mappedFile.entryPosition(i);
+                    heights.add(mappedFile.heightAtIndex(i));
+                    blockOffsets.add(mappedFile.isCompressed() ? offsetAbsent : mappedFile.buffer.getInt(position + 8));
+                    blockLengths.add(mappedFile.buffer.getInt(position + 12));
+                }
+            } catch (Exception ignored) {
+                heights.clear();
+                blockOffsets.clear();
+                blockLengths.clear();
+            }
+        }
+    }
+
+    public static long indexByteSize(File file) {
+
+        // This is the number of bytes at the beginning of the file that hold the header, the index, and, for
+        // compressed files, the chunk table.
+        long byteSize = file.length();
+        MappedFile mappedFile = mapFile(file);
+        if (mappedFile != null) {
+            byteSize = mappedFile.chunkTablePosition + (long) mappedFile.numberOfChunks * chunkEntryByteSize;
+        }
+
+        return byteSize;
+    }
+
+    public static BalanceList loadBalanceList(File file, long blockHeight) {
+
+        BalanceList blockBalanceList = null;
+        MappedFile mappedFile = mapFile(file);
+        if (mappedFile != null) {
+            try {
+                int index = mappedFile.firstIndexAtOrAbove(blockHeight);
+                if (index < mappedFile.numberOfBlocks && mappedFile.heightAtIndex(index) == blockHeight) {
+
+                    // Step back to the nearest stored balance list. One is always stored at the start of each run of
+                    // consecutive blocks, so this never needs to step past a gap.
+                    int startIndex = index;
+                    while (startIndex > 0 && mappedFile.balanceListOffsetAtIndex(startIndex) == offsetAbsent) {
+                        startIndex--;
+                    }
+
+                    Block previousBlock = mappedFile.blockAtIndex(startIndex);
+                    BalanceList balanceList = mappedFile.balanceListAtIndex(startIndex);
+                    for (int i = startIndex + 1; i <= index && balanceList != null; i++) {
+                        Block block = mappedFile.blockAtIndex(i);
+                        balanceList = Block.balanceListForNextBlock(previousBlock, balanceList,
+                                block.getTransactions(), block.getVerifierIdentifier());
+                        previousBlock = block;
+                    }
+
+                    if (balanceList != null && ByteUtil.arraysAreEqual(balanceList.getHash(),
+                            previousBlock.getBalanceListHash())) {
+                        blockBalanceList = balanceList;
+                    } else {
+                        System.err.println("incorrect hash for balance list in indexed file " + file.getName());
+                    }
+                }
+            } catch (Exception ignored) { }
+        }
+
+        return blockBalanceList;
+    }
+
+    public static boolean convertLegacyFile(File file, boolean compressed) {
+
+        // Legacy files store a balance list for the first block and after every gap, which is exactly what the
+        // indexed format requires. The stored lists are carried over without replaying any blocks. The indexed file
+        // is written beside the legacy file and checked against the blocks that were read before it replaces the
+        // legacy file, so a failed conversion leaves the legacy file in place.
+        boolean converted = false;
+        File convertedFile = new File(file.getAbsolutePath() + "_converted");
+        if (file.exists() && !isIndexedFile(file)) {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file.getAbsolutePath())));
+                int numberOfBlocks = buffer.getShort();
+                List<Block> blocks = new ArrayList<>();
+                List<BalanceList> balanceLists = new ArrayList<>();
+                Block previousBlock = null;
+                for (int i = 0; i < numberOfBlocks; i++) {
+                    Block block = Block.fromByteBuffer(buffer, false);
+                    if (previousBlock == null || (previousBlock.getBlockHeight() != block.getBlockHeight() - 1)) {
+                        BalanceList balanceList = BlockManager.readBalanceListInFile(buffer, null);
+                        if (balanceList == null) {
+                            throw new RuntimeException("unresolvable balance list at height " +
+                                    block.getBlockHeight());
+                        }
+                        balanceLists.add(balanceList);
+                    }
+                    blocks.add(block);
+                    previousBlock = block;
+                }
+
+                if (!blocks.isEmpty() && writeBlocksToFile(blocks, balanceLists, convertedFile, compressed) &&
+                        fileContainsBlocks(convertedFile, blocks)) {
+                    Files.move(Paths.get(convertedFile.getAbsolutePath()), Paths.get(file.getAbsolutePath()),
+                            StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    removeMappedFile(convertedFile);
+                    removeMappedFile(file);
+                    converted = true;
+                }
+            } catch (Exception reportOnly) {
+                System.err.println("unable to convert legacy block file " + file.getName() + ": " +
+                        PrintUtil.printException(reportOnly));
+            }
+        }
+        convertedFile.delete();
+
+        return converted;
+    }
+
+    public static boolean fileContainsBlocks(File file, List<Block> blocks) {
+
+        List<Long> heights = new ArrayList<>();
+        List<byte[]> blockHashes = new ArrayList<>();
+        for (Block block : blocks) {
+            heights.add(block.getBlockHeight());
+            blockHashes.add(block.getHash());
+        }
+
+        return fileContainsBlocks(file, heights, blockHashes);
+    }
+
+    public static boolean fileContainsBlocks(File file, List<Long> heights, List<byte[]> blockHashes) {
+
+        // This reads a written file back and confirms that it contains exactly the specified blocks, in height order,
+        // and that every stored balance list matches the balance-list hash of its block. It is used before any other
+        // copy of the blocks is removed.
+        boolean containsBlocks = false;
+        MappedFile mappedFile = mapFile(file);
+        if (mappedFile != null && mappedFile.numberOfBlocks == heights.size()) {
+            try {
+                containsBlocks = true;
+                for (int i = 0; i < heights.size() && containsBlocks; i++) {
+                    Block block = mappedFile.blockAtIndex(i);
+                    BalanceList balanceList = mappedFile.balanceListAtIndex(i);
+                    containsBlocks = mappedFile.heightAtIndex(i) == heights.get(i) &&
+                            ByteUtil.arraysAreEqual(block.getHash(), blockHashes.get(i)) &&
+                            (balanceList == null || ByteUtil.arraysAreEqual(balanceList.getHash(),
+                                    block.getBalanceListHash()));
+                }
+            } catch (Exception ignored) {
+                containsBlocks = false;
+            }
+        }
+
+        return containsBlocks;
+    }
+
+    private static MappedFile mapFile(File file) {
+
+        // The mapping remains valid after the channel is closed, and it is released when the buffer is collected. Only
+        // the pages that are actually touched by a lookup are read from disk. Each load gets its own view of the
+        // shared mapping, because the view holds the state of the load.
+        String fileKey = fileKey(file);
+        MappedFileEntry entry = cachedMappedFileEntry(file, fileKey);
+        if (entry == null && file.exists()) {
+            try (FileChannel channel = FileChannel.open(Paths.get(file.getAbsolutePath()), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() >= headerByteSize && buffer.getInt(0) == magicValue) {
+                    byte version = buffer.get(4);
+                    if (version == formatVersionRaw || (version == formatVersionCompressed &&
+                            buffer.remaining() >= compressedHeaderByteSize)) {
+                        entry = new MappedFileEntry(buffer, version, fileKey);
+                        synchronized (mappedFileCache) {
+                            mappedFileCache.put(file.getAbsolutePath(), entry);
+                        }
+                    }
+                }
+            } catch (Exception ignored) { }
+        }
+
+        return entry == null ? null : new MappedFile(entry.buffer, entry.version, entry.fileKey);
+    }
+
+    private static String fileKey(File file) {
+
+        return file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length();
+    }
+
+    private static MappedFileEntry cachedMappedFileEntry(File file, String fileKey) {
+
+        MappedFileEntry entry;
+        synchronized (mappedFileCache) {
+            entry = mappedFileCache.get(file.getAbsolutePath());
+            if (entry != null && !entry.fileKey.equals(fileKey)) {
+                mappedFileCache.remove(file.getAbsolutePath());
+                entry = null;
+            }
+        }
+
+        return entry;
+    }
+
+    private static void removeMappedFile(File file) {
+
+        synchronized (mappedFileCache) {
+            mappedFileCache.remove(file.getAbsolutePath());
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+    private static class MappedFileEntry {
+
+        private final ByteBuffer buffer;
+        private final byte version;
+        private final String fileKey;
+
+        private MappedFileEntry(ByteBuffer buffer, byte version, String fileKey) {
+            this.buffer = buffer;
+            this.version = version;
+            this.fileKey = fileKey;
+        }
+    }
+
+    private static class MappedFile {
+
+        // This is a view of a mapped file for the duration of a single load. For compressed files, the most recently
+        // inflated chunk is kept, so consecutive blocks in a range load or balance-list replay inflate each chunk once.
+        // Chunks are also taken from and added to the shared cache of inflated chunks.
+
+        private final ByteBuffer buffer;
+        private final byte version;
+        private final String fileKey;
+        private final int numberOfBlocks;
+        private final int numberOfChunks;
+        private final int indexPosition;
+        private final int chunkTablePosition;
+
+        private int inflatedChunk = -1;
+        private ByteBuffer inflatedData = null;
+
+        private MappedFile(ByteBuffer buffer, byte version, String fileKey) {
+
+            this.buffer = buffer;
+            this.version = version;
+            this.fileKey = fileKey;
+            this.numberOfBlocks = buffer.getInt(5);
+            if (version == formatVersionCompressed) {
+                this.numberOfChunks = buffer.getInt(9);
+                this.indexPosition = compressedHeaderByteSize;
+            } else {
+                this.numberOfChunks = 0;
+                this.indexPosition = headerByteSize;
+            }
+            this.chunkTablePosition = indexPosition + numberOfBlocks * indexEntryByteSize;
+        }
+
+        private boolean isCompressed() {
+
+            return version == formatVersionCompressed;
+        }
+
+        private int firstIndexAtOrAbove(long blockHeight) {
+
+            // This is a binary search over the height column of the index.
+            int low = 0;
+            int high = numberOfBlocks;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (heightAtIndex(middle) < blockHeight) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+
+        private int entryPosition(int index) {
+
+            return indexPosition + index * indexEntryByteSize;
+        }
+
+        private long heightAtIndex(int index) {
+
+            return buffer.getLong(entryPosition(index));
+        }
+
+        private int balanceListOffsetAtIndex(int index) {
+
+            return buffer.getInt(entryPosition(index) + 16);
+        }
+
+        private Block blockAtIndex(int index) {
+
+            int position = entryPosition(index);
+            return Block.fromByteBuffer(data(buffer.getInt(position + 8), buffer.getInt(position + 12)), false);
+        }
+
+        private BalanceList balanceListAtIndex(int index) {
+
+            int position = entryPosition(index);
+            int offset = buffer.getInt(position + 16);
+            return offset == offsetAbsent ? null : BalanceList.fromByteBuffer(data(offset,
+                    buffer.getInt(position + 20)));
+        }
+
+        private ByteBuffer data(int offset, int length) {
+
+            ByteBuffer result;
+            if (isCompressed()) {
+                int chunk = chunkForOffset(offset);
+                if (chunk != inflatedChunk) {
+                    inflatedData = cachedChunk(chunk);
+                    inflatedChunk = chunk;
+                }
+                result = slice(inflatedData, offset - chunkValue(chunk, 0), length);
+            } else {
+                result = slice(buffer, offset, length);
+            }
+
+            return result;
+        }
+
+        private int chunkForOffset(int offset) {
+
+            // This is a binary search for the last chunk that starts at or before the offset.
+            int low = 0;
+            int high = numberOfChunks - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (chunkValue(middle, 0) <= offset) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+
+            return low;
+        }
+
+        private int chunkValue(int chunk, int field) {
+
+            return buffer.getInt(chunkTablePosition + chunk * chunkEntryByteSize + field * 4);
+        }
+
+        private ByteBuffer cachedChunk(int chunk) {
+
+            // The chunk is inflated without holding the lock of the cache. Two loads that miss the same chunk at the
+            // same time both inflate it, which is harmless.
+            String key = fileKey + ":" + chunkValue(chunk, 1) + ":" + chunkValue(chunk, 2);
+            ByteBuffer data;
+            synchronized (inflatedChunkCache) {
+                data = inflatedChunkCache.get(key);
+            }
+            if (data == null) {
+                data = inflateChunk(chunk);
+                synchronized (inflatedChunkCache) {
+                    inflatedChunkCache.put(key, data);
+                }
+            }
+
+            return data;
+        }
+
+        private ByteBuffer inflateChunk(int chunk) {
+
+            byte[] compressedBytes = new byte[chunkValue(chunk, 2)];
+            ByteBuffer compressedBuffer = buffer.duplicate();
+            compressedBuffer.position(chunkValue(chunk, 1));
+            compressedBuffer.get(compressedBytes);
+
+            byte[] uncompressedBytes = new byte[chunkValue(chunk, 3)];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressedBytes);
+                int length = 0;
+                while (length < uncompressedBytes.length && !inflater.finished()) {
+                    int inflatedLength = inflater.inflate(uncompressedBytes, length, uncompressedBytes.length - length);
+                    if (inflatedLength == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new RuntimeException("truncated chunk " + chunk);
+                    }
+                    length += inflatedLength;
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                inflater.end();
+            }
+
+            return ByteBuffer.wrap(uncompressedBytes);
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+public class MappedBlockStore implements BlockStore {
+
+    // This stores blocks in an append-only log of segment files. Each segment is limited in size so that it can be
+    // mapped as a single buffer, and segments are read through memory maps once they are sealed. The segment being
+    // appended is read with positional reads. The location of every record is kept in memory, and it is rebuilt at
+    // startup by scanning the segments. A full balance list is stored at every anchor height and at the first height
+    // after each gap, and the lists between are derived from the blocks when requested.
+    //
+    // record:  payload length (4 bytes), CRC-32 of the payload (4 bytes), payload
+    // payload: block height (8 bytes), block length (4 bytes), block, balance-list flag (1 byte), balance list (if
+    //          flag is 1)
+
+    private static final long anchorInterval = 100L;
+    private static final long segmentByteLimit = 256L * 1024L * 1024L;
+    private static final int recordHeaderByteSize = 4 + 4;
+
+    private final File directory;
+    private final Map<Long, RecordLocation> recordLocations = new HashMap<>();
+    private final TreeSet<Long> balanceListHeights = new TreeSet<>();
+    private final List<MappedByteBuffer> segmentBuffers = new ArrayList<>();
+    private long highestHeight = -1L;
+    private BalanceList highestBalanceList = null;
+    private int currentSegmentIndex = 0;
+    private long currentSegmentSize = 0L;
+
+    public MappedBlockStore(File directory) {
+
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized void initialize() {
+
+        // A record that was only partially written when the verifier stopped is removed, along with anything after
+        // it in the same segment.
+        directory.mkdirs();
+        for (int segmentIndex = 0; segmentFile(segmentIndex).exists(); segmentIndex++) {
+            currentSegmentIndex = segmentIndex;
+            currentSegmentSize = scanSegment(segmentIndex);
+        }
+
+        System.out.println("loaded " + recordLocations.size() + " records from mapped block store");
+    }
+
+    @Override
+    public synchronized Block loadBlock(long blockHeight) {
+
+        Block block = null;
+        ByteBuffer payload = payloadForHeight(blockHeight);
+        if (payload != null) {
+            try {
+                payload.position(FieldByteSize.blockHeight + 4);
+                block = Block.fromByteBuffer(payload, false);
+            } catch (Exception ignored) { }
+        }
+
+        return block;
+    }
+
+    @Override
+    public synchronized List<Block> loadBlocks(long minimumHeight, long maximumHeight) {
+
+        List<Block> blocks = new ArrayList<>();
+        for (long height = minimumHeight; height <= Math.min(maximumHeight, highestHeight); height++) {
+            Block block = loadBlock(height);
+            if (block != null) {
+                blocks.add(block);
+            }
+        }
+
+        return blocks;
+    }
+
+    @Override
+    public synchronized BalanceList loadBalanceList(long blockHeight) {
+
+        BalanceList balanceList = null;
+        Block block = loadBlock(blockHeight);
+        if (block != null) {
+            if (highestBalanceList != null && highestBalanceList.getBlockHeight() == blockHeight) {
+                balanceList = highestBalanceList;
+            } else {
+                Long startHeight = balanceListHeights.floor(blockHeight);
+                if (startHeight != null) {
+                    balanceList = storedBalanceList(startHeight);
+                    Block previousBlock = loadBlock(startHeight);
+                    for (long height = startHeight + 1L; height <= blockHeight && balanceList != null; height++) {
+                        Block nextBlock = loadBlock(height);
+                        balanceList = nextBlock == null ? null : Block.balanceListForNextBlock(previousBlock,
+                                balanceList, nextBlock.getTransactions(), nextBlock.getVerifierIdentifier());
+                        previousBlock = nextBlock;
+                    }
+                }
+            }
+
+            if (balanceList != null && !ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+                balanceList = null;
+            }
+        }
+
+        return balanceList;
+    }
+
+    @Override
+    public synchronized long getHighestHeight() {
+
+        return highestHeight;
+    }
+
+    @Override
+    public synchronized boolean freezeBlock(Block block, BalanceList balanceList, BalanceList previousBalanceList) {
+
+        return appendRecord(block, balanceList);
+    }
+
+    @Override
+    public synchronized boolean writeBlocks(List<Block> blocks, List<BalanceList> balanceLists) {
+
+        Map<Long, BalanceList> balanceListMap = new HashMap<>();
+        for (BalanceList balanceList : balanceLists) {
+            balanceListMap.put(balanceList.getBlockHeight(), balanceList);
+        }
+
+        boolean successful = true;
+        for (Block block : blocks) {
+            successful &= appendRecord(block, balanceListMap.get(block.getBlockHeight()));
+        }
+
+        return successful;
+    }
+
+    @Override
+    public void flush() {
+
+        // Each record is forced to disk when it is appended.
+    }
+
+    @Override
+    public boolean isPersistent() {
+
+        return true;
+    }
+
+    @Override
+    public boolean usesBlockFileLayout() {
+
+        return false;
+    }
+
+    private boolean appendRecord(Block block, BalanceList balanceList) {
+
+        boolean successful = false;
+        long height = block.getBlockHeight();
+        boolean storeBalanceList = balanceList != null && (height % anchorInterval == 0L ||
+                !recordLocations.containsKey(height - 1L));
+        byte[] blockBytes = block.getBytes();
+        byte[] balanceListBytes = storeBalanceList ? balanceList.getBytes() : new byte[0];
+        byte[] payload = new byte[FieldByteSize.blockHeight + 4 + blockBytes.length + 1 + balanceListBytes.length];
+        ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+        payloadBuffer.putLong(height);
+        payloadBuffer.putInt(blockBytes.length);
+        payloadBuffer.put(blockBytes);
+        payloadBuffer.put(storeBalanceList ? (byte) 1 : (byte) 0);
+        payloadBuffer.put(balanceListBytes);
+
+        if (currentSegmentSize >= segmentByteLimit) {
+            currentSegmentIndex++;
+            currentSegmentSize = 0L;
+        }
+
+        File file = segmentFile(currentSegmentIndex);
+        long position = -1L;
+        try (FileChannel channel = FileChannel.open(Paths.get(file.getAbsolutePath()), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+
+            ByteBuffer buffer = ByteBuffer.allocate(recordHeaderByteSize + payload.length);
+            buffer.putInt(payload.length);
+            buffer.putInt(checksum(payload, 0, payload.length));
+            buffer.put(payload);
+            buffer.flip();
+            position = channel.size();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+
+            currentSegmentSize = position + recordHeaderByteSize + payload.length;
+            registerRecord(height, new RecordLocation(currentSegmentIndex, position + recordHeaderByteSize,
+                    payload.length), storeBalanceList);
+            if (balanceList != null && height >= highestHeight) {
+                highestBalanceList = balanceList;
+            }
+            successful = true;
+
+        } catch (Exception reportOnly) {
+            System.err.println("unable to write mapped block store: " + PrintUtil.printException(reportOnly));
+
+            // Part of the record may have reached the segment. The segment is cut back to its length before the write,
+            // because the next record would otherwise follow the partial record, and the scan at startup would remove
+            // both. If the segment cannot be cut back, it is sealed, and the next record starts a new segment.
+            if (position >= 0L && !truncateSegment(file, position)) {
+                currentSegmentIndex++;
+                currentSegmentSize = 0L;
+            }
+        }
+
+        return successful;
+    }
+
+    private static boolean truncateSegment(File file, long size) {
+
+        boolean successful = false;
+        try (FileChannel channel = FileChannel.open(Paths.get(file.getAbsolutePath()), StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+            channel.force(false);
+            successful = channel.size() == size;
+        } catch (Exception reportOnly) {
+            System.err.println("unable to truncate mapped block store segment " + file.getName() + ": " +
+                    PrintUtil.printException(reportOnly));
+        }
+
+        return successful;
+    }
+
+    private long scanSegment(int segmentIndex) {
+
+        long validSize = 0L;
+        File file = segmentFile(segmentIndex);
+        try (FileChannel channel = FileChannel.open(Paths.get(file.getAbsolutePath()), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+
+            long size = channel.size();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            boolean valid = true;
+            while (valid && buffer.remaining() >= recordHeaderByteSize) {
+                int position = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                valid = length > FieldByteSize.blockHeight + 5 && length <= buffer.remaining();
+                if (valid) {
+                    byte[] payload = new byte[length];
+                    buffer.get(payload);
+                    valid = checksum(payload, 0, length) == checksum;
+                    if (valid) {
+                        ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+                        long height = payloadBuffer.getLong();
+                        int blockLength = payloadBuffer.getInt();
+                        boolean hasBalanceList = payload[FieldByteSize.blockHeight + 4 + blockLength] == 1;
+                        registerRecord(height, new RecordLocation(segmentIndex, position + recordHeaderByteSize,
+                                length), hasBalanceList);
+                        validSize = buffer.position();
+                    }
+                }
+            }
+
+            if (validSize < size) {
+                System.out.println("truncating mapped block store segment " + file.getName() + " from " + size +
+                        " to " + validSize + " bytes");
+                channel.truncate(validSize);
+            }
+
+        } catch (Exception reportOnly) {
+            System.err.println("unable to scan mapped block store segment " + file.getName() + ": " +
+                    PrintUtil.printException(reportOnly));
+        }
+
+        return validSize;
+    }
+
+    private void registerRecord(long height, RecordLocation location, boolean hasBalanceList) {
+
+        recordLocations.put(height, location);
+        if (hasBalanceList) {
+            balanceListHeights.add(height);
+        }
+        highestHeight = Math.max(highestHeight, height);
+    }
+
+    private ByteBuffer payloadForHeight(long blockHeight) {
+
+        // Only sealed segments are mapped, each once, because they no longer change. The segment being appended grows
+        // with every record, so its records are read with positional reads instead of mapping it again. The returned
+        // buffer is an independent view of the payload.
+        ByteBuffer payload = null;
+        RecordLocation location = recordLocations.get(blockHeight);
+        if (location != null) {
+            try {
+                if (location.segmentIndex < currentSegmentIndex) {
+                    while (segmentBuffers.size() <= location.segmentIndex) {
+                        segmentBuffers.add(null);
+                    }
+
+                    MappedByteBuffer segmentBuffer = segmentBuffers.get(location.segmentIndex);
+                    if (segmentBuffer == null) {
+                        try (FileChannel channel = FileChannel.open(Paths.get(segmentFile(location.segmentIndex)
+                                .getAbsolutePath()), StandardOpenOption.READ)) {
+                            segmentBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                        }
+                        segmentBuffers.set(location.segmentIndex, segmentBuffer);
+                    }
+
+                    ByteBuffer view = segmentBuffer.duplicate();
+                    view.position((int) location.offset);
+                    view.limit((int) (location.offset + location.length));
+                    payload = view.slice();
+                } else {
+                    try (FileChannel channel = FileChannel.open(Paths.get(segmentFile(location.segmentIndex)
+                            .getAbsolutePath()), StandardOpenOption.READ)) {
+                        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+                        long offset = location.offset;
+                        while (buffer.hasRemaining()) {
+                            int length = channel.read(buffer, offset);
+                            if (length < 0) {
+                                throw new RuntimeException("unexpected end of mapped block store segment");
+                            }
+                            offset += length;
+                        }
+                        buffer.flip();
+                        payload = buffer;
+                    }
+                }
+            } catch (Exception reportOnly) {
+                System.err.println("unable to read mapped block store: " + PrintUtil.printException(reportOnly));
+            }
+        }
+
+        return payload;
+    }
+
+    private BalanceList storedBalanceList(long blockHeight) {
+
+        BalanceList balanceList = null;
+        ByteBuffer payload = payloadForHeight(blockHeight);
+        if (payload != null) {
+            try {
+                payload.position(FieldByteSize.blockHeight);
+                int blockLength = payload.getInt();
+                payload.position(payload.position() + blockLength);
+                if (payload.get() == 1) {
+                    balanceList = BalanceList.fromByteBuffer(payload);
+                }
+            } catch (Exception ignored) { }
+        }
+
+        return balanceList;
+    }
+
+    private File segmentFile(int segmentIndex) {
+
+        return new File(directory, String.format("m_%06d.%s", segmentIndex, "nyzomapped"));
+    }
+
+    private static int checksum(byte[] array, int offset, int length) {
+
+        CRC32 crc = new CRC32();
+        crc.update(array, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static class RecordLocation {
+
+        private final int segmentIndex;
+        private final long offset;
+        private final int length;
+
+        private RecordLocation(int segmentIndex, long offset, int length) {
+            this.segmentIndex = segmentIndex;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
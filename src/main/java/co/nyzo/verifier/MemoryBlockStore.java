@@ -0,0 +1,122 @@
+package co.nyzo.verifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class MemoryBlockStore implements BlockStore {
+
+    // This keeps all blocks on the heap and nothing on disk, so it starts empty every time. It is intended for
+    // benchmarks and simulations. A full balance list is kept at every anchor height, at the first height after each
+    // gap, and at the highest height, and the lists between are derived from the blocks when requested.
+
+    private static final long anchorInterval = 100L;
+
+    private final TreeMap<Long, Block> blocks = new TreeMap<>();
+    private final TreeMap<Long, BalanceList> balanceLists = new TreeMap<>();
+    private BalanceList highestBalanceList = null;
+
+    @Override
+    public void initialize() {
+    }
+
+    @Override
+    public synchronized Block loadBlock(long blockHeight) {
+
+        return blocks.get(blockHeight);
+    }
+
+    @Override
+    public synchronized List<Block> loadBlocks(long minimumHeight, long maximumHeight) {
+
+        return new ArrayList<>(blocks.subMap(minimumHeight, true, maximumHeight, true).values());
+    }
+
+    @Override
+    public synchronized BalanceList loadBalanceList(long blockHeight) {
+
+        BalanceList balanceList = null;
+        Block block = blocks.get(blockHeight);
+        if (block != null) {
+            if (highestBalanceList != null && highestBalanceList.getBlockHeight() == blockHeight) {
+                balanceList = highestBalanceList;
+            } else {
+                Map.Entry<Long, BalanceList> entry = balanceLists.floorEntry(blockHeight);
+                if (entry != null) {
+                    balanceList = entry.getValue();
+                    Block previousBlock = blocks.get(entry.getKey());
+                    for (long height = entry.getKey() + 1L; height <= blockHeight && balanceList != null; height++) {
+                        Block nextBlock = blocks.get(height);
+                        balanceList = nextBlock == null ? null : Block.balanceListForNextBlock(previousBlock,
+                                balanceList, nextBlock.getTransactions(), nextBlock.getVerifierIdentifier());
+                        previousBlock = nextBlock;
+                    }
+                }
+            }
+
+            if (balanceList != null && !ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+                balanceList = null;
+            }
+        }
+
+        return balanceList;
+    }
+
+    @Override
+    public synchronized long getHighestHeight() {
+
+        return blocks.isEmpty() ? -1L : blocks.lastKey();
+    }
+
+    @Override
+    public synchronized boolean freezeBlock(Block block, BalanceList balanceList, BalanceList previousBalanceList) {
+
+        storeBlock(block, balanceList);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeBlocks(List<Block> blocks, List<BalanceList> balanceLists) {
+
+        Map<Long, BalanceList> balanceListMap = new TreeMap<>();
+        for (BalanceList balanceList : balanceLists) {
+            balanceListMap.put(balanceList.getBlockHeight(), balanceList);
+        }
+
+        for (Block block : blocks) {
+            storeBlock(block, balanceListMap.get(block.getBlockHeight()));
+        }
+
+        return true;
+    }
+
+    private void storeBlock(Block block, BalanceList balanceList) {
+
+        long height = block.getBlockHeight();
+        blocks.put(height, block);
+        if (balanceList != null && (height % anchorInterval == 0L || !blocks.containsKey(height - 1L))) {
+            balanceLists.put(height, balanceList);
+        }
+
+        if (balanceList != null && (highestBalanceList == null || height >= highestBalanceList.getBlockHeight())) {
+            highestBalanceList = balanceList;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public boolean isPersistent() {
+
+        return false;
+    }
+
+    @Override
+    public boolean usesBlockFileLayout() {
+
+        return false;
+    }
+}
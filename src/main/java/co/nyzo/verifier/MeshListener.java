@@ -344,7 +344,7 @@ public class MeshListener {
 
                     BlockRequest request = (BlockRequest) message.getContent();
                     response = new Message(MessageType.BlockResponse12, new BlockResponse(request.getStartHeight(),
-                            request.getEndHeight(), request.includeBalanceList()));
+                            request.getEndHeight(), request.includeBalanceList(), message.getSourceNodeIdentifier()));
 
                 } else if (messageType == MessageType.TransactionPoolRequest13) {
 
@@ -479,6 +479,11 @@ public class MeshListener {
                     response = new Message(MessageType.VerifierRemovalTallyStatusResponse421,
                             new VerifierRemovalTallyStatusResponse(message));
 
+                } else if (messageType == MessageType.BlockStoreScrubberStatusRequest422) {
+
+                    response = new Message(MessageType.BlockStoreScrubberStatusResponse423,
+                            new BlockStoreScrubberStatusResponse(message));
+
                 } else if (messageType == MessageType.ResetRequest500) {
 
                     boolean success = ByteUtil.arraysAreEqual(message.getSourceNodeIdentifier(),
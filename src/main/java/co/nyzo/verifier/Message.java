@@ -51,12 +51,14 @@ public class Message {
     private byte[] sourceNodeSignature;   // the signature of all preceding parts
     private boolean valid;       // not serialized
     private byte[] sourceIpAddress;   // not serialized
+    private byte[] contentBytes;      // not serialized; the content of a message from this system, serialized once
 
     // This is the constructor for a new message originating from this system.
     public Message(MessageType type, MessageObject content) {
         this.timestamp = System.currentTimeMillis();
         this.type = type;
         this.content = content;
+        this.contentBytes = content == null ? null : content.getBytes();
         this.sourceNodeIdentifier = Verifier.getIdentifier();
         this.sourceNodeSignature = Verifier.sign(getBytesForSigning());
         this.valid = true;
@@ -308,7 +310,7 @@ public class Message {
         // Determine the size (timestamp, type, source-node identifier, content if present).
         int sizeBytes = FieldByteSize.timestamp + FieldByteSize.messageType + FieldByteSize.identifier;
         if (content != null) {
-            sizeBytes += content.getByteSize();
+            sizeBytes += contentBytes == null ? content.getByteSize() : contentBytes.length;
         }
 
         // Make the buffer.
@@ -319,7 +321,7 @@ public class Message {
         buffer.putLong(timestamp);
         buffer.putShort((short) type.getValue());
         if (content != null) {
-            buffer.put(content.getBytes());
+            buffer.put(contentBytes == null ? content.getBytes() : contentBytes);
         }
         buffer.put(sourceNodeIdentifier);
 
@@ -332,7 +334,7 @@ public class Message {
         int sizeBytes = FieldByteSize.messageLength + FieldByteSize.timestamp + FieldByteSize.messageType +
                 FieldByteSize.identifier + FieldByteSize.signature;
         if (content != null) {
-            sizeBytes += content.getByteSize();
+            sizeBytes += contentBytes == null ? content.getByteSize() : contentBytes.length;
         }
 
         // Make the buffer.
@@ -346,7 +348,7 @@ public class Message {
         buffer.putLong(timestamp);
         buffer.putShort((short) type.getValue());
         if (content != null) {
-            buffer.put(content.getBytes());
+            buffer.put(contentBytes == null ? content.getBytes() : contentBytes);
         }
         buffer.put(sourceNodeIdentifier);
         buffer.put(sourceNodeSignature);
@@ -491,6 +493,8 @@ public class Message {
             content = PerformanceScoreStatusResponse.fromByteBuffer(buffer);
         } else if (type == MessageType.VerifierRemovalTallyStatusResponse421) {
             content = VerifierRemovalTallyStatusResponse.fromByteBuffer(buffer);
+        } else if (type == MessageType.BlockStoreScrubberStatusResponse423) {
+            content = BlockStoreScrubberStatusResponse.fromByteBuffer(buffer);
         } else if (type == MessageType.ResetResponse501) {
             content = BooleanMessageResponse.fromByteBuffer(buffer);
         } else if (type == MessageType.Error65534) {
@@ -83,6 +83,8 @@ public enum MessageType {
     PerformanceScoreStatusResponse419(419),
     VerifierRemovalTallyStatusRequest420(420),
     VerifierRemovalTallyStatusResponse421(421),
+    BlockStoreScrubberStatusRequest422(422),  // gets the status and problems found by the block store scrubber
+    BlockStoreScrubberStatusResponse423(423),
 
     // bootstrapping messages
     ResetRequest500(500),   // resets the blockchain
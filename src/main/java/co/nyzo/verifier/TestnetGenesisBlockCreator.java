@@ -35,8 +35,8 @@ public class TestnetGenesisBlockCreator {
         block.sign(genesisTimestamp, verifierSeed);
         System.out.println("block " + 0 + " is valid: " + block.signatureIsValid());
 
-        BlockManager.writeBlocksToFile(Collections.singletonList(block), Collections.singletonList(balanceList),
-                BlockManager.individualFileForBlockHeight(0));
+        BlockManager.getBlockStore().writeBlocks(Collections.singletonList(block),
+                Collections.singletonList(balanceList));
     }
 
     private static long nextGenesisTimestamp() {
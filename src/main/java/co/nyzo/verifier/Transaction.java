@@ -2,11 +2,13 @@ package co.nyzo.verifier;
 
 import co.nyzo.verifier.util.PrintUtil;
 import co.nyzo.verifier.util.SignatureUtil;
+import co.nyzo.verifier.util.SignedItem;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Map;
+import java.util.List;
 
 public class Transaction implements MessageObject {
 
@@ -46,6 +48,9 @@ public class Transaction implements MessageObject {
 
     private SignatureState signatureState = SignatureState.Undetermined;
 
+    // The serialized form of a transaction does not change after it is signed, so it is only assembled once.
+    private volatile byte[] bytes = null;
+
     private Transaction() {
     }
 
@@ -226,7 +231,13 @@ public class Transaction implements MessageObject {
     @Override
     public byte[] getBytes() {
 
-        return getBytes(false);
+        byte[] bytes = this.bytes;
+        if (bytes == null) {
+            bytes = getBytes(false);
+            this.bytes = bytes;
+        }
+
+        return bytes;
     }
 
     public byte[] getBytes(boolean forSigning) {
@@ -388,8 +399,7 @@ public class Transaction implements MessageObject {
                 if (frozenEdge != null) {
                     BalanceList balanceList = BalanceListManager.balanceListForBlock(frozenEdge, null);
                     if (balanceList != null) {
-                        Map<ByteBuffer, Long> balanceMap = BalanceManager.makeBalanceMap(balanceList);
-                        if (BalanceManager.transactionSpamsBalanceList(balanceMap, this,
+                        if (BalanceManager.transactionSpamsBalanceList(balanceList, this,
                                 Collections.singletonList(this))) {
 
                             if (getAmount() < BalanceManager.minimumPreferredBalance) {
@@ -435,6 +445,27 @@ public class Transaction implements MessageObject {
         return signatureState == SignatureState.Valid;
     }
 
+    public static void verifySignatures(List<Transaction> transactions) {
+
+        // This determines the signature states of all signed transactions in the list at once, so that the signatures
+        // are verified in parallel. Coin-generation transactions are not signed.
+        List<Transaction> transactionsToVerify = new ArrayList<>();
+        List<SignedItem> signedItems = new ArrayList<>();
+        for (Transaction transaction : transactions) {
+            if (transaction.getType() != typeCoinGeneration &&
+                    transaction.signatureState == SignatureState.Undetermined) {
+                transactionsToVerify.add(transaction);
+                signedItems.add(new SignedItem(transaction.signature, transaction.getBytes(true),
+                        transaction.senderIdentifier));
+            }
+        }
+
+        boolean[] results = SignatureUtil.verifyBatch(signedItems);
+        for (int i = 0; i < transactionsToVerify.size(); i++) {
+            transactionsToVerify.get(i).signatureState = results[i] ? SignatureState.Valid : SignatureState.Invalid;
+        }
+    }
+
     public boolean previousHashIsValid() {
         return true;
     }
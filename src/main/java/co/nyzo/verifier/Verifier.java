@@ -18,8 +18,11 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class Verifier {
 
-    public static final File dataRootDirectory = TestnetUtil.testnet ?  new File("/var/lib/nyzo/testnet") :
-            new File("/var/lib/nyzo/production");
+    // The nyzo.dataRootDirectory system property moves the data root. The tests set it, so they never read or write
+    // the data of a verifier running on the same machine.
+    public static final File dataRootDirectory = System.getProperty("nyzo.dataRootDirectory") != null ?
+            new File(System.getProperty("nyzo.dataRootDirectory")) : TestnetUtil.testnet ?
+            new File("/var/lib/nyzo/testnet") : new File("/var/lib/nyzo/production");
 
     private static final AtomicBoolean alive = new AtomicBoolean(false);
     private static byte[] privateSeed = null;
@@ -139,6 +142,14 @@ public class Verifier {
             System.out.println("starting block file consolidator");
             BlockFileConsolidator.start();
 
+            // Start writing chain-state checkpoints. These allow the next startup to skip rebuilding the frozen edge
+            // and the cycle from the block files.
+            ChainStateCheckpoint.start();
+
+            // Start the block store scrubber. This reads the stored blocks slowly in the background to find damaged
+            // or missing files before they are needed.
+            BlockStoreScrubber.start();
+
             System.out.println("starting verifier");
 
             // Load the list of trusted entry points.
@@ -651,8 +662,7 @@ public class Verifier {
                 // Remove any balance-list spam transactions. To avoid rejection of incoming blocks, these
                 // transactions are not currently removed from those blocks, but they are removed from blocks
                 // produced locally.
-                Map<ByteBuffer, Long> balanceMap = BalanceManager.makeBalanceMap(previousBalanceList);
-                approvedTransactions = BalanceManager.transactionsWithoutBalanceListSpam(balanceMap,
+                approvedTransactions = BalanceManager.transactionsWithoutBalanceListSpam(previousBalanceList,
                         approvedTransactions);
 
                 // Make the balance list for the new block. If the balance list is good, make the block.
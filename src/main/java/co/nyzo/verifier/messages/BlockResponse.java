@@ -10,11 +10,17 @@ public class BlockResponse implements MessageObject {
 
     private BalanceList initialBalanceList;
     private List<Block> blocks;
+    private List<byte[]> blockBytes;
 
-    public BlockResponse(long startBlockHeight, long endBlockHeight, boolean includeInitialBalanceList) {
+    public BlockResponse(long startBlockHeight, long endBlockHeight, boolean includeInitialBalanceList,
+                         byte[] requesterIdentifier) {
 
+        // Responses are built from the serialized blocks. Blocks in memory are serialized, and blocks behind the
+        // block map are served from the bytes stored on disk, subject to the historical read budgets of the verifier
+        // and the requester, so blocks that are only passed along to other verifiers do not create Block and
+        // Transaction objects.
         BalanceList initialBalanceList = null;
-        List<Block> blocks = new ArrayList<>();
+        List<byte[]> blockBytes = new ArrayList<>();
 
         // To conserve resources, only respond to block requests for 10 or fewer blocks.
         if (endBlockHeight - startBlockHeight < 10) {
@@ -23,14 +29,32 @@ public class BlockResponse implements MessageObject {
             long blockHeight = endBlockHeight;
             while (totalByteSize < 1000000 && !foundNullBlock && blockHeight >= startBlockHeight) {
                 Block block = BlockManager.frozenBlockForHeight(blockHeight);
-                if (block == null) {
+                byte[] bytes = block == null ? HistoricalBlockManagerMap.blockBytesForHeight(blockHeight,
+                        requesterIdentifier) : block.getBytes();
+                if (bytes == null) {
                     foundNullBlock = true;
                 } else {
-                    blocks.add(0, block);
-                    totalByteSize += block.getByteSize();
+                    blockBytes.add(0, bytes);
+                    totalByteSize += bytes.length;
                     if (blockHeight == startBlockHeight && includeInitialBalanceList) {
                         System.out.println("trying to get balance list at height " + blockHeight);
-                        initialBalanceList = BalanceListManager.balanceListForBlock(block, null);
+
+                        // In the retention window, the balance list manager provides the list. Behind the retention
+                        // edge, the list is only read from the checkpoint store, subject to the historical read
+                        // budgets.
+                        if (block == null) {
+                            block = Block.fromByteBuffer(ByteBuffer.wrap(bytes), false);
+                        }
+                        if (blockHeight >= BlockManager.getRetentionEdgeHeight()) {
+                            initialBalanceList = BalanceListManager.balanceListForBlock(block, null);
+                        } else {
+                            BalanceList storedBalanceList = HistoricalBlockManagerMap.balanceListForHeight(blockHeight,
+                                    requesterIdentifier);
+                            if (storedBalanceList != null && ByteUtil.arraysAreEqual(storedBalanceList.getHash(),
+                                    block.getBalanceListHash())) {
+                                initialBalanceList = storedBalanceList;
+                            }
+                        }
                     }
                 }
 
@@ -38,11 +62,11 @@ public class BlockResponse implements MessageObject {
             }
         }
 
-        System.out.println("built list of " + blocks.size() + " for block request [" + startBlockHeight + "-" +
+        System.out.println("built list of " + blockBytes.size() + " for block request [" + startBlockHeight + "-" +
                 endBlockHeight + "] with balance list " + initialBalanceList);
 
         this.initialBalanceList = initialBalanceList;
-        this.blocks = blocks;
+        this.blockBytes = blockBytes;
     }
 
     public BlockResponse(BalanceList initialBalanceList, List<Block> blocks) {
@@ -56,6 +80,16 @@ public class BlockResponse implements MessageObject {
     }
 
     public List<Block> getBlocks() {
+
+        // A response built from serialized blocks only builds the blocks if they are requested.
+        if (blocks == null) {
+            List<Block> blocks = new ArrayList<>();
+            for (byte[] bytes : blockBytes) {
+                blocks.add(Block.fromByteBuffer(ByteBuffer.wrap(bytes)));
+            }
+            this.blocks = blocks;
+        }
+
         return blocks;
     }
 
@@ -68,8 +102,14 @@ public class BlockResponse implements MessageObject {
         }
 
         byteSize += FieldByteSize.frozenBlockListLength;
-        for (Block block : blocks) {
-            byteSize += block.getByteSize();
+        if (blockBytes == null) {
+            for (Block block : blocks) {
+                byteSize += block.getByteSize();
+            }
+        } else {
+            for (byte[] bytes : blockBytes) {
+                byteSize += bytes.length;
+            }
         }
 
         return byteSize;
@@ -85,9 +125,16 @@ public class BlockResponse implements MessageObject {
             buffer.put(initialBalanceList.getBytes());
         }
 
-        buffer.putShort((short) blocks.size());
-        for (Block block : blocks) {
-            buffer.put(block.getBytes());
+        if (blockBytes == null) {
+            buffer.putShort((short) blocks.size());
+            for (Block block : blocks) {
+                buffer.put(block.getBytes());
+            }
+        } else {
+            buffer.putShort((short) blockBytes.size());
+            for (byte[] bytes : blockBytes) {
+                buffer.put(bytes);
+            }
         }
 
         return array;
@@ -119,6 +166,6 @@ public class BlockResponse implements MessageObject {
 
     @Override
     public String toString() {
-        return "[BlockResponse(blocks=" + blocks.size() + ")]";
+        return "[BlockResponse(blocks=" + (blockBytes == null ? blocks.size() : blockBytes.size()) + ")]";
     }
 }
@@ -3,6 +3,7 @@ package co.nyzo.verifier.messages;
 import co.nyzo.verifier.*;
 import co.nyzo.verifier.util.NotificationUtil;
 import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.SignatureUtil;
 import co.nyzo.verifier.util.TestnetUtil;
 import co.nyzo.verifier.MemoryMonitor;
 
@@ -68,6 +69,8 @@ public class StatusResponse implements MessageObject {
             lines.add("old timestamp: " + Verifier.oldestTimestampAge());
             lines.add("blocks: " + BlockManagerMap.mapInformation());
             lines.add("balance lists: " + BalanceListManager.mapInformation());
+            lines.add("signature cache: " + SignatureUtil.cacheInformation());
+            lines.add("block scrubber: " + BlockStoreScrubber.getStatus());
             lines.add("node-joins sent: " + NodeManager.getNodeJoinRequestsSent());
             lines.add("memory (min/max/avg): " + MemoryMonitor.getMemoryStats());
 
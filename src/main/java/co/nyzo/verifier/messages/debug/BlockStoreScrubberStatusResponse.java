@@ -0,0 +1,86 @@
+package co.nyzo.verifier.messages.debug;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.messages.MultilineTextResponse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class BlockStoreScrubberStatusResponse implements MessageObject, MultilineTextResponse {
+
+    private List<String> lines;
+
+    public BlockStoreScrubberStatusResponse(Message request) {
+
+        // This is a debug request, so it must be signed by the local verifier.
+        if (ByteUtil.arraysAreEqual(request.getSourceNodeIdentifier(), Verifier.getIdentifier())) {
+
+            this.lines = BlockStoreScrubber.getStatusLines();
+        } else {
+            this.lines = Collections.singletonList("*** unauthorized ***");
+        }
+    }
+
+    public BlockStoreScrubberStatusResponse(List<String> lines) {
+
+        this.lines = lines;
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    @Override
+    public int getByteSize() {
+
+        int byteSize = FieldByteSize.unnamedShort;  // list length
+        for (String line : lines) {
+            byteSize += FieldByteSize.string(line);
+        }
+
+        return byteSize;
+    }
+
+    @Override
+    public byte[] getBytes() {
+
+        byte[] result = new byte[getByteSize()];
+        ByteBuffer buffer = ByteBuffer.wrap(result);
+
+        buffer.putShort((short) lines.size());
+        for (String line : lines) {
+            byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) lineBytes.length);
+            buffer.put(lineBytes);
+        }
+
+        return result;
+    }
+
+    public static BlockStoreScrubberStatusResponse fromByteBuffer(ByteBuffer buffer) {
+
+        BlockStoreScrubberStatusResponse result = null;
+
+        try {
+            int numberOfLines = buffer.getShort() & 0xffff;
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < numberOfLines; i++) {
+                short lineByteLength = buffer.getShort();
+                byte[] lineBytes = new byte[lineByteLength];
+                buffer.get(lineBytes);
+                lines.add(new String(lineBytes, StandardCharsets.UTF_8));
+            }
+
+            result = new BlockStoreScrubberStatusResponse(lines);
+
+        } catch (Exception ignored) { }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "[BlockStoreScrubberStatusResponse(lines=" + lines.size() + ")]";
+    }
+}
@@ -0,0 +1,11 @@
+package co.nyzo.verifier.scripts;
+
+import co.nyzo.verifier.*;
+
+public class BlockStoreScrubberStatusRequestScript {
+
+    public static void main(String[] args) {
+
+        ScriptUtil.fetchMultilineStatus(MessageType.BlockStoreScrubberStatusRequest422, args);
+    }
+}
@@ -0,0 +1,334 @@
+package co.nyzo.verifier.tools;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.FileUtil;
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+
+public class ChainArchiveTool {
+
+    // This tool moves a range of the blockchain between data directories as a single file, so a new verifier can be
+    // provisioned from a local archive instead of fetching every block from the mesh. The verifier should be stopped
+    // while the tool runs.
+    //
+    // export <start height> <end height | frozen> <archive file>
+    // import <archive file>
+    //
+    // header:   magic value (4 bytes), format version (1 byte), start height (8 bytes), end height (8 bytes)
+    // records:  for each height in the range: block length (4 bytes), block, balance-list flag (1 byte), balance-list
+    //           length (4 bytes) and balance list if the flag is 1
+    // trailer:  zero block length (4 bytes), number of blocks (8 bytes), SHA-256 of all preceding bytes (32 bytes)
+    //
+    // The balance list is included at the start height, at the first height of every consolidated file, and at the
+    // end height. The digest covers the whole file, but it only shows that the file is intact, not that its chain is
+    // authentic. On import, the first block must be the Genesis block, the blocks must form a hash chain through their
+    // previous-block hashes, the verifier signature of every block must be valid, and every included balance list is
+    // checked against its block. The block signatures cover the transactions. The transaction signatures themselves
+    // cannot be checked here, because they include the hashes of earlier blocks, which are only looked up after the
+    // chain has been imported. An archive that does not start at the Genesis block can be exported, but it cannot be
+    // imported, because the verifier cannot start without the Genesis block.
+    //
+    // The import is written to a staging directory beside the block directory, and the staging directory replaces
+    // the block directory only when the whole archive has been imported. If the import fails, the staging directory
+    // is removed, so the import can simply be run again.
+
+    private static final int magicValue = 0x4e595a41;  // "NYZA"
+    private static final byte formatVersion = 1;
+    private static final int bufferSize = 1 << 20;
+
+    public static void main(String[] args) {
+
+        try {
+            if (args.length == 4 && args[0].equals("export")) {
+                long startHeight = Long.parseLong(args[1]);
+                long endHeight = args[2].equals("frozen") ? BlockManager.getFrozenEdgeHeight() :
+                        Long.parseLong(args[2]);
+                export(startHeight, endHeight, new File(args[3]));
+            } else if (args.length == 2 && args[0].equals("import")) {
+                importArchive(new File(args[1]));
+            } else {
+                System.out.println("usage: ChainArchiveTool export <start height> <end height | frozen> <file>");
+                System.out.println("       ChainArchiveTool import <file starting at the Genesis block>");
+            }
+        } catch (Exception reportOnly) {
+            System.err.println("chain archive operation failed: " + PrintUtil.printException(reportOnly));
+        }
+
+        UpdateUtil.terminate();
+    }
+
+    private static void export(long startHeight, long endHeight, File archiveFile) throws Exception {
+
+        if (startHeight < 0 || endHeight < startHeight || endHeight > BlockManager.getFrozenEdgeHeight()) {
+            throw new IllegalArgumentException("invalid range [" + startHeight + "-" + endHeight + "]; frozen edge " +
+                    "is " + BlockManager.getFrozenEdgeHeight());
+        }
+
+        long startTimestamp = System.currentTimeMillis();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        File temporaryFile = new File(archiveFile.getAbsolutePath() + "_temp");
+        long numberOfBlocks = 0L;
+        try (FileOutputStream fileStream = new FileOutputStream(temporaryFile);
+             DigestOutputStream digestStream = new DigestOutputStream(new BufferedOutputStream(fileStream,
+                     bufferSize), digest);
+             DataOutputStream output = new DataOutputStream(digestStream)) {
+
+            output.writeInt(magicValue);
+            output.writeByte(formatVersion);
+            output.writeLong(startHeight);
+            output.writeLong(endHeight);
+
+            StoredBlockReader reader = new StoredBlockReader();
+            Block previousBlock = null;
+            for (long height = startHeight; height <= endHeight; height++) {
+
+                byte[] blockBytes = reader.blockBytesForHeight(height);
+                if (blockBytes == null) {
+                    throw new IllegalStateException("block " + height + " is not available");
+                }
+                Block block = Block.fromByteBuffer(ByteBuffer.wrap(blockBytes), false);
+                if (previousBlock != null && !ByteUtil.arraysAreEqual(block.getPreviousBlockHash(),
+                        previousBlock.getHash())) {
+                    throw new IllegalStateException("block " + height + " does not extend the previous block");
+                }
+
+                BalanceList balanceList = null;
+                if (isAnchorHeight(height, startHeight, endHeight)) {
+                    balanceList = BlockManager.loadBalanceListFromFileForHeight(height);
+                    if (balanceList == null || !ByteUtil.arraysAreEqual(balanceList.getHash(),
+                            block.getBalanceListHash())) {
+                        throw new IllegalStateException("balance list " + height + " is not available");
+                    }
+                }
+
+                output.writeInt(blockBytes.length);
+                output.write(blockBytes);
+                if (balanceList == null) {
+                    output.writeByte(0);
+                } else {
+                    byte[] balanceListBytes = balanceList.getBytes();
+                    output.writeByte(1);
+                    output.writeInt(balanceListBytes.length);
+                    output.write(balanceListBytes);
+                }
+
+                previousBlock = block;
+                numberOfBlocks++;
+                if (numberOfBlocks % 10000 == 0) {
+                    System.out.println("exported " + numberOfBlocks + " blocks");
+                }
+            }
+
+            output.writeInt(0);
+            output.writeLong(numberOfBlocks);
+            output.flush();
+            digestStream.on(false);
+            output.write(digest.digest());
+        }
+
+        if (!temporaryFile.renameTo(archiveFile)) {
+            throw new IOException("unable to move archive to " + archiveFile);
+        }
+
+        System.out.println("exported " + numberOfBlocks + " blocks [" + startHeight + "-" + endHeight + "] to " +
+                archiveFile + " in " + (System.currentTimeMillis() - startTimestamp) + "ms");
+    }
+
+    private static void importArchive(File archiveFile) throws Exception {
+
+        // Blocks are only imported into an empty block directory. This is checked before BlockManager is loaded,
+        // because loading BlockManager creates the directory and its subdirectories, so only regular files count.
+        File blockRootDirectory = new File(Verifier.dataRootDirectory, "blocks");
+        if (containsFiles(blockRootDirectory)) {
+            throw new IllegalStateException("block directory " + blockRootDirectory + " is not empty");
+        }
+
+        long startTimestamp = System.currentTimeMillis();
+        verifyDigest(archiveFile);
+
+        File stagingDirectory = new File(Verifier.dataRootDirectory, "blocks_import");
+        FileUtil.delete(stagingDirectory);
+        boolean successful = false;
+        try {
+            Block frozenEdge = importArchiveToDirectory(archiveFile, stagingDirectory);
+
+            // The block directory may have been created when BlockManager was loaded. It is checked again and
+            // replaced with the staging directory.
+            if (containsFiles(blockRootDirectory)) {
+                throw new IllegalStateException("block directory " + blockRootDirectory + " is not empty");
+            }
+            FileUtil.delete(blockRootDirectory);
+            Files.move(stagingDirectory.toPath(), blockRootDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            successful = true;
+
+            System.out.println("imported " + (frozenEdge.getBlockHeight() + 1L) + " blocks [0-" +
+                    frozenEdge.getBlockHeight() + "] in " + (System.currentTimeMillis() - startTimestamp) +
+                    "ms; frozen edge hash is " + PrintUtil.compactPrintByteArray(frozenEdge.getHash()));
+        } finally {
+            if (!successful) {
+                FileUtil.delete(stagingDirectory);
+            }
+        }
+    }
+
+    private static Block importArchiveToDirectory(File archiveFile, File directory) throws Exception {
+
+        boolean compressed = BlockFileConsolidator.isCompressingConsolidatedFiles();
+        long numberOfBlocks = 0L;
+        Block previousBlock = null;
+        IndexedBlockFile.Writer writer = null;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(archiveFile),
+                bufferSize))) {
+
+            if (input.readInt() != magicValue || input.readByte() != formatVersion) {
+                throw new IllegalStateException("not a chain archive: " + archiveFile);
+            }
+            long startHeight = input.readLong();
+            long endHeight = input.readLong();
+            if (startHeight != 0L) {
+                throw new IllegalStateException("archive starts at height " + startHeight + "; only archives that " +
+                        "start at the Genesis block can be imported");
+            }
+
+            // Blocks are streamed into one consolidated file for each file index. The final block is also written to
+            // an individual file, and the Genesis block always is, because these are what BlockManager reads at
+            // startup to find the frozen edge.
+            long writerFileIndex = -1L;
+            int blockLength;
+            while ((blockLength = input.readInt()) > 0) {
+
+                byte[] blockBytes = new byte[blockLength];
+                input.readFully(blockBytes);
+                Block block = Block.fromByteBuffer(ByteBuffer.wrap(blockBytes), false);
+                BalanceList balanceList = null;
+                if (input.readByte() == 1) {
+                    byte[] balanceListBytes = new byte[input.readInt()];
+                    input.readFully(balanceListBytes);
+                    balanceList = BalanceList.fromByteBuffer(ByteBuffer.wrap(balanceListBytes));
+                }
+
+                long height = block.getBlockHeight();
+                long expectedHeight = previousBlock == null ? startHeight : previousBlock.getBlockHeight() + 1L;
+                if (height != expectedHeight || (previousBlock != null &&
+                        !ByteUtil.arraysAreEqual(block.getPreviousBlockHash(), previousBlock.getHash()))) {
+                    throw new IllegalStateException("block " + height + " does not extend the previous block");
+                }
+                if (height == 0L && (!ByteUtil.arraysAreEqual(block.getPreviousBlockHash(), Block.genesisBlockHash) ||
+                        !ByteUtil.arraysAreEqual(block.getVerifierIdentifier(), Block.genesisVerifier))) {
+                    throw new IllegalStateException("block 0 is not the Genesis block");
+                }
+                if (!block.signatureIsValid()) {
+                    throw new IllegalStateException("block " + height + " has an invalid signature");
+                }
+                if (isAnchorHeight(height, startHeight, endHeight) && (balanceList == null ||
+                        !ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash()))) {
+                    throw new IllegalStateException("balance list " + height + " is missing or incorrect");
+                }
+
+                long fileIndex = height / BlockManager.blocksPerFile;
+                if (fileIndex != writerFileIndex) {
+                    if (writer != null && !writer.finish()) {
+                        throw new IOException("unable to write consolidated file " + writerFileIndex);
+                    }
+                    writer = new IndexedBlockFile.Writer(stagedFile(BlockManager.consolidatedFileForBlockHeight(height),
+                            directory), compressed);
+                    writerFileIndex = fileIndex;
+                }
+                writer.addBlock(block, balanceList);
+
+                if ((height == 0L || height == endHeight) && !BlockManager.writeBlocksToFile(new ArrayList<>(
+                        Collections.singletonList(block)), Collections.singletonList(balanceList),
+                        stagedFile(BlockManager.individualFileForBlockHeight(height), directory))) {
+                    throw new IOException("unable to write individual file " + height);
+                }
+
+                previousBlock = block;
+                numberOfBlocks++;
+                if (numberOfBlocks % 10000 == 0) {
+                    System.out.println("imported " + numberOfBlocks + " blocks");
+                }
+            }
+
+            IndexedBlockFile.Writer lastWriter = writer;
+            writer = null;
+            if (lastWriter != null && !lastWriter.finish()) {
+                throw new IOException("unable to write consolidated file " + writerFileIndex);
+            }
+
+            if (previousBlock == null || previousBlock.getBlockHeight() != endHeight) {
+                throw new IllegalStateException("archive ended before height " + endHeight);
+            }
+        } finally {
+            if (writer != null) {
+                writer.abandon();
+            }
+        }
+
+        return previousBlock;
+    }
+
+    private static File stagedFile(File file, File stagingDirectory) {
+
+        // This is the location in the staging directory that corresponds to a location in the block directory.
+        return new File(stagingDirectory, BlockManager.blockRootDirectory.toPath().relativize(file.toPath())
+                .toString());
+    }
+
+    private static boolean containsFiles(File directory) {
+
+        boolean containsFiles = false;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.isDirectory() || containsFiles(file)) {
+                    containsFiles = true;
+                }
+            }
+        }
+
+        return containsFiles;
+    }
+
+    private static void verifyDigest(File archiveFile) throws Exception {
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        long digestedLength = archiveFile.length() - FieldByteSize.hash;
+        byte[] expectedDigest = new byte[FieldByteSize.hash];
+        try (DigestInputStream digestStream = new DigestInputStream(new BufferedInputStream(
+                new FileInputStream(archiveFile), bufferSize), digest);
+             DataInputStream input = new DataInputStream(digestStream)) {
+
+            byte[] buffer = new byte[bufferSize];
+            long remaining = digestedLength;
+            while (remaining > 0) {
+                int length = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (length < 0) {
+                    throw new EOFException("archive is truncated");
+                }
+                remaining -= length;
+            }
+
+            digestStream.on(false);
+            input.readFully(expectedDigest);
+        }
+
+        if (!ByteUtil.arraysAreEqual(digest.digest(), expectedDigest)) {
+            throw new IllegalStateException("archive digest does not match; the file is damaged or incomplete");
+        }
+    }
+
+    private static boolean isAnchorHeight(long height, long startHeight, long endHeight) {
+
+        return height == startHeight || height == endHeight || height % BlockManager.blocksPerFile == 0L;
+    }
+}
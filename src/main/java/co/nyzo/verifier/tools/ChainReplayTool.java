@@ -0,0 +1,212 @@
+package co.nyzo.verifier.tools;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class ChainReplayTool {
+
+    // This tool audits a data directory by replaying the stored blockchain. Every balance list is derived again from
+    // the previous balance list and the block's transactions, and its hash is compared to the hash in the block. The
+    // verifier should be stopped while the tool runs.
+    //
+    // ChainReplayTool [start height] [end height | frozen] [signature threads]
+    //
+    // The replay is a pipeline. A reader thread reads and decodes blocks in order and submits the signature checks
+    // of each block to a pool. The main thread takes the blocks in order, waits for their signature checks, and
+    // derives the balance lists, which must be done sequentially. When the replay starts above the Genesis block,
+    // the stored balance list of the start height is used as the starting point.
+    //
+    // Problems do not stop the replay. After a balance-list mismatch, the replay continues from the stored balance
+    // list for that height, if one is available, so one divergence does not hide the others. The replay only stops
+    // early when a block cannot be read or a balance list cannot be derived or loaded.
+
+    private static final int maximumQueuedBlocks = 2000;
+    private static final int maximumReportedProblems = 20;
+    private static final long progressInterval = 10000L;
+
+    private static long startTimestamp;
+    private static long blocksReplayed = 0L;
+    private static long problems = 0L;
+    private static String firstDivergence = null;
+
+    public static void main(String[] args) {
+
+        try {
+            long startHeight = args.length > 0 ? Long.parseLong(args[0]) : 0L;
+            long endHeight = args.length > 1 && !args[1].equals("frozen") ? Long.parseLong(args[1]) :
+                    BlockManager.getFrozenEdgeHeight();
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) :
+                    Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+            if (startHeight < 0 || endHeight < startHeight || endHeight > BlockManager.getFrozenEdgeHeight()) {
+                System.out.println("invalid range [" + startHeight + "-" + endHeight + "]; frozen edge is " +
+                        BlockManager.getFrozenEdgeHeight());
+                System.out.println("usage: ChainReplayTool [start height] [end height | frozen] [signature threads]");
+            } else {
+                replay(startHeight, endHeight, threads);
+            }
+        } catch (Exception reportOnly) {
+            System.err.println("chain replay failed: " + PrintUtil.printException(reportOnly));
+        }
+
+        UpdateUtil.terminate();
+    }
+
+    private static void replay(final long startHeight, final long endHeight, int threads) throws Exception {
+
+        System.out.println("replaying blocks [" + startHeight + "-" + endHeight + "] with " + threads +
+                " signature threads");
+
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        final BlockingQueue<ReplayItem> queue = new ArrayBlockingQueue<>(maximumQueuedBlocks);
+        Thread readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StoredBlockReader reader = new StoredBlockReader();
+                boolean readSuccessful = true;
+                try {
+                    for (long height = startHeight; height <= endHeight && readSuccessful; height++) {
+                        ReplayItem item = new ReplayItem();
+                        try {
+                            byte[] blockBytes = reader.blockBytesForHeight(height);
+                            if (blockBytes != null) {
+                                final Block block = Block.fromByteBuffer(ByteBuffer.wrap(blockBytes), false);
+                                item.block = block;
+                                item.signaturesValid = pool.submit(new Callable<Boolean>() {
+                                    @Override
+                                    public Boolean call() {
+                                        return signaturesAreValid(block);
+                                    }
+                                });
+                            }
+                        } catch (Exception ignored) { }
+
+                        readSuccessful = item.block != null;
+                        queue.put(item);
+                    }
+                } catch (InterruptedException ignored) { }
+            }
+        }, "ChainReplayTool-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        startTimestamp = System.currentTimeMillis();
+        long lastProgressTimestamp = startTimestamp;
+        Block previousBlock = null;
+        BalanceList previousBalanceList = null;
+        boolean continueReplay = true;
+        for (long height = startHeight; height <= endHeight && continueReplay; height++) {
+
+            ReplayItem item = queue.take();
+            Block block = item.block;
+            if (block == null || block.getBlockHeight() != height) {
+                reportProblem(height, "block is not available or cannot be decoded");
+                continueReplay = false;
+            } else {
+
+                if (!item.signaturesValid.get()) {
+                    reportProblem(height, "block or transaction signature is not valid");
+                }
+
+                if (previousBlock != null && !ByteUtil.arraysAreEqual(block.getPreviousBlockHash(),
+                        previousBlock.getHash())) {
+                    reportProblem(height, "previous-block hash does not match block " + (height - 1));
+                }
+
+                BalanceList balanceList;
+                if (height == 0L) {
+                    balanceList = Block.balanceListForNextBlock(null, null, block.getTransactions(),
+                            block.getVerifierIdentifier());
+                } else if (previousBlock == null) {
+                    balanceList = BlockManager.loadBalanceListFromFileForHeight(height);
+                } else {
+                    balanceList = Block.balanceListForNextBlock(previousBlock, previousBalanceList,
+                            block.getTransactions(), block.getVerifierIdentifier());
+                }
+
+                if (balanceList == null) {
+                    reportProblem(height, "balance list cannot be derived or loaded");
+                    continueReplay = false;
+                } else if (!ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+                    reportProblem(height, "balance-list hash " + PrintUtil.compactPrintByteArray(balanceList.getHash())
+                            + " does not match block hash " +
+                            PrintUtil.compactPrintByteArray(block.getBalanceListHash()));
+
+                    BalanceList storedBalanceList = BlockManager.loadBalanceListFromFileForHeight(height);
+                    if (storedBalanceList != null && ByteUtil.arraysAreEqual(storedBalanceList.getHash(),
+                            block.getBalanceListHash())) {
+                        balanceList = storedBalanceList;
+                    } else {
+                        System.out.println("no stored balance list is available to continue from height " + height);
+                        continueReplay = false;
+                    }
+                }
+
+                previousBlock = block;
+                previousBalanceList = balanceList;
+                blocksReplayed++;
+            }
+
+            long currentTimestamp = System.currentTimeMillis();
+            if (currentTimestamp - lastProgressTimestamp >= progressInterval) {
+                System.out.println("replayed through height " + height + ", " + rateString());
+                lastProgressTimestamp = currentTimestamp;
+            }
+        }
+
+        readerThread.interrupt();
+        pool.shutdownNow();
+
+        System.out.println("replayed " + blocksReplayed + " blocks, " + rateString() + ", " + problems +
+                " problems");
+        System.out.println(firstDivergence == null ? "no divergence found" : "first divergence: " + firstDivergence);
+    }
+
+    private static boolean signaturesAreValid(Block block) {
+
+        // Coin-generation transactions are not signed.
+        boolean valid = block.signatureIsValid();
+        Transaction.verifySignatures(block.getTransactions());
+        for (Transaction transaction : block.getTransactions()) {
+            if (transaction.getType() != Transaction.typeCoinGeneration && !transaction.signatureIsValid()) {
+                valid = false;
+            }
+        }
+
+        return valid;
+    }
+
+    private static void reportProblem(long height, String description) {
+
+        problems++;
+        if (firstDivergence == null) {
+            firstDivergence = "height " + height + ": " + description;
+        }
+
+        if (problems <= maximumReportedProblems) {
+            System.out.println("problem at height " + height + ": " + description);
+        } else if (problems == maximumReportedProblems + 1) {
+            System.out.println("further problems are counted but not printed");
+        }
+    }
+
+    private static String rateString() {
+
+        long elapsedMilliseconds = Math.max(1L, System.currentTimeMillis() - startTimestamp);
+        return String.format("%.1f blocks/s", blocksReplayed * 1000.0 / elapsedMilliseconds);
+    }
+
+    private static class ReplayItem {
+
+        private Block block = null;
+        private Future<Boolean> signaturesValid = null;
+    }
+}
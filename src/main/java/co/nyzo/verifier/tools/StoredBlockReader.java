@@ -0,0 +1,48 @@
+package co.nyzo.verifier.tools;
+
+import co.nyzo.verifier.Block;
+import co.nyzo.verifier.BlockFileIndex;
+import co.nyzo.verifier.BlockFreezeJournal;
+import co.nyzo.verifier.BlockManager;
+
+import java.io.File;
+import java.util.List;
+
+class StoredBlockReader {
+
+    // Blocks are read from the consolidated file for their file index, then the freeze journal, then individual
+    // files. The index of the current consolidated file is kept, because the tools read heights in order.
+    private long fileIndex = -1L;
+    private BlockFileIndex index = null;
+
+    byte[] blockBytesForHeight(long height) {
+
+        byte[] blockBytes = null;
+        File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(height);
+        if (height / BlockManager.blocksPerFile != fileIndex) {
+            fileIndex = height / BlockManager.blocksPerFile;
+            index = consolidatedFile.exists() ? BlockFileIndex.forFile(consolidatedFile) : null;
+        }
+
+        if (index != null) {
+            int position = index.indexForHeight(height);
+            if (position >= 0) {
+                blockBytes = index.readBlockBytes(consolidatedFile, position);
+            }
+        }
+
+        if (blockBytes == null) {
+            blockBytes = BlockFreezeJournal.blockBytesForHeight(height);
+        }
+
+        if (blockBytes == null) {
+            List<Block> blocks = BlockManager.loadBlocksInFile(
+                    BlockManager.existingIndividualFileForBlockHeight(height), height, height);
+            if (!blocks.isEmpty()) {
+                blockBytes = blocks.get(0).getBytes();
+            }
+        }
+
+        return blockBytes;
+    }
+}
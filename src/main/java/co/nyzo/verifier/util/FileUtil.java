@@ -1,6 +1,7 @@
 package co.nyzo.verifier.util;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.*;
 import java.util.List;
 
@@ -23,16 +24,27 @@ public class FileUtil {
     // the final location atomically, replacing the existing file, if present.
     public static void writeFile(Path path, byte[] bytes) {
 
+        try {
+            writeFileOrThrow(path, bytes);
+        } catch (Exception ignored) {
+            ignored.printStackTrace();
+            NotificationUtil.sendOnce("unable to write file " + path.getFileName() + ": " + ignored.getMessage());
+        }
+    }
+
+    // This is for callers that must know whether the file was written, such as before removing another copy of the
+    // data. The temporary file is removed if the write fails.
+    public static void writeFileOrThrow(Path path, byte[] bytes) throws IOException {
+
         Path temporaryPath = Paths.get(path.toAbsolutePath().toString() + "_temp");
         try {
             // Write the file to the temporary path then move it to the permanent path.
             Files.deleteIfExists(temporaryPath);
             Files.write(temporaryPath, bytes, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
             Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-
-        } catch (Exception ignored) {
-            ignored.printStackTrace();
-            NotificationUtil.sendOnce("unable to write file " + path.getFileName() + ": " + ignored.getMessage());
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaryPath);
+            throw e;
         }
     }
 
@@ -62,4 +62,15 @@ public class PreferencesUtil {
 
         return result;
     }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+
+        boolean result = defaultValue;
+        String preference = preferences.get(key.toLowerCase());
+        if (preference != null && !preference.isEmpty()) {
+            result = preference.equals("true") || preference.equals("1");
+        }
+
+        return result;
+    }
 }
@@ -2,6 +2,7 @@ package co.nyzo.verifier.util;
 
 import co.nyzo.verifier.ByteUtil;
 import co.nyzo.verifier.FieldByteSize;
+import co.nyzo.verifier.HashUtil;
 import co.nyzo.verifier.KeyUtil;
 import net.i2p.crypto.eddsa.EdDSAEngine;
 import net.i2p.crypto.eddsa.EdDSASecurityProvider;
@@ -10,17 +11,55 @@ import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
 
 import java.nio.ByteBuffer;
 import java.security.*;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SignatureUtil {
 
-    private static final Map<ByteBuffer, EdDSAEngine> seedToSignatureMap = new HashMap<>();
-    private static final Map<ByteBuffer, EdDSAEngine> identifierToSignatureMap = new HashMap<>();
+    // Keys are immutable once created, and they hold the precomputed values that make signing and verification fast,
+    // so they are cached and shared by all threads. The engines hold the digest state of a single operation, so each
+    // thread has its own engine, which is initialized with the key for every operation. This allows signatures to be
+    // signed and verified on all cores at once.
+
+    private static final int maximumKeyCacheSize = 20000;
+
+    // Signatures that have been verified are remembered, because the same block, transaction, or vote is often
+    // received several times from different peers and in different messages. The key is the identifier, the
+    // signature, and the SHA-256 of the signed bytes, and only valid signatures are stored.
+    private static final int maximumVerifiedSignatureCacheSize = 50000;
+    private static final Map<ByteBuffer, Boolean> verifiedSignatureMap = new ConcurrentHashMap<>();
+    private static final AtomicLong verifiedSignatureCacheHits = new AtomicLong(0);
+    private static final AtomicLong verifiedSignatureCacheMisses = new AtomicLong(0);
+
+    // Batches are divided in half until the parts are this size or smaller, and the parts are verified on all cores.
+    private static final int maximumLeafSize = 8;
+    private static final ForkJoinPool verificationPool =
+            new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private static final Map<ByteBuffer, PrivateKey> seedToKeyMap = new ConcurrentHashMap<>();
+    private static final Map<ByteBuffer, PublicKey> identifierToKeyMap = new ConcurrentHashMap<>();
 
     public static final EdDSAParameterSpec spec;
 
+    private static final ThreadLocal<EdDSAEngine> engine = new ThreadLocal<EdDSAEngine>() {
+        @Override
+        protected EdDSAEngine initialValue() {
+            EdDSAEngine engine = null;
+            try {
+                engine = new EdDSAEngine(MessageDigest.getInstance(spec.getHashAlgorithm()));
+            } catch (Exception reportOnly) {
+                System.err.println("unable to create signature engine: " + PrintUtil.printException(reportOnly));
+            }
+
+            return engine;
+        }
+    };
+
     static {
         Security.addProvider(new EdDSASecurityProvider());
         spec = EdDSANamedCurveTable.getByName("Ed25519");
@@ -32,17 +71,15 @@ public class SignatureUtil {
 
         try {
             ByteBuffer seedBuffer = ByteBuffer.wrap(privateSeed);
-            EdDSAEngine signature = seedToSignatureMap.get(seedBuffer);
-            if (signature == null) {
-                signature = new EdDSAEngine(MessageDigest.getInstance(spec.getHashAlgorithm()));
-                PrivateKey privateKey = KeyUtil.privateKeyFromSeed(privateSeed);
-                signature.initSign(privateKey);
-                seedToSignatureMap.put(seedBuffer, signature);
+            PrivateKey privateKey = seedToKeyMap.get(seedBuffer);
+            if (privateKey == null) {
+                privateKey = KeyUtil.privateKeyFromSeed(privateSeed);
+                putBounded(seedToKeyMap, seedBuffer, privateKey, maximumKeyCacheSize);
             }
 
-            synchronized (SignatureUtil.class) {
-                signatureBytes = signature.signOneShot(bytesToSign);
-            }
+            EdDSAEngine signature = engine.get();
+            signature.initSign(privateKey);
+            signatureBytes = signature.signOneShot(bytesToSign);
 
         } catch (Exception reportOnly) {
             System.err.println("exception signing bytes of length " + (bytesToSign == null ? "(null)" :
@@ -57,23 +94,37 @@ public class SignatureUtil {
         boolean signatureIsValid;
 
         try {
-            ByteBuffer identifierBuffer = ByteBuffer.wrap(publicIdentifier);
-            EdDSAEngine signature = identifierToSignatureMap.get(identifierBuffer);
-            if (signature == null) {
-                signature = new EdDSAEngine(MessageDigest.getInstance(spec.getHashAlgorithm()));
-                PublicKey publicKey = KeyUtil.publicKeyFromIdentifier(publicIdentifier);
-                signature.initVerify(publicKey);
-                identifierToSignatureMap.put(identifierBuffer, signature);
+            // The cache is only used for fields of the proper lengths, so that different fields cannot produce the
+            // same key.
+            ByteBuffer cacheKey = null;
+            if (signatureBytes.length == FieldByteSize.signature &&
+                    publicIdentifier.length == FieldByteSize.identifier) {
+                cacheKey = ByteBuffer.wrap(new byte[FieldByteSize.identifier + FieldByteSize.signature +
+                        FieldByteSize.hash]);
+                cacheKey.put(publicIdentifier).put(signatureBytes).put(HashUtil.singleSHA256(signedBytes));
+                cacheKey.rewind();
+            }
 
-                // If the map has gotten too big, remove an element from it.
-                if (identifierToSignatureMap.size() > 20000) {
-                    ByteBuffer key = identifierToSignatureMap.keySet().iterator().next();
-                    identifierToSignatureMap.remove(key);
+            if (cacheKey != null && verifiedSignatureMap.containsKey(cacheKey)) {
+                verifiedSignatureCacheHits.incrementAndGet();
+                signatureIsValid = true;
+            } else {
+                verifiedSignatureCacheMisses.incrementAndGet();
+
+                ByteBuffer identifierBuffer = ByteBuffer.wrap(publicIdentifier);
+                PublicKey publicKey = identifierToKeyMap.get(identifierBuffer);
+                if (publicKey == null) {
+                    publicKey = KeyUtil.publicKeyFromIdentifier(publicIdentifier);
+                    putBounded(identifierToKeyMap, identifierBuffer, publicKey, maximumKeyCacheSize);
                 }
-            }
 
-            synchronized (SignatureUtil.class) {
+                EdDSAEngine signature = engine.get();
+                signature.initVerify(publicKey);
                 signatureIsValid = signature.verifyOneShot(signedBytes, signatureBytes);
+
+                if (signatureIsValid && cacheKey != null) {
+                    putBounded(verifiedSignatureMap, cacheKey, Boolean.TRUE, maximumVerifiedSignatureCacheSize);
+                }
             }
 
         } catch (Exception ignored) {
@@ -83,4 +134,76 @@ public class SignatureUtil {
 
         return signatureIsValid;
     }
+
+    public static String cacheInformation() {
+
+        long hits = verifiedSignatureCacheHits.get();
+        long misses = verifiedSignatureCacheMisses.get();
+        return verifiedSignatureMap.size() + " entries, " + hits + " hits, " + misses + " misses (" +
+                (hits * 100L / Math.max(hits + misses, 1L)) + "% hit rate)";
+    }
+
+    public static boolean[] verifyBatch(List<SignedItem> items) {
+
+        // Every signature is checked with the same single-signature equation as signatureIsValid, so a batch accepts
+        // exactly the signatures that would be accepted individually. The result for each item is at the same index.
+        boolean[] results = new boolean[items.size()];
+        if (items.size() <= maximumLeafSize || verificationPool.getParallelism() < 2) {
+            verifyRange(items, results, 0, items.size());
+        } else {
+            verificationPool.invoke(new BatchVerification(items, results, 0, items.size()));
+        }
+
+        return results;
+    }
+
+    private static void verifyRange(List<SignedItem> items, boolean[] results, int startIndex, int endIndex) {
+
+        for (int i = startIndex; i < endIndex; i++) {
+            SignedItem item = items.get(i);
+            results[i] = signatureIsValid(item.getSignature(), item.getSignedBytes(), item.getIdentifier());
+        }
+    }
+
+    private static class BatchVerification extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<SignedItem> items;
+        private final boolean[] results;
+        private final int startIndex;
+        private final int endIndex;
+
+        private BatchVerification(List<SignedItem> items, boolean[] results, int startIndex, int endIndex) {
+            this.items = items;
+            this.results = results;
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (endIndex - startIndex <= maximumLeafSize) {
+                verifyRange(items, results, startIndex, endIndex);
+            } else {
+                int middleIndex = (startIndex + endIndex) / 2;
+                invokeAll(new BatchVerification(items, results, startIndex, middleIndex),
+                        new BatchVerification(items, results, middleIndex, endIndex));
+            }
+        }
+    }
+
+    private static <T> void putBounded(Map<ByteBuffer, T> map, ByteBuffer key, T value, int maximumSize) {
+
+        // If the map has gotten too big, remove an element from it. Concurrent additions may briefly exceed the limit
+        // by the number of threads, which is harmless.
+        if (map.size() >= maximumSize) {
+            Iterator<ByteBuffer> iterator = map.keySet().iterator();
+            if (iterator.hasNext()) {
+                map.remove(iterator.next());
+            }
+        }
+        map.put(key, value);
+    }
 }
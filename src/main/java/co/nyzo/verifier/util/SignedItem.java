@@ -0,0 +1,27 @@
+package co.nyzo.verifier.util;
+
+public class SignedItem {
+
+    private final byte[] signature;
+    private final byte[] signedBytes;
+    private final byte[] identifier;
+
+    public SignedItem(byte[] signature, byte[] signedBytes, byte[] identifier) {
+
+        this.signature = signature;
+        this.signedBytes = signedBytes;
+        this.identifier = identifier;
+    }
+
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    public byte[] getSignedBytes() {
+        return signedBytes;
+    }
+
+    public byte[] getIdentifier() {
+        return identifier;
+    }
+}
@@ -0,0 +1,225 @@
+package co.nyzo.verifier;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class AccountStateEngineTest {
+
+    // The engine must produce exactly the lists of the map-based calculation that it replaced, which is reproduced
+    // at the end of this class. The random blocks are weighted toward the cases that the engine handles separately:
+    // accounts that owe the periodic fee, the transfer account, accounts that are emptied, and a list of previous
+    // verifiers that is full, so that a verifier is removed from it at every height.
+
+    private static final long startHeight = 1000L;
+
+    @Test
+    public void genesisListMatchesBaseline() {
+
+        byte[] verifier = randomIdentifier(new Random(1L));
+        List<Transaction> transactions = Collections.singletonList(Transaction.coinGenerationTransaction(1000L,
+                Transaction.micronyzosInSystem, verifier));
+
+        BalanceList expected = baselineNextBalanceList(0L, null, 0L, new ArrayList<byte[]>(), transactions,
+                verifier);
+        BalanceList actual = AccountStateEngine.nextBalanceList(0L, null, 0L, new ArrayList<byte[]>(), transactions,
+                verifier);
+        assertNotNull(actual);
+        assertArrayEquals(expected.getBytes(), actual.getBytes());
+    }
+
+    @Test
+    public void randomBlocksMatchBaseline() {
+
+        for (long seed = 0L; seed < 6L; seed++) {
+            Random random = new Random(seed);
+            List<byte[]> verifiers = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                verifiers.add(randomIdentifier(random));
+            }
+
+            BalanceList balanceList = startBalanceList(random, seed % 2 == 0 ? 300 : 3000, verifiers);
+            for (int step = 0; step < 40; step++) {
+                long blockHeight = balanceList.getBlockHeight() + 1L;
+                byte[] verifier = verifiers.get(random.nextInt(verifiers.size()));
+                List<byte[]> previousVerifiers = balanceList.getPreviousVerifiers();
+                previousVerifiers.add(verifiers.get(step % verifiers.size()));
+                if (previousVerifiers.size() > 9) {
+                    previousVerifiers.remove(0);
+                }
+                List<Transaction> transactions = randomTransactions(random, balanceList, blockHeight);
+
+                BalanceList expected = baselineNextBalanceList(blockHeight, balanceList,
+                        balanceList.getRolloverFees(), previousVerifiers, transactions, verifier);
+                BalanceList actual = AccountStateEngine.nextBalanceList(blockHeight, balanceList,
+                        balanceList.getRolloverFees(), previousVerifiers, transactions, verifier);
+                assertNotNull("seed " + seed + ", height " + blockHeight, expected);
+                assertNotNull("seed " + seed + ", height " + blockHeight, actual);
+                assertArrayEquals("seed " + seed + ", height " + blockHeight, expected.getBytes(),
+                        actual.getBytes());
+
+                balanceList = actual;
+            }
+        }
+    }
+
+    @Test
+    public void unbalancedBlockIsRejected() {
+
+        // A transaction that spends more than the balance of its sender leaves coins unaccounted for, and both
+        // calculations reject the block.
+        Random random = new Random(20L);
+        BalanceList balanceList = startBalanceList(random, 100, new ArrayList<byte[]>());
+        BalanceListItem item = balanceList.copyItems().get(10);
+        List<Transaction> transactions = Collections.singletonList(standardTransaction(random,
+                item.getIdentifier(), randomIdentifier(random), item.getBalance() + 1000L, startHeight + 1L));
+
+        byte[] verifier = randomIdentifier(random);
+        assertNull(baselineNextBalanceList(startHeight + 1L, balanceList, 0L, new ArrayList<byte[]>(),
+                transactions, verifier));
+        assertNull(AccountStateEngine.nextBalanceList(startHeight + 1L, balanceList, 0L, new ArrayList<byte[]>(),
+                transactions, verifier));
+    }
+
+    private static BalanceList startBalanceList(Random random, int numberOfAccounts, List<byte[]> verifiers) {
+
+        // Most counters are small, so many accounts owe the periodic fee in the first few blocks. The transfer
+        // account owes the fee from the start, but it is exempt. One account holds the rest of the coins.
+        List<BalanceListItem> items = new ArrayList<>();
+        long total = 0L;
+        for (int i = 0; i < numberOfAccounts; i++) {
+            long balance = 1L + random.nextInt(random.nextBoolean() ? 3 : 1000000);
+            short blocksUntilFee = (short) (random.nextInt(4) == 0 ? random.nextInt(500) : random.nextInt(6));
+            items.add(new BalanceListItem(randomIdentifier(random), balance, blocksUntilFee));
+            total += balance;
+        }
+        for (int i = 0; i < verifiers.size(); i += 2) {
+            items.add(new BalanceListItem(verifiers.get(i), 50L, (short) random.nextInt(3)));
+            total += 50L;
+        }
+        items.add(new BalanceListItem(BalanceListItem.transferIdentifier, 1000000L, (short) 0));
+        total += 1000000L;
+        items.add(new BalanceListItem(randomIdentifier(random), Transaction.micronyzosInSystem - total,
+                (short) 300));
+
+        List<byte[]> previousVerifiers = new ArrayList<>(verifiers.subList(0, Math.min(verifiers.size(), 9)));
+
+        return new BalanceList(startHeight, (byte) 0, previousVerifiers, items);
+    }
+
+    private static List<Transaction> randomTransactions(Random random, BalanceList balanceList, long blockHeight) {
+
+        // Senders only spend what they have, so the block is balanced. Some senders spend their whole balance,
+        // and some receivers are new accounts or the transfer account.
+        List<BalanceListItem> items = balanceList.copyItems();
+        Set<ByteBuffer> senders = new HashSet<>();
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = random.nextInt(12); i > 0; i--) {
+            BalanceListItem sender = items.get(random.nextInt(items.size()));
+            if (senders.add(ByteBuffer.wrap(sender.getIdentifier()))) {
+                int choice = random.nextInt(4);
+                byte[] receiver = choice == 0 ? randomIdentifier(random) : choice == 1 ?
+                        BalanceListItem.transferIdentifier : items.get(random.nextInt(items.size())).getIdentifier();
+                long amount = random.nextBoolean() ? sender.getBalance() :
+                        1L + (long) (random.nextDouble() * sender.getBalance());
+                transactions.add(standardTransaction(random, sender.getIdentifier(), receiver, amount,
+                        blockHeight));
+            }
+        }
+
+        return transactions;
+    }
+
+    private static Transaction standardTransaction(Random random, byte[] sender, byte[] receiver, long amount,
+                                                   long blockHeight) {
+
+        // Neither calculation checks signatures, so the transactions are not signed.
+        return Transaction.standardTransaction(blockHeight * Block.blockDuration + random.nextInt(1000), amount,
+                receiver, 0L, new byte[FieldByteSize.hash], sender, new byte[0], new byte[FieldByteSize.signature]);
+    }
+
+    private static byte[] randomIdentifier(Random random) {
+
+        byte[] identifier = new byte[FieldByteSize.identifier];
+        random.nextBytes(identifier);
+
+        return identifier;
+    }
+
+    private static BalanceList baselineNextBalanceList(long blockHeight, BalanceList previousBalanceList,
+                                                       long previousRolloverFees, List<byte[]> previousVerifiers,
+                                                       List<Transaction> transactions, byte[] verifierIdentifier) {
+
+        // This is the calculation from Block.balanceListForNextBlock() before AccountStateEngine was introduced.
+        Map<ByteBuffer, BalanceListItem> identifierToItemMap = new HashMap<>();
+        if (previousBalanceList != null) {
+            for (BalanceListItem item : previousBalanceList.copyItems()) {
+                identifierToItemMap.put(ByteBuffer.wrap(item.getIdentifier()), item);
+            }
+        }
+
+        long feesThisBlock = 0L;
+        for (Transaction transaction : transactions) {
+
+            feesThisBlock += transaction.getFee();
+            if (transaction.getType() != Transaction.typeCoinGeneration) {
+                adjustBalance(transaction.getSenderIdentifier(), -transaction.getAmount(), identifierToItemMap);
+            }
+
+            long amountAfterFee = transaction.getAmount() - transaction.getFee();
+            if (amountAfterFee > 0) {
+                adjustBalance(transaction.getReceiverIdentifier(), amountAfterFee, identifierToItemMap);
+            }
+        }
+
+        long periodicAccountFees = 0L;
+        for (ByteBuffer identifier : identifierToItemMap.keySet()) {
+            BalanceListItem item = identifierToItemMap.get(identifier);
+            if (item.getBlocksUntilFee() <= 0 && item.getBalance() > 0L &&
+                    !ByteUtil.arraysAreEqual(identifier.array(), BalanceListItem.transferIdentifier)) {
+                periodicAccountFees++;
+                identifierToItemMap.put(identifier, item.adjustByAmount(-1L).resetBlocksUntilFee());
+            }
+        }
+
+        List<byte[]> verifiers = new ArrayList<>(previousVerifiers);
+        verifiers.add(verifierIdentifier);
+        long totalFees = feesThisBlock + previousRolloverFees + periodicAccountFees;
+        long feesPerVerifier = totalFees / verifiers.size();
+        if (feesPerVerifier > 0L) {
+            for (byte[] verifier : verifiers) {
+                adjustBalance(verifier, feesPerVerifier, identifierToItemMap);
+            }
+        }
+
+        long micronyzosInSystem = 0L;
+        List<BalanceListItem> balanceItems = new ArrayList<>();
+        for (ByteBuffer identifier : identifierToItemMap.keySet()) {
+            BalanceListItem item = identifierToItemMap.get(identifier);
+            if (item.getBalance() > 0L) {
+                balanceItems.add(item.decrementBlocksUntilFee());
+                micronyzosInSystem += item.getBalance();
+            }
+        }
+
+        byte rolloverFees = (byte) (totalFees % verifiers.size());
+        micronyzosInSystem += rolloverFees;
+
+        return micronyzosInSystem == Transaction.micronyzosInSystem ? new BalanceList(blockHeight, rolloverFees,
+                previousVerifiers, balanceItems) : null;
+    }
+
+    private static void adjustBalance(byte[] identifier, long amount,
+                                      Map<ByteBuffer, BalanceListItem> identifierToItemMap) {
+
+        ByteBuffer identifierBuffer = ByteBuffer.wrap(identifier);
+        BalanceListItem item = identifierToItemMap.get(identifierBuffer);
+        if (item == null) {
+            item = new BalanceListItem(identifier, 0L);
+        }
+        identifierToItemMap.put(identifierBuffer, item.adjustByAmount(amount));
+    }
+}
@@ -0,0 +1,77 @@
+package co.nyzo.verifier;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class BalanceListCheckpointStoreTest {
+
+    private static final TestChain chain = new TestChain(250);
+
+    @Before
+    public void setUp() {
+
+        TestChain.dataRootDirectory();
+        TestChain.deleteRecursively(BalanceListCheckpointStore.checkpointDirectory);
+    }
+
+    @Test
+    public void segmentRoundTrip() {
+
+        for (BalanceList balanceList : chain.balanceLists) {
+            BalanceListCheckpointStore.recordBalanceList(balanceList);
+        }
+
+        for (BalanceList balanceList : chain.balanceLists) {
+            BalanceList storedBalanceList =
+                    BalanceListCheckpointStore.balanceListForHeight(balanceList.getBlockHeight());
+            assertNotNull("height " + balanceList.getBlockHeight(), storedBalanceList);
+            assertArrayEquals(balanceList.getBytes(), storedBalanceList.getBytes());
+        }
+        assertNull(BalanceListCheckpointStore.balanceListForHeight(chain.balanceLists.size()));
+    }
+
+    @Test
+    public void truncatedSegmentServesOnlyCompleteDeltas() throws Exception {
+
+        // A crash while a delta is appended leaves part of the delta at the end of the segment. The heights before it
+        // are still served, and the height of the partial delta is not.
+        for (BalanceList balanceList : chain.balanceLists) {
+            BalanceListCheckpointStore.recordBalanceList(balanceList);
+        }
+
+        int lastHeight = chain.balanceLists.size() - 1;
+        File segmentFile = BalanceListCheckpointStore.segmentFileForBlockHeight(lastHeight);
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.setLength(file.length() - 10);
+        }
+
+        assertNull(BalanceListCheckpointStore.balanceListForHeight(lastHeight));
+        for (int height = 0; height < lastHeight; height++) {
+            BalanceList storedBalanceList = BalanceListCheckpointStore.balanceListForHeight(height);
+            assertNotNull("height " + height, storedBalanceList);
+            assertArrayEquals(chain.balanceLists.get(height).getHash(), storedBalanceList.getHash());
+        }
+    }
+
+    @Test
+    public void truncatedStartListServesNothing() throws Exception {
+
+        for (BalanceList balanceList : chain.balanceLists.subList(0, 10)) {
+            BalanceListCheckpointStore.recordBalanceList(balanceList);
+        }
+
+        File segmentFile = BalanceListCheckpointStore.segmentFileForBlockHeight(0L);
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.setLength(chain.balanceLists.get(0).getByteSize() - 1);
+        }
+
+        for (int height = 0; height < 10; height++) {
+            assertNull(BalanceListCheckpointStore.balanceListForHeight(height));
+        }
+    }
+}
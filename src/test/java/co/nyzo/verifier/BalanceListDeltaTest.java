@@ -0,0 +1,152 @@
+package co.nyzo.verifier;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BalanceListDeltaTest {
+
+    @Test
+    public void randomDeltasReproduceEveryList() {
+
+        // Each trial starts from a random list and takes a few steps of changes, removals, and insertions. Every
+        // delta must survive serialization and reproduce its list, alone and applied together with the others.
+        Random random = new Random(7L);
+        for (int trial = 0; trial < 60; trial++) {
+            BalanceList balanceList = randomBalanceList(random, trial % 3 == 0 ? random.nextInt(5) :
+                    random.nextInt(3000));
+            List<BalanceList> balanceLists = new ArrayList<>(Collections.singletonList(balanceList));
+            List<BalanceListDelta> deltas = new ArrayList<>();
+            for (int step = 0; step < 1 + random.nextInt(6); step++) {
+                BalanceList nextBalanceList = nextBalanceList(random, balanceList);
+                BalanceListDelta delta = roundTrip(BalanceListDelta.forBalanceLists(balanceList, nextBalanceList));
+
+                BalanceList appliedBalanceList = delta.applyTo(balanceList);
+                assertNotNull(appliedBalanceList);
+                assertArrayEquals(nextBalanceList.getHash(), appliedBalanceList.getHash());
+                assertArrayEquals(nextBalanceList.getBytes(), appliedBalanceList.getBytes());
+
+                deltas.add(delta);
+                balanceLists.add(nextBalanceList);
+                balanceList = nextBalanceList;
+            }
+
+            BalanceList appliedBalanceList = BalanceListDelta.applyAll(balanceLists.get(0), deltas);
+            assertNotNull(appliedBalanceList);
+            assertArrayEquals(balanceList.getHash(), appliedBalanceList.getHash());
+        }
+    }
+
+    @Test
+    public void unchangedChunksAreShared() {
+
+        Random random = new Random(8L);
+        BalanceList balanceList = randomBalanceList(random, 20000);
+        BalanceList nextBalanceList = nextBalanceList(random, balanceList);
+        BalanceList appliedBalanceList = BalanceListDelta.forBalanceLists(balanceList, nextBalanceList)
+                .applyTo(balanceList);
+
+        Set<BalanceListChunk> previousChunks = Collections.newSetFromMap(
+                new IdentityHashMap<BalanceListChunk, Boolean>());
+        previousChunks.addAll(balanceList.getChunks());
+        int sharedChunks = 0;
+        for (BalanceListChunk chunk : appliedBalanceList.getChunks()) {
+            if (previousChunks.contains(chunk)) {
+                sharedChunks++;
+            }
+        }
+
+        // At most a few dozen items change, so nearly all of the chunks are shared.
+        assertTrue(sharedChunks > appliedBalanceList.getChunks().size() - 40);
+    }
+
+    @Test
+    public void wrongPreviousListIsRejected() {
+
+        Random random = new Random(9L);
+        BalanceList balanceList = randomBalanceList(random, 100);
+        BalanceList nextBalanceList = nextBalanceList(random, balanceList);
+        BalanceListDelta delta = BalanceListDelta.forBalanceLists(balanceList, nextBalanceList);
+
+        assertNull(delta.applyTo(randomBalanceList(random, 100)));
+    }
+
+    @Test
+    public void truncatedDeltaIsNotRead() {
+
+        Random random = new Random(10L);
+        BalanceList balanceList = randomBalanceList(random, 100);
+        byte[] bytes = BalanceListDelta.forBalanceLists(balanceList, nextBalanceList(random, balanceList)).getBytes();
+        for (int length = 0; length < bytes.length; length += 1 + bytes.length / 50) {
+            BalanceListDelta delta;
+            try {
+                delta = BalanceListDelta.fromByteBuffer(ByteBuffer.wrap(Arrays.copyOf(bytes, length)));
+            } catch (Exception expected) {
+                delta = null;
+            }
+            assertNull("length " + length, delta);
+        }
+    }
+
+    private static BalanceListDelta roundTrip(BalanceListDelta delta) {
+
+        ByteBuffer buffer = ByteBuffer.wrap(delta.getBytes());
+        BalanceListDelta result = BalanceListDelta.fromByteBuffer(buffer);
+        assertFalse(buffer.hasRemaining());
+
+        return result;
+    }
+
+    private static BalanceList randomBalanceList(Random random, int numberOfItems) {
+
+        List<BalanceListItem> items = new ArrayList<>();
+        for (int i = 0; i < numberOfItems; i++) {
+            items.add(new BalanceListItem(randomIdentifier(random), 1 + random.nextInt(1000000),
+                    (short) random.nextInt(5)));
+        }
+        List<byte[]> verifiers = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            verifiers.add(randomIdentifier(random));
+        }
+
+        return new BalanceList(100 + random.nextInt(1000), (byte) 0, verifiers, items);
+    }
+
+    private static BalanceList nextBalanceList(Random random, BalanceList balanceList) {
+
+        // The counters of all items advance by one block, as they do in the chain, so the delta only has to carry
+        // the items that were changed, removed, or inserted.
+        List<BalanceListItem> items = new ArrayList<>();
+        for (BalanceListItem item : balanceList.copyItems()) {
+            items.add(item.decrementBlocksUntilFee());
+        }
+        for (int i = random.nextInt(8); i > 0 && !items.isEmpty(); i--) {
+            int index = random.nextInt(items.size());
+            BalanceListItem item = items.get(index);
+            items.set(index, new BalanceListItem(item.getIdentifier(), item.getBalance() + 1, (short) 9));
+        }
+        for (int i = random.nextInt(4); i > 0 && !items.isEmpty(); i--) {
+            items.remove(random.nextInt(items.size()));
+        }
+        for (int i = random.nextInt(4); i > 0; i--) {
+            items.add(new BalanceListItem(randomIdentifier(random), 5, (short) 3));
+        }
+
+        List<byte[]> verifiers = balanceList.getPreviousVerifiers();
+        verifiers.add(randomIdentifier(random));
+        verifiers.remove(0);
+
+        return new BalanceList(balanceList.getBlockHeight() + 1, (byte) random.nextInt(3), verifiers, items);
+    }
+
+    private static byte[] randomIdentifier(Random random) {
+
+        byte[] identifier = new byte[FieldByteSize.identifier];
+        random.nextBytes(identifier);
+
+        return identifier;
+    }
+}
@@ -0,0 +1,113 @@
+package co.nyzo.verifier;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class BlockFreezeJournalTest {
+
+    private static final TestChain chain = new TestChain(250);
+
+    @Before
+    public void setUp() {
+
+        TestChain.dataRootDirectory();
+        BlockFreezeJournal.reset();
+        TestChain.deleteRecursively(BlockFreezeJournal.journalDirectory);
+    }
+
+    @Test
+    public void recordsSurviveRestart() {
+
+        appendBlocks(0, chain.blocks.size());
+        checkBlocks(chain.blocks.size());
+
+        BlockFreezeJournal.flush();
+        restart();
+        assertEquals(chain.blocks.size() - 1, BlockFreezeJournal.getHighestHeight());
+        checkBlocks(chain.blocks.size());
+    }
+
+    @Test
+    public void partialRecordIsRemovedOnReplay() throws Exception {
+
+        // This is the segment that a crash during a write leaves behind. The partial record is cut off when the
+        // segment is replayed, and a record appended afterward is read normally.
+        appendBlocks(0, chain.blocks.size());
+        BlockFreezeJournal.flush();
+        int lastHeight = chain.blocks.size() - 1;
+        int lastRecordLength = BlockFreezeJournal.recordLengthForHeight(lastHeight);
+        File segmentFile = BlockFreezeJournal.segmentFileForFileIndex(0L);
+        long length = segmentFile.length();
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.setLength(length - 10);
+        }
+
+        // The segment is cut back to the end of the last complete record. Each record has an 8-byte header.
+        restart();
+        assertEquals(lastHeight - 1, BlockFreezeJournal.getHighestHeight());
+        assertEquals(length - 8 - lastRecordLength, segmentFile.length());
+        assertNull(BlockFreezeJournal.blockForHeight(lastHeight));
+        checkBlocks(lastHeight);
+
+        appendBlocks(lastHeight, lastHeight + 1);
+        BlockFreezeJournal.flush();
+        restart();
+        checkBlocks(chain.blocks.size());
+    }
+
+    @Test
+    public void damagedRecordIsRemovedWithEverythingAfterIt() throws Exception {
+
+        appendBlocks(0, chain.blocks.size());
+        BlockFreezeJournal.flush();
+        File segmentFile = BlockFreezeJournal.segmentFileForFileIndex(0L);
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            long position = file.length() / 2;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        }
+
+        restart();
+        long highestHeight = BlockFreezeJournal.getHighestHeight();
+        assertTrue(highestHeight > 0 && highestHeight < chain.blocks.size() - 1);
+        checkBlocks((int) highestHeight + 1);
+        for (long height = highestHeight + 1; height < chain.blocks.size(); height++) {
+            assertNull(BlockFreezeJournal.blockForHeight(height));
+        }
+    }
+
+    private static void appendBlocks(int startHeight, int endHeight) {
+
+        for (int height = startHeight; height < endHeight; height++) {
+            assertTrue(BlockFreezeJournal.append(chain.blocks.get(height), chain.balanceLists.get(height),
+                    height == 0 ? null : chain.balanceLists.get(height - 1)));
+        }
+    }
+
+    private static void restart() {
+
+        BlockFreezeJournal.reset();
+        BlockFreezeJournal.initialize();
+    }
+
+    private static void checkBlocks(int numberOfBlocks) {
+
+        for (int height = 0; height < numberOfBlocks; height++) {
+            Block block = BlockFreezeJournal.blockForHeight(height);
+            assertNotNull("block " + height, block);
+            assertArrayEquals(chain.blocks.get(height).getBytes(), block.getBytes());
+            assertArrayEquals(chain.blocks.get(height).getBytes(), BlockFreezeJournal.blockBytesForHeight(height));
+
+            BalanceList balanceList = BlockFreezeJournal.balanceListForHeight(height);
+            assertNotNull("balance list " + height, balanceList);
+            assertArrayEquals(chain.balanceLists.get(height).getHash(), balanceList.getHash());
+        }
+    }
+}
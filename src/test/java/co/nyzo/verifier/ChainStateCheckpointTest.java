@@ -0,0 +1,95 @@
+package co.nyzo.verifier;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChainStateCheckpointTest {
+
+    private static final TestChain chain = new TestChain(120);
+
+    private Block frozenEdge;
+    private List<ByteBuffer> cycleVerifiers;
+
+    @Before
+    public void setUp() {
+
+        TestChain.dataRootDirectory();
+        ChainStateCheckpoint.checkpointFile.delete();
+
+        Block block = chain.blocks.get(chain.blocks.size() - 1);
+        frozenEdge = Block.fromByteBuffer(ByteBuffer.wrap(block.getBytes()), false);
+        frozenEdge.setCycleInformation(new CycleInformation(frozenEdge.getBlockHeight(), 4,
+                new int[] { 3, 3, 4, 3 }, false, false));
+
+        cycleVerifiers = new ArrayList<>();
+        for (int height = chain.blocks.size() - 3; height < chain.blocks.size(); height++) {
+            cycleVerifiers.add(ByteBuffer.wrap(chain.blocks.get(height).getVerifierIdentifier()));
+        }
+    }
+
+    @Test
+    public void checkpointRoundTrip() {
+
+        BalanceList trailingEdgeBalanceList = chain.balanceLists.get(chain.blocks.size() - 14);
+        BalanceList frozenEdgeBalanceList = chain.balanceLists.get(chain.blocks.size() - 1);
+        ChainStateCheckpoint.write(frozenEdge, cycleVerifiers, 57L, trailingEdgeBalanceList, frozenEdgeBalanceList);
+
+        ChainStateCheckpoint checkpoint = ChainStateCheckpoint.load();
+        assertNotNull(checkpoint);
+        assertArrayEquals(frozenEdge.getBytes(), checkpoint.getFrozenEdge().getBytes());
+        assertEquals(cycleVerifiers, checkpoint.getCycleVerifiers());
+        assertEquals(57L, checkpoint.getLastVerifierRemovalHeight());
+        assertArrayEquals(trailingEdgeBalanceList.getBytes(), checkpoint.getTrailingEdgeBalanceList().getBytes());
+        assertArrayEquals(frozenEdgeBalanceList.getBytes(), checkpoint.getFrozenEdgeBalanceList().getBytes());
+
+        CycleInformation cycleInformation = checkpoint.getFrozenEdge().getCycleInformation();
+        assertEquals(4, cycleInformation.getMaximumCycleLength());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(frozenEdge.getCycleInformation().getCycleLength(i), cycleInformation.getCycleLength(i));
+        }
+        assertFalse(cycleInformation.isNewVerifier());
+        assertFalse(cycleInformation.isInGenesisCycle());
+    }
+
+    @Test
+    public void checkpointWithoutTrailingEdgeBalanceList() {
+
+        ChainStateCheckpoint.write(frozenEdge, cycleVerifiers, -1L, null,
+                chain.balanceLists.get(chain.blocks.size() - 1));
+
+        ChainStateCheckpoint checkpoint = ChainStateCheckpoint.load();
+        assertNotNull(checkpoint);
+        assertNull(checkpoint.getTrailingEdgeBalanceList());
+        assertEquals(-1L, checkpoint.getLastVerifierRemovalHeight());
+    }
+
+    @Test
+    public void truncatedOrDamagedCheckpointIsNotUsed() throws Exception {
+
+        BalanceList frozenEdgeBalanceList = chain.balanceLists.get(chain.blocks.size() - 1);
+        ChainStateCheckpoint.write(frozenEdge, cycleVerifiers, 57L, null, frozenEdgeBalanceList);
+        long length = ChainStateCheckpoint.checkpointFile.length();
+        for (long truncatedLength : new long[] { length - 1, length / 2, 1, 0 }) {
+            try (RandomAccessFile file = new RandomAccessFile(ChainStateCheckpoint.checkpointFile, "rw")) {
+                file.setLength(truncatedLength);
+            }
+            assertNull("length " + truncatedLength, ChainStateCheckpoint.load());
+        }
+
+        ChainStateCheckpoint.write(frozenEdge, cycleVerifiers, 57L, null, frozenEdgeBalanceList);
+        try (RandomAccessFile file = new RandomAccessFile(ChainStateCheckpoint.checkpointFile, "rw")) {
+            file.seek(length / 3);
+            int value = file.read();
+            file.seek(length / 3);
+            file.write(value ^ 0x01);
+        }
+        assertNull(ChainStateCheckpoint.load());
+    }
+}
@@ -0,0 +1,94 @@
+package co.nyzo.verifier;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IndexedBlockFileTest {
+
+    private static final TestChain chain = new TestChain(250);
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+
+        directory = new File(TestChain.dataRootDirectory(), "indexed_block_file_test");
+        TestChain.deleteRecursively(directory);
+        directory.mkdirs();
+    }
+
+    @Test
+    public void rawFileRoundTrip() {
+
+        checkRoundTrip(false);
+    }
+
+    @Test
+    public void compressedFileRoundTrip() {
+
+        checkRoundTrip(true);
+    }
+
+    @Test
+    public void truncatedRawFileReturnsOnlyIntactBlocks() throws Exception {
+
+        checkTruncation(false);
+    }
+
+    @Test
+    public void truncatedCompressedFileReturnsOnlyIntactBlocks() throws Exception {
+
+        checkTruncation(true);
+    }
+
+    private void checkRoundTrip(boolean compressed) {
+
+        File file = new File(directory, compressed ? "compressed.nyzoblock" : "raw.nyzoblock");
+        assertTrue(IndexedBlockFile.writeBlocksToFile(chain.blocks, chain.balanceLists, file, compressed));
+        assertTrue(IndexedBlockFile.isIndexedFile(file));
+
+        List<Block> blocks = IndexedBlockFile.loadBlocks(file, 0L, chain.blocks.size());
+        assertEquals(chain.blocks.size(), blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            assertArrayEquals(chain.blocks.get(i).getBytes(), blocks.get(i).getBytes());
+            assertArrayEquals(chain.blocks.get(i).getBytes(), IndexedBlockFile.loadBlockBytes(file, i));
+        }
+
+        // Balance lists are stored for the first block and replayed for the others.
+        for (int height : new int[] { 0, 1, 99, chain.blocks.size() - 1 }) {
+            BalanceList balanceList = IndexedBlockFile.loadBalanceList(file, height);
+            assertNotNull("balance list " + height, balanceList);
+            assertArrayEquals(chain.balanceLists.get(height).getHash(), balanceList.getHash());
+        }
+
+        assertNull(IndexedBlockFile.loadBlock(file, chain.blocks.size()));
+    }
+
+    private void checkTruncation(boolean compressed) throws Exception {
+
+        // This is the file that an interrupted copy or a full disk leaves behind. Every block that can still be read
+        // must be the block that was written, and nothing may throw.
+        File file = new File(directory, compressed ? "compressed.nyzoblock" : "raw.nyzoblock");
+        assertTrue(IndexedBlockFile.writeBlocksToFile(chain.blocks, chain.balanceLists, file, compressed));
+        long length = file.length();
+        for (long truncatedLength : new long[] { length - 1, length * 3 / 4, length / 2, 12, 3, 0 }) {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(truncatedLength);
+            }
+
+            List<Block> blocks = IndexedBlockFile.loadBlocks(file, 0L, chain.blocks.size());
+            assertTrue(blocks.size() < chain.blocks.size());
+            for (Block block : blocks) {
+                assertArrayEquals(chain.blocks.get((int) block.getBlockHeight()).getBytes(), block.getBytes());
+            }
+            assertNull(IndexedBlockFile.loadBlock(file, chain.blocks.size() - 1));
+            assertNull(IndexedBlockFile.loadBalanceList(file, chain.blocks.size() - 1));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package co.nyzo.verifier;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class MappedBlockStoreTest {
+
+    private static final TestChain chain = new TestChain(250);
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+
+        directory = new File(TestChain.dataRootDirectory(), "mapped_block_store_test");
+        TestChain.deleteRecursively(directory);
+    }
+
+    @Test
+    public void recordsSurviveRestart() {
+
+        MappedBlockStore store = openStore();
+        freezeBlocks(store, 0, chain.blocks.size());
+        checkBlocks(store, chain.blocks.size());
+
+        store = openStore();
+        assertEquals(chain.blocks.size() - 1, store.getHighestHeight());
+        checkBlocks(store, chain.blocks.size());
+    }
+
+    @Test
+    public void partialRecordIsRemovedOnRestart() throws Exception {
+
+        // This is the segment that a crash during an append leaves behind. The partial record is cut off when the
+        // store is opened, and a record appended afterward is read normally.
+        freezeBlocks(openStore(), 0, chain.blocks.size());
+        File segmentFile = new File(directory, "m_000000.nyzomapped");
+        long length = segmentFile.length();
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.setLength(length - 10);
+        }
+
+        int lastHeight = chain.blocks.size() - 1;
+        MappedBlockStore store = openStore();
+        assertEquals(lastHeight - 1, store.getHighestHeight());
+        assertTrue(segmentFile.length() < length - chain.blocks.get(lastHeight).getByteSize());
+        assertNull(store.loadBlock(lastHeight));
+        checkBlocks(store, lastHeight);
+
+        freezeBlocks(store, lastHeight, lastHeight + 1);
+        checkBlocks(openStore(), chain.blocks.size());
+    }
+
+    @Test
+    public void damagedRecordIsRemovedWithEverythingAfterIt() throws Exception {
+
+        freezeBlocks(openStore(), 0, chain.blocks.size());
+        File segmentFile = new File(directory, "m_000000.nyzomapped");
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            long position = file.length() / 2;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        }
+
+        MappedBlockStore store = openStore();
+        long highestHeight = store.getHighestHeight();
+        assertTrue(highestHeight > 0 && highestHeight < chain.blocks.size() - 1);
+        checkBlocks(store, (int) highestHeight + 1);
+        for (long height = highestHeight + 1; height < chain.blocks.size(); height++) {
+            assertNull(store.loadBlock(height));
+        }
+    }
+
+    private MappedBlockStore openStore() {
+
+        MappedBlockStore store = new MappedBlockStore(directory);
+        store.initialize();
+
+        return store;
+    }
+
+    private static void freezeBlocks(MappedBlockStore store, int startHeight, int endHeight) {
+
+        for (int height = startHeight; height < endHeight; height++) {
+            assertTrue(store.freezeBlock(chain.blocks.get(height), chain.balanceLists.get(height),
+                    height == 0 ? null : chain.balanceLists.get(height - 1)));
+        }
+    }
+
+    private static void checkBlocks(MappedBlockStore store, int numberOfBlocks) {
+
+        for (int height = 0; height < numberOfBlocks; height++) {
+            Block block = store.loadBlock(height);
+            assertNotNull("block " + height, block);
+            assertArrayEquals(chain.blocks.get(height).getBytes(), block.getBytes());
+
+            BalanceList balanceList = store.loadBalanceList(height);
+            assertNotNull("balance list " + height, balanceList);
+            assertArrayEquals(chain.balanceLists.get(height).getHash(), balanceList.getHash());
+        }
+    }
+}
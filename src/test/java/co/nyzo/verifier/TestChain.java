@@ -0,0 +1,94 @@
+package co.nyzo.verifier;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+class TestChain {
+
+    // This is a deterministic chain for the storage tests. Three verifiers take turns, and each block moves coins
+    // from the Genesis account to the other verifiers and to a new account, so consecutive balance lists differ by
+    // both changes and insertions. The balance lists are registered as they are made, because the transaction checks
+    // in Block.balanceListForNextBlock() look up the balance list of the previous block.
+
+    static final long genesisStartTimestamp = 1600000000000L;
+
+    final List<Block> blocks = new ArrayList<>();
+    final List<BalanceList> balanceLists = new ArrayList<>();
+
+    TestChain(int numberOfBlocks) {
+
+        BlockManager.setGenesisBlockStartTimestamp(genesisStartTimestamp);
+        Random random = new Random(10L);
+        byte[][] seeds = new byte[3][32];
+        byte[][] identifiers = new byte[3][];
+        for (int i = 0; i < seeds.length; i++) {
+            random.nextBytes(seeds[i]);
+            identifiers[i] = KeyUtil.identifierForSeed(seeds[i]);
+        }
+
+        List<Transaction> transactions = new ArrayList<>();
+        transactions.add(Transaction.coinGenerationTransaction(genesisStartTimestamp + 1000L,
+                Transaction.micronyzosInSystem, identifiers[0]));
+        addBlock(transactions, seeds[0]);
+
+        for (int height = 1; height < numberOfBlocks; height++) {
+            long timestamp = genesisStartTimestamp + height * Block.blockDuration;
+            byte[] newAccount = new byte[FieldByteSize.identifier];
+            random.nextBytes(newAccount);
+
+            transactions = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                byte[] receiver = i == 2 ? newAccount : identifiers[i + 1];
+                transactions.add(Transaction.standardTransaction(timestamp + 100L + i, 1000L + height % 50 + i,
+                        receiver, 0L, blocks.get(0).getHash(), new byte[0], seeds[0]));
+            }
+            addBlock(transactions, seeds[height % 3]);
+        }
+
+        // Stored blocks are below the frozen edge in a running verifier, so their transactions are not checked again
+        // when balance lists are replayed from them. The checks would fail here, because the previous-block hashes
+        // of the transactions are resolved from frozen blocks that BlockManager does not have.
+        BlockManager.setFrozenEdge(blocks.get(blocks.size() - 1), null);
+    }
+
+    private void addBlock(List<Transaction> transactions, byte[] verifierSeed) {
+
+        long height = blocks.size();
+        Block previousBlock = height == 0 ? null : blocks.get(blocks.size() - 1);
+        BalanceList previousBalanceList = height == 0 ? null : balanceLists.get(balanceLists.size() - 1);
+        BalanceList balanceList = Block.balanceListForNextBlock(previousBlock, previousBalanceList, transactions,
+                KeyUtil.identifierForSeed(verifierSeed));
+        BalanceListManager.registerBalanceList(balanceList);
+
+        long startTimestamp = genesisStartTimestamp + height * Block.blockDuration;
+        Block block = new Block(height, previousBlock == null ? new byte[FieldByteSize.hash] :
+                previousBlock.getHash(), startTimestamp, transactions, balanceList.getHash(), verifierSeed);
+
+        blocks.add(block);
+        balanceLists.add(balanceList);
+    }
+
+    static File dataRootDirectory() {
+
+        // The tests delete files under the data root, so they only run when it has been moved away from the data of
+        // a real verifier.
+        if (System.getProperty("nyzo.dataRootDirectory") == null) {
+            throw new IllegalStateException("the nyzo.dataRootDirectory system property must be set for the tests");
+        }
+
+        return Verifier.dataRootDirectory;
+    }
+
+    static void deleteRecursively(File file) {
+
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}